@@ -29,6 +29,21 @@ public abstract class AbstractIcapRequestProducer implements IcapRequestProducer
      * @return Returns a RESP MOD message
      */
     protected String constructIcapRespMod(@Nonnull final String serviceName, final boolean keepAlive) {
+        return constructIcapRespMod(serviceName, keepAlive, -1, false);
+    }
+
+    /**
+     * Called to create a RESP MOD message. When previewSize is positive the message announces a preview and ends with the size line of the
+     * preview chunk, otherwise with the size line of the whole payload.
+     * @see <a href="https://datatracker.ietf.org/doc/html/rfc3507#section-4.5">https://datatracker.ietf.org/doc/html/rfc3507#section-4.5</a>
+     * @param serviceName ICAP service name
+     * @param keepAlive KeepAlive flag
+     * @param previewSize number of bytes to send as preview, -1 for no preview
+     * @param allow204 true to let the server answer 204 No Content
+     * @return Returns a RESP MOD message
+     */
+    protected String constructIcapRespMod(@Nonnull final String serviceName, final boolean keepAlive, final int previewSize,
+            final boolean allow204) {
         final StringBuffer buf = new StringBuffer();
         buf.append("RESPMOD icap://");
         buf.append(uri.getHost());
@@ -44,6 +59,15 @@ public abstract class AbstractIcapRequestProducer implements IcapRequestProducer
         } else {
             buf.append("close\r\n");
         }
+        int firstChunkLen = dataToScan.length;
+        if (previewSize > 0) {
+            // the preview bytes actually sent, less than the server's max for a small payload
+            firstChunkLen = Math.min(previewSize, dataToScan.length);
+            buf.append("Preview: ").append(firstChunkLen).append("\r\n");
+        }
+        if (allow204) {
+            buf.append("Allow: 204\r\n");
+        }
 
         //req header
         final StringBuffer resHdr = new StringBuffer();
@@ -78,7 +102,7 @@ public abstract class AbstractIcapRequestProducer implements IcapRequestProducer
 
         buf.append(resBody);
 
-        buf.append(Integer.toHexString(dataToScan.length));
+        buf.append(Integer.toHexString(firstChunkLen));
         buf.append("\r\n");
         return buf.toString();
     }
@@ -10,20 +10,43 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.lafaspot.icap.client.exception.IcapException;
 import com.lafaspot.icap.client.exception.IcapException.FailureType;
+import com.lafaspot.icap.client.session.IcapAdaptiveLimit;
+import com.lafaspot.icap.client.session.IcapByteBudget;
+import com.lafaspot.icap.client.session.IcapCircuitBreaker;
+import com.lafaspot.icap.client.session.IcapFuture;
+import com.lafaspot.icap.client.session.IcapOptionsCache;
+import com.lafaspot.icap.client.session.IcapResultCache;
+import com.lafaspot.icap.client.session.IcapRouteGroup;
 import com.lafaspot.icap.client.session.IcapRouteSpecificSessionPool;
+import com.lafaspot.icap.client.session.IcapScanCoalescer;
+import com.lafaspot.icap.client.session.IcapVerdictStore;
 import com.lafaspot.icap.client.session.IcapSession;
 import com.lafaspot.icap.client.session.SessionLogContext;
 import com.lafaspot.logfast.logging.LogContext;
@@ -73,7 +96,7 @@ public class IcapClient {
      * @param threads number of threads to be used in the event loop.
      * @param connectTimeout channel connect timeout
      * @param inactivityTimeout channel inactivity timeout
-     * @param maxAllowedSessions max allowed sessions
+     * @param maxAllowedSessions max allowed sessions per route, sessions are kept alive and reused across scans when greater than 0
      * @param logManager the logger framework
      * @throws IcapException on failure
      */
@@ -86,9 +109,6 @@ public class IcapClient {
             this.connectTimeout = connectTimeout;
             this.inactivityTimeout = inactivityTimeout;
             this.logManager = logManager;
-            if (maxAllowedSessions > 0) {
-                throw new IcapException(FailureType.CONNECTION_REUSE_NOT_IMPLEMENTED);
-            }
             this.maxAllowedSessions = maxAllowedSessions;
             this.maxAllowedRoutes = MAX_ROUTES;
             bootstrap.group(group).channel(NioSocketChannel.class).handler(new IcapClientInitializer());
@@ -109,12 +129,356 @@ public class IcapClient {
      * @return the future object
      * @throws IcapException on failure
      */
-    public Future<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile)
+    public CompletableFuture<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile)
             throws IcapException {
-        return this.scanFile(server, filename, toScanFile, new DefaultIcapRequestProducer(server, filename, toScanFile),
-                new DefaultIcapRespConsumer());
+        return scanWithCache(server, filename, toScanFile, false);
+    }
+
+    /**
+     * API to scan a file on a route group, will return a future object to be polled for result. The scan goes to the member server with
+     * fewer in-flight scans out of two picked at random, and is hedged on a second member if the group has hedging on.
+     *
+     * @param service name of the route group
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @return the future object
+     * @throws IcapException on failure, UNKNOWN_ROUTE_GROUP if no group was added under the name
+     */
+    public CompletableFuture<IcapResult> scanFile(@Nonnull final String service, @Nonnull final String filename, @Nonnull final byte[] toScanFile)
+            throws IcapException {
+        return scanOnGroup(service, filename, toScanFile, false);
+    }
+
+    /**
+     * API to scan a file on a route group for its verdict only, see {@link #scanFileForVerdict(URI, String, byte[])}.
+     *
+     * @param service name of the route group
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @return the future object
+     * @throws IcapException on failure, UNKNOWN_ROUTE_GROUP if no group was added under the name
+     */
+    public CompletableFuture<IcapResult> scanFileForVerdict(@Nonnull final String service, @Nonnull final String filename,
+            @Nonnull final byte[] toScanFile) throws IcapException {
+        return scanOnGroup(service, filename, toScanFile, true);
+    }
+
+    /**
+     * Register a logical service backed by several servers. Scans on the service name are balanced across the servers, see
+     * {@link IcapRouteGroup}. Adding a group again under the same name replaces it.
+     *
+     * @param service name of the route group
+     * @param servers URIs of the member servers, at least one
+     * @return the route group
+     * @throws IcapException if there are more routes than allowed
+     */
+    @Nonnull
+    public IcapRouteGroup addRouteGroup(@Nonnull final String service, @Nonnull final List<URI> servers) throws IcapException {
+        final List<IcapRouteSpecificSessionPool> members = new ArrayList<IcapRouteSpecificSessionPool>(servers.size());
+        for (final URI server : servers) {
+            members.add(getOrCreatePool(server));
+        }
+        final IcapRouteGroup routeGroup = new IcapRouteGroup(service, members);
+        routeGroups.put(service, routeGroup);
+        return routeGroup;
+    }
+
+    /**
+     * Returns the route group registered under a service name.
+     *
+     * @param service name of the route group
+     * @return the group, null if none was added under the name
+     */
+    @Nullable
+    public IcapRouteGroup getRouteGroup(@Nonnull final String service) {
+        return routeGroups.get(service);
+    }
+
+    /**
+     * Scan on a member of a route group. With hedging on, a scan still running after the member's latency percentile is sent to another
+     * member too: the first answer completes the returned future and the other scan is cancelled, freeing its session.
+     *
+     * @param service name of the route group
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param verdictOnly skip the body echoed back by the server
+     * @return the future object
+     * @throws IcapException on failure, UNKNOWN_ROUTE_GROUP if no group was added under the name
+     */
+    private CompletableFuture<IcapResult> scanOnGroup(@Nonnull final String service, @Nonnull final String filename,
+            @Nonnull final byte[] toScanFile, final boolean verdictOnly) throws IcapException {
+        final IcapRouteGroup routeGroup = routeGroups.get(service);
+        if (null == routeGroup) {
+            throw new IcapException(FailureType.UNKNOWN_ROUTE_GROUP, Collections.singletonList(service));
+        }
+        final IcapRouteSpecificSessionPool primary = routeGroup.select();
+        final CompletableFuture<IcapResult> first = scanWithCache(primary.getRoute(), filename, toScanFile, verdictOnly);
+        final long hedgeDelay = routeGroup.getHedgeDelayMillis(primary);
+        if (hedgeDelay < 0 || first.isDone()) {
+            return first;
+        }
+
+        final CompletableFuture<IcapResult> winner = new CompletableFuture<IcapResult>();
+        final AtomicReference<CompletableFuture<IcapResult>> hedgeRef = new AtomicReference<CompletableFuture<IcapResult>>();
+        // scans that may still complete the winner, the last one to fail completes it with its failure
+        final AtomicInteger pending = new AtomicInteger(1);
+        final BiConsumer<IcapResult, Throwable> race = new BiConsumer<IcapResult, Throwable>() {
+            @Override
+            public void accept(final IcapResult result, final Throwable cause) {
+                if (null == cause) {
+                    winner.complete(result);
+                } else if (pending.decrementAndGet() == 0) {
+                    winner.completeExceptionally(cause);
+                }
+            }
+        };
+        first.whenComplete(race);
+        winner.whenComplete(new BiConsumer<IcapResult, Throwable>() {
+            @Override
+            public void accept(final IcapResult result, final Throwable cause) {
+                // cancel the loser, or both scans if the caller gave up
+                first.cancel(true);
+                final CompletableFuture<IcapResult> hedge = hedgeRef.get();
+                if (null != hedge) {
+                    hedge.cancel(true);
+                }
+            }
+        });
+        group.schedule(new Runnable() {
+            @Override
+            @SuppressWarnings("checkstyle:illegalcatch")
+            public void run() {
+                if (winner.isDone()) {
+                    return;
+                }
+                final IcapRouteSpecificSessionPool other = routeGroup.selectOther(primary);
+                if (null == other || !routeGroup.tryHedge()) {
+                    return;
+                }
+                pending.incrementAndGet();
+                if (winner.isDone()) {
+                    return;
+                }
+                try {
+                    final CompletableFuture<IcapResult> hedge = scanWithCache(other.getRoute(), filename, toScanFile, verdictOnly);
+                    hedgeRef.set(hedge);
+                    hedge.whenComplete(race);
+                    if (winner.isDone()) {
+                        hedge.cancel(true);
+                    }
+                } catch (final Exception e) {
+                    logger.debug("hedge of " + filename + " on " + other.getRoute() + " failed " + e, null);
+                    race.accept(null, e);
+                }
+            }
+        }, hedgeDelay, TimeUnit.MILLISECONDS);
+        return winner;
+    }
+
+    /**
+     * API to scan a file for its verdict only. The body echoed back by the server is skipped as it arrives, the result carries the
+     * disposition and the byte count but no cleaned bytes.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    public CompletableFuture<IcapResult> scanFileForVerdict(@Nonnull final URI server, @Nonnull final String filename,
+            @Nonnull final byte[] toScanFile) throws IcapException {
+        return scanWithCache(server, filename, toScanFile, true);
+    }
+
+    /**
+     * Scan with the default producer and consumer. The result cache and then the verdict store, when set, answer payloads they hold a
+     * result for, and the scan coalescer, when set, lets identical scans in flight share one request.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param verdictOnly skip the cleaned payload
+     * @return the future object, already done on a cache hit
+     * @throws IcapException on failure
+     */
+    private CompletableFuture<IcapResult> scanWithCache(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+            final boolean verdictOnly) throws IcapException {
+        final IcapResultCache cache = this.resultCache;
+        final IcapVerdictStore store = this.verdictStore;
+        final IcapScanCoalescer coalescer = this.scanCoalescer;
+        if (null == cache && null == store && null == coalescer) {
+            return scanFile(server, filename, toScanFile, new DefaultIcapRequestProducer(server, filename, toScanFile),
+                    new DefaultIcapRespConsumer(verdictOnly), null, false);
+        }
+        final byte[] digest = IcapResultCache.digest(toScanFile);
+        final String latestIstag = optionsCache.getLatestIstag(server);
+        if (null != cache) {
+            final IcapResult cached = cache.get(server, digest, toScanFile, verdictOnly, latestIstag);
+            if (null != cached) {
+                // no session is leased for a hit
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        final byte[] storeKey = null != store ? IcapVerdictStore.key(server, digest) : null;
+        if (null != store) {
+            final IcapResult stored = store.get(storeKey, toScanFile, verdictOnly, latestIstag);
+            if (null != stored) {
+                if (null != cache) {
+                    cache.put(server, digest, toScanFile, stored, verdictOnly);
+                }
+                return CompletableFuture.completedFuture(stored);
+            }
+        }
+        final IcapScanCoalescer.Scan scan = new IcapScanCoalescer.Scan() {
+            @Override
+            public IcapFuture start() throws IcapException {
+                final IcapFuture future = scanFile(server, filename, toScanFile, new DefaultIcapRequestProducer(server, filename, toScanFile),
+                        new DefaultIcapRespConsumer(verdictOnly), null, false);
+                if (null != cache || null != store) {
+                    future.addListener(new BiConsumer<IcapResult, Exception>() {
+                        @Override
+                        public void accept(final IcapResult result, final Exception cause) {
+                            if (null == result) {
+                                return;
+                            }
+                            if (null != cache) {
+                                cache.put(server, digest, toScanFile, result, verdictOnly);
+                            }
+                            if (null != store) {
+                                store.put(storeKey, toScanFile, result, verdictOnly);
+                            }
+                        }
+                    });
+                }
+                return future;
+            }
+        };
+        return null != coalescer ? coalescer.scan(server, digest, verdictOnly, scan) : scan.start();
+    }
+
+    /**
+     * Set the persistent verdict store consulted after the result cache, by {@link #scanFile(URI, String, byte[])} and
+     * {@link #scanFileForVerdict(URI, String, byte[])}. The store is owned by the caller, who closes it.
+     *
+     * @param verdictStore the store, null to turn it off
+     */
+    public void setVerdictStore(@Nullable final IcapVerdictStore verdictStore) {
+        this.verdictStore = verdictStore;
+    }
+
+    /**
+     * Returns the persistent verdict store.
+     *
+     * @return the store, null if none is used
+     */
+    @Nullable
+    public IcapVerdictStore getVerdictStore() {
+        return verdictStore;
+    }
+
+    /**
+     * Set the coalescer that lets identical concurrent {@link #scanFile(URI, String, byte[])} and
+     * {@link #scanFileForVerdict(URI, String, byte[])} calls share one request to the server.
+     *
+     * @param scanCoalescer the coalescer, null to send every scan
+     */
+    public void setScanCoalescer(@Nullable final IcapScanCoalescer scanCoalescer) {
+        this.scanCoalescer = scanCoalescer;
+    }
+
+    /**
+     * Returns the scan coalescer.
+     *
+     * @return the coalescer, null if scans are not coalesced
+     */
+    @Nullable
+    public IcapScanCoalescer getScanCoalescer() {
+        return scanCoalescer;
+    }
+
+    /**
+     * Set the scan result cache used by {@link #scanFile(URI, String, byte[])} and {@link #scanFileForVerdict(URI, String, byte[])}. Scans
+     * with a result sink or with a custom producer or consumer always go to the server.
+     *
+     * @param resultCache the cache, null to turn caching off
+     */
+    public void setResultCache(@Nullable final IcapResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Returns the scan result cache.
+     *
+     * @return the cache, null if caching is off
+     */
+    @Nullable
+    public IcapResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * API to scan a file, writing the cleaned payload to the given channel as it is received. The result reports the number of bytes
+     * written instead of holding the cleaned bytes, so memory use does not grow with the size of the file. The channel is not closed.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param resultSink where the cleaned payload is written, written to from the I/O thread
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    public CompletableFuture<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+            @Nonnull final WritableByteChannel resultSink) throws IcapException {
+        return scanFile(server, filename, toScanFile, new DefaultIcapRequestProducer(server, filename, toScanFile),
+                new DefaultIcapRespConsumer(), resultSink, false);
+    }
+
+    /**
+     * API to scan a file, writing the cleaned payload to the given stream as it is received. The stream is not closed.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param resultSink where the cleaned payload is written, written to from the I/O thread
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    public CompletableFuture<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+            @Nonnull final OutputStream resultSink) throws IcapException {
+        return scanFile(server, filename, toScanFile, Channels.newChannel(resultSink));
     }
 
+    /**
+     * API to scan a file, writing the cleaned payload to a file as it is received. The file is created or truncated, and closed once the
+     * scan is over.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param resultFile file the cleaned payload is written to
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    public CompletableFuture<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+            @Nonnull final Path resultFile) throws IcapException {
+        final FileChannel resultSink;
+        try {
+            resultSink = FileChannel.open(resultFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new IcapException(FailureType.RESULT_SINK_FAILED, e);
+        }
+        try {
+            return scanFile(server, filename, toScanFile, new DefaultIcapRequestProducer(server, filename, toScanFile),
+                    new DefaultIcapRespConsumer(), resultSink, true);
+        } catch (IcapException e) {
+            try {
+                resultSink.close();
+            } catch (IOException ce) {
+                logger.debug("closing result file failed " + ce, null);
+            }
+            throw e;
+        }
+    }
 
     /**
      * API to scan a file, will return a future object to be polled for result.
@@ -127,33 +491,61 @@ public class IcapClient {
      * @return the future object
      * @throws IcapException on failure
      */
-    public Future<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+    public CompletableFuture<IcapResult> scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
             @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer)
             throws IcapException {
+        return scanFile(server, filename, toScanFile, icapRequestProducer, icapResponseConsumer, null, false);
+    }
 
-        try {
-            if (!lock.tryLock(connectTimeout, TimeUnit.MILLISECONDS)) {
-                throw new IcapException(FailureType.INTERNAL_ERROR);
+    /**
+     * Start the scan once its payload fits in the byte budget, if one is set, on a session leased for the route.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer
+     * @param icapResponseConsumer An ICAP response consumer
+     * @param resultSink where the cleaned payload is written, null to collect it in the result
+     * @param closeSink close the sink once the scan is over
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    private IcapFuture scanFile(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer,
+            @Nullable final WritableByteChannel resultSink, final boolean closeSink) throws IcapException {
+        final IcapByteBudget budget = this.byteBudget;
+        if (null == budget) {
+            return scanOnPool(server, filename, toScanFile, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
+        }
+        return budget.admit(toScanFile.length, new IcapScanCoalescer.Scan() {
+            @Override
+            public IcapFuture start() throws IcapException {
+                return scanOnPool(server, filename, toScanFile, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
             }
-            try {
-                IcapRouteSpecificSessionPool pool = poolMap.get(server);
-                if (null == pool) {
-                    if (poolMap.size() >= maxAllowedRoutes) {
-                        throw new IcapException(FailureType.NO_MORE_ROUTES);
-                    }
-                    pool = new IcapRouteSpecificSessionPool(this, server, maxAllowedSessions, logger);
-                    poolMap.put(server, pool);
-                }
+        });
+    }
 
-                IcapSession sess = pool.lease(connectTimeout, icapRequestProducer, icapResponseConsumer);
-                return sess.scanFile(filename, toScanFile);
-            } finally {
-                lock.unlock();
-            }
+    /**
+     * Lease a session for the route and start the scan on it.
+     *
+     * @param server URI pointing to the Symantec AV scan server
+     * @param filename name of the file to be scanned
+     * @param toScanFile byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer
+     * @param icapResponseConsumer An ICAP response consumer
+     * @param resultSink where the cleaned payload is written, null to collect it in the result
+     * @param closeSink close the sink once the scan is over
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    private IcapFuture scanOnPool(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer,
+            @Nullable final WritableByteChannel resultSink, final boolean closeSink) throws IcapException {
+        final IcapRouteSpecificSessionPool pool = getOrCreatePool(server);
+        try {
+            return pool.scanFile(connectTimeout, filename, toScanFile, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
         } catch (TimeoutException e) {
             throw new IcapException(FailureType.NOT_CONNECTED, e);
-        } catch (InterruptedException e) {
-            throw new IcapException(FailureType.NOT_CONNECTED, e);
         }
     }
 
@@ -166,10 +558,10 @@ public class IcapClient {
      * @return the future object
      * @throws IcapException on failure
      */
-    public Future<IcapResult> scanFileWithoutSessionReuse(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile)
-            throws IcapException {
-        IcapSession sess = connect(server, new DefaultIcapRequestProducer(server, filename, toScanFile), new DefaultIcapRespConsumer());
-        return sess.scanFile(filename, toScanFile);
+    public CompletableFuture<IcapResult> scanFileWithoutSessionReuse(@Nonnull final URI server, @Nonnull final String filename,
+            @Nonnull final byte[] toScanFile) throws IcapException {
+        return scanFileWithoutSessionReuse(server, filename, toScanFile, new DefaultIcapRequestProducer(server, filename, toScanFile),
+                new DefaultIcapRespConsumer());
     }
 
     /**
@@ -183,26 +575,187 @@ public class IcapClient {
      * @return the future object
      * @throws IcapException on failure
      */
-    public Future<IcapResult> scanFileWithoutSessionReuse(@Nonnull final URI server, @Nonnull final String filename, @Nonnull final byte[] toScanFile,
-            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer)
-            throws IcapException {
-        IcapSession sess = connect(server, icapRequestProducer, icapResponseConsumer);
-        return sess.scanFile(filename, toScanFile);
+    public CompletableFuture<IcapResult> scanFileWithoutSessionReuse(@Nonnull final URI server, @Nonnull final String filename,
+            @Nonnull final byte[] toScanFile, @Nonnull final IcapRequestProducer icapRequestProducer,
+            @Nonnull final IcapResponseConsumer icapResponseConsumer) throws IcapException {
+        final IcapScanCoalescer.Scan scan = new IcapScanCoalescer.Scan() {
+            @Override
+            public IcapFuture start() throws IcapException {
+                final IcapSession sess = connect(server, null);
+                return sess.scanFile(filename, toScanFile, icapRequestProducer, icapResponseConsumer);
+            }
+        };
+        final IcapByteBudget budget = this.byteBudget;
+        return null == budget ? scan.start() : budget.admit(toScanFile.length, scan);
+    }
+
+    /**
+     * Bound the payload bytes of the scans in flight, to keep a burst of large attachments from running the JVM out of memory. Results
+     * served by the result cache or the verdict store, and scans joining an identical scan in flight, take no bytes.
+     *
+     * @param byteBudget the budget, null for no bound
+     */
+    public void setByteBudget(@Nullable final IcapByteBudget byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Returns the byte budget, whose used bytes are the payload bytes in flight.
+     *
+     * @return the budget, null if none is set
+     */
+    @Nullable
+    public IcapByteBudget getByteBudget() {
+        return byteBudget;
     }
 
     /**
-     * Create a new IcapSession and connect to server.
+     * Open sessions to the routes ahead of the first scans, and keep at least the given number of them available. Each session is checked
+     * with an OPTIONS request before it is handed out, and the pools are topped up in the background as sessions close or get used.
+     *
+     * @param minIdlePerRoute number of sessions to keep available for each server URI
+     * @throws IcapException if there are more routes than allowed, or the client was created with max sessions 0 and so does not reuse
+     *             sessions
+     */
+    public void prewarm(@Nonnull final Map<URI, Integer> minIdlePerRoute) throws IcapException {
+        for (final Map.Entry<URI, Integer> entry : minIdlePerRoute.entrySet()) {
+            final URI route = entry.getKey();
+            getOrCreatePool(route).setMinIdle(entry.getValue(), new DefaultIcapRequestProducer(route, "", new byte[0]),
+                    new DefaultIcapRespConsumer());
+        }
+    }
+
+    /**
+     * Returns the session pool of a route, creating it on first use.
+     *
+     * @param server server URI
+     * @return the pool
+     * @throws IcapException if there are more routes than allowed
+     */
+    @Nonnull
+    private IcapRouteSpecificSessionPool getOrCreatePool(@Nonnull final URI server) throws IcapException {
+        final IcapRouteSpecificSessionPool pool = poolMap.get(server);
+        if (null != pool) {
+            return pool;
+        }
+        // the route limit is checked before the pool is added, concurrent first scans of new routes may overshoot it slightly
+        if (poolMap.size() >= maxAllowedRoutes) {
+            throw new IcapException(FailureType.NO_MORE_ROUTES);
+        }
+        // configured before it is published, a concurrent scan never sees the pool without its breaker or limit
+        return poolMap.computeIfAbsent(server, new Function<URI, IcapRouteSpecificSessionPool>() {
+            @Override
+            public IcapRouteSpecificSessionPool apply(final URI route) {
+                final IcapRouteSpecificSessionPool created = new IcapRouteSpecificSessionPool(IcapClient.this, route, maxAllowedSessions,
+                        group, logger);
+                if (breakerFailureThreshold > 0) {
+                    installCircuitBreaker(created);
+                }
+                if (adaptiveMinLimit > 0) {
+                    installAdaptiveLimit(created);
+                }
+                return created;
+            }
+        });
+    }
+
+    /**
+     * Let every route adapt the number of scans it runs at once to the server's response time, between the given minimum and the max
+     * sessions per route. Scans over a route's limit wait for a session. The current limit of a route is reported by
+     * {@link IcapRouteSpecificSessionPool#getConcurrencyLimit()}.
+     *
+     * @param minLimit lowest limit of a route, where it starts, 0 to use the max sessions as a static limit
+     * @param tolerance response time over the lowest seen that counts as congestion, such as 2 for twice as slow
+     */
+    public void setAdaptiveLimit(final int minLimit, final double tolerance) {
+        this.adaptiveTolerance = tolerance;
+        this.adaptiveMinLimit = minLimit;
+        for (final IcapRouteSpecificSessionPool pool : poolMap.values()) {
+            installAdaptiveLimit(pool);
+        }
+    }
+
+    /**
+     * Set a new adaptive limit on a route pool with the current settings, or remove it if they turn it off.
+     *
+     * @param pool the route pool
+     */
+    private void installAdaptiveLimit(@Nonnull final IcapRouteSpecificSessionPool pool) {
+        final int maxLimit = maxAllowedSessions > 0 ? maxAllowedSessions : Integer.MAX_VALUE;
+        pool.setAdaptiveLimit(adaptiveMinLimit > 0 ? new IcapAdaptiveLimit(adaptiveMinLimit, maxLimit, adaptiveTolerance) : null);
+    }
+
+    /**
+     * Give every route a circuit breaker, so scans fail fast with CIRCUIT_OPEN while a server keeps failing instead of each waiting out
+     * the connect timeout. Scans on a route group go to the members whose breaker is closed.
+     *
+     * @param failureThreshold consecutive connect failures, server errors or timeouts that open the breaker, 0 to disable the breakers
+     * @param openMillis time a breaker stays open before a single OPTIONS probe is sent, in milliseconds
+     */
+    public void setCircuitBreaker(final int failureThreshold, final long openMillis) {
+        this.breakerOpenMillis = openMillis;
+        this.breakerFailureThreshold = failureThreshold;
+        for (final IcapRouteSpecificSessionPool pool : poolMap.values()) {
+            installCircuitBreaker(pool);
+        }
+    }
+
+    /**
+     * Set a new circuit breaker on a route pool with the current settings, or remove it if they disable the breakers.
+     *
+     * @param pool the route pool
+     */
+    private void installCircuitBreaker(@Nonnull final IcapRouteSpecificSessionPool pool) {
+        final IcapCircuitBreaker breaker = breakerFailureThreshold > 0 ? new IcapCircuitBreaker(breakerFailureThreshold, breakerOpenMillis)
+                : null;
+        pool.setCircuitBreaker(breaker, new DefaultIcapRequestProducer(pool.getRoute(), "", new byte[0]), new DefaultIcapRespConsumer());
+    }
+
+    /**
+     * Returns the session pool of a route, for its queue and wait metrics.
+     *
+     * @param route server URI
+     * @return the pool, null if the route was never scanned
+     */
+    @Nullable
+    public IcapRouteSpecificSessionPool getSessionPool(@Nonnull final URI route) {
+        return poolMap.get(route);
+    }
+
+    /**
+     * Create a new IcapSession and start connecting to server, without waiting for the connection. A scan started on the session before the
+     * connection is up is sent once it is. Only sessions that belong to a pool are kept alive after a scan.
+     *
+     * @param route server URI
+     * @param pool the pool the session will be returned to, null for a single use session
+     * @return IcapSession
+     * @throws IcapException on failure
+     */
+    public IcapSession connect(@Nonnull final URI route, @Nullable final IcapRouteSpecificSessionPool pool) throws IcapException {
+        final IcapSession sess = new IcapSession(String.valueOf(sessionCountRef.incrementAndGet()), bootstrap, route, connectTimeout,
+                inactivityTimeout, (0 != maxAllowedSessions && null != pool), pool, optionsCache, logManager);
+        sess.connectAsync();
+        return sess;
+    }
+
+    /**
+     * Create a new IcapSession and connect to server, waiting for the connection. The producer and consumer are bound to the session for
+     * {@link IcapSession#scanFile(String, byte[])}.
      *
      * @param route server URI
      * @param icapRequestProducer An ICAP request producer
      * @param icapResponseConsumer An ICAP response consumer
      * @return IcapSession
      * @throws IcapException on failure
+     * @deprecated use {@link #scanFileWithoutSessionReuse(URI, String, byte[], IcapRequestProducer, IcapResponseConsumer)}, or pass the
+     *             producer and consumer to {@link IcapSession#scanFile(String, byte[], IcapRequestProducer, IcapResponseConsumer)}
      */
+    @Deprecated
     public IcapSession connect(@Nonnull final URI route, @Nonnull final IcapRequestProducer icapRequestProducer,
             @Nonnull final IcapResponseConsumer icapResponseConsumer) throws IcapException {
         final IcapSession sess = new IcapSession(String.valueOf(sessionCountRef.incrementAndGet()), bootstrap, route, connectTimeout,
-                inactivityTimeout, (0 != maxAllowedSessions), logManager, icapRequestProducer, icapResponseConsumer);
+                inactivityTimeout, false, null, optionsCache, logManager);
+        sess.bind(icapRequestProducer, icapResponseConsumer);
         sess.connect();
         return sess;
     }
@@ -216,11 +769,38 @@ public class IcapClient {
     /** The logger. */
     private final LogManager logManager;
 
-    /** Map that holds session pools per route. */
-    private final Map<URI, IcapRouteSpecificSessionPool> poolMap = new HashMap<URI, IcapRouteSpecificSessionPool>();
+    /** Map that holds session pools per route, scans of different routes never wait on each other. */
+    private final ConcurrentMap<URI, IcapRouteSpecificSessionPool> poolMap = new ConcurrentHashMap<URI, IcapRouteSpecificSessionPool>();
+
+    /** Consecutive failures that open a route's circuit breaker, 0 when the breakers are disabled. */
+    private volatile int breakerFailureThreshold;
+
+    /** Time a route's circuit breaker stays open before a probe. */
+    private volatile long breakerOpenMillis;
+
+    /** Lowest adaptive concurrency limit of a route, 0 when the limit is static. */
+    private volatile int adaptiveMinLimit;
+
+    /** Round trip time over the lowest seen that counts as congestion. */
+    private volatile double adaptiveTolerance = IcapAdaptiveLimit.DEFAULT_TOLERANCE;
+
+    /** Bounds the payload bytes in flight, null for no bound. */
+    private volatile IcapByteBudget byteBudget;
+
+    /** Route groups by service name. */
+    private final ConcurrentMap<String, IcapRouteGroup> routeGroups = new ConcurrentHashMap<String, IcapRouteGroup>();
+
+    /** OPTIONS responses cached per route, shared by all sessions. */
+    private final IcapOptionsCache optionsCache = new IcapOptionsCache();
+
+    /** Scan results cached by content, null when caching is off. */
+    private volatile IcapResultCache resultCache;
+
+    /** Verdicts persisted across restarts, null when not used. */
+    private volatile IcapVerdictStore verdictStore;
 
-    /** Lock for synchronization. */
-    private final ReentrantLock lock = new ReentrantLock();
+    /** Coalesces identical scans in flight, null when every scan is sent. */
+    private volatile IcapScanCoalescer scanCoalescer;
 
     /** The logger object. */
     private final Logger logger;
@@ -24,6 +24,19 @@ public interface IcapRequestProducer {
      */
     IcapRespmod generateRespMod(boolean keepAlive);
 
+    /**
+     * Generate ICAP RESPMOD message using the options the server advertised for the route. By default the hints are ignored and the whole
+     * payload is sent, producers that support preview override this.
+     * @see <a href="https://datatracker.ietf.org/doc/html/rfc3507#section-4.5">https://datatracker.ietf.org/doc/html/rfc3507#section-4.5</a>
+     * @param keepAlive KeepAlive header
+     * @param previewSize number of bytes the server wants as preview, -1 if the server does not support preview
+     * @param allow204 true if the server supports 204 No Content responses
+     * @return Icap RespMod object
+     */
+    default IcapRespmod generateRespMod(boolean keepAlive, int previewSize, boolean allow204) {
+        return generateRespMod(keepAlive);
+    }
+
     //TODO: Add generateReqMod()
 
 }
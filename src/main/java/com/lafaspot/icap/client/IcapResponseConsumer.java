@@ -18,4 +18,13 @@ public interface IcapResponseConsumer {
      * @throws IcapException icapexception
      */
     IcapResult responseReceived(final int status, @Nonnull final IcapMessage icapMessage) throws IcapException;
+
+    /**
+     * Does the caller only want the verdict? The echoed res-body is then skipped by the decoder, and the result carries no cleaned bytes.
+     * Consumers written before this hook keep the cleaned payload.
+     * @return true to discard the cleaned payload
+     */
+    default boolean isVerdictOnly() {
+        return false;
+    }
 }
@@ -3,6 +3,13 @@
  */
 package com.lafaspot.icap.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javax.annotation.Nonnull;
 
 import com.lafaspot.icap.client.exception.IcapException;
@@ -31,18 +38,134 @@ public class IcapResult {
     /** Stream where cleaned file needs to be written to. If client does not want cleaned data, they can pass null. */
     private byte[] cleanedBytes;
 
+    /** ISTag of the service that produced this result, identifies the AV definitions used. */
+    private String istag;
+
+    /** Number of cleaned bytes returned by the server, whether kept in cleanedBytes or written to a result sink. */
+    private long cleanedByteCount;
+
+    /** The cleaned payload in bounded arrays, the only copy of it until a caller asks for cleanedBytes, then null. */
+    private List<byte[]> cleanedChunks;
+
     /**
-     * @return the cleanedBytes
+     * Returns the cleaned payload as one array. A payload held in several chunks is joined on the first call only, the chunks are
+     * dropped once joined so the payload is never held twice. Use {@link #getCleanedStream()} to read a large payload without one
+     * contiguous copy.
+     *
+     * @return the cleanedBytes, null when the scan wrote the cleaned payload to a result sink
      */
-    public byte[] getCleanedBytes() {
+    public synchronized byte[] getCleanedBytes() {
+        if (null == cleanedBytes && null != cleanedChunks) {
+            if (cleanedChunks.size() == 1) {
+                cleanedBytes = cleanedChunks.get(0);
+            } else {
+                int length = 0;
+                for (final byte[] chunk : cleanedChunks) {
+                    length += chunk.length;
+                }
+                final byte[] joined = new byte[length];
+                int offset = 0;
+                for (final byte[] chunk : cleanedChunks) {
+                    System.arraycopy(chunk, 0, joined, offset, chunk.length);
+                    offset += chunk.length;
+                }
+                cleanedBytes = joined;
+            }
+            cleanedChunks = null;
+        }
         return cleanedBytes;
     }
 
     /**
      * @param cleanedBytes the cleanedBytes to set
      */
-    public void setCleanedBytes(final byte[] cleanedBytes) {
+    public synchronized void setCleanedBytes(final byte[] cleanedBytes) {
         this.cleanedBytes = cleanedBytes;
+        this.cleanedChunks = null;
+        this.cleanedByteCount = null != cleanedBytes ? cleanedBytes.length : 0;
+    }
+
+    /**
+     * Returns a read-only stream over the cleaned payload, without joining the chunks it is held in.
+     *
+     * @return a new stream over the cleaned payload, null when the scan wrote the cleaned payload to a result sink
+     */
+    public synchronized InputStream getCleanedStream() {
+        if (null != cleanedBytes) {
+            return new ByteArrayInputStream(cleanedBytes);
+        }
+        if (null == cleanedChunks) {
+            return null;
+        }
+        final List<InputStream> streams = new ArrayList<InputStream>(cleanedChunks.size());
+        for (final byte[] chunk : cleanedChunks) {
+            streams.add(new ByteArrayInputStream(chunk));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * @param cleanedChunks the cleaned payload in order, the arrays are kept as they are and must not be changed afterwards
+     */
+    public synchronized void setCleanedChunks(@Nonnull final List<byte[]> cleanedChunks) {
+        long total = 0;
+        for (final byte[] chunk : cleanedChunks) {
+            total += chunk.length;
+        }
+        this.cleanedBytes = cleanedChunks.isEmpty() ? new byte[0] : null;
+        this.cleanedChunks = cleanedChunks.isEmpty() ? null : new ArrayList<byte[]>(cleanedChunks);
+        this.cleanedByteCount = total;
+    }
+
+    /**
+     * Share the cleaned payload of another result without copying it. Both results then hand out the same arrays, which callers must
+     * treat as read-only.
+     *
+     * @param source the result holding the cleaned payload
+     */
+    public void setCleanedPayload(@Nonnull final IcapResult source) {
+        final byte[] bytes;
+        final List<byte[]> chunks;
+        final long count;
+        synchronized (source) {
+            bytes = source.cleanedBytes;
+            chunks = source.cleanedChunks;
+            count = source.cleanedByteCount;
+        }
+        synchronized (this) {
+            // the chunk list is never changed once set, it is only dropped
+            this.cleanedBytes = bytes;
+            this.cleanedChunks = chunks;
+            this.cleanedByteCount = count;
+        }
+    }
+
+    /**
+     * @return number of cleaned bytes returned by the server
+     */
+    public long getCleanedByteCount() {
+        return cleanedByteCount;
+    }
+
+    /**
+     * @param cleanedByteCount number of cleaned bytes written to the result sink
+     */
+    public void setCleanedByteCount(final long cleanedByteCount) {
+        this.cleanedByteCount = cleanedByteCount;
+    }
+
+    /**
+     * @return the ISTag reported with the response, null if the server sent none
+     */
+    public String getIstag() {
+        return istag;
+    }
+
+    /**
+     * @param istag the ISTag reported with the response
+     */
+    public void setIstag(final String istag) {
+        this.istag = istag;
     }
 
     /**
@@ -175,6 +298,10 @@ public class IcapResult {
             buf.append(", Disposition: ");
             buf.append(disposition);
         }
+        if (null != istag) {
+            buf.append(", ISTag: ");
+            buf.append(istag);
+        }
         return buf.toString();
     }
 
@@ -0,0 +1,333 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.lafaspot.icap.client.exception.IcapException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Read-only view over the header block of an ICAP response. The block is copied out of the inbound buffer once and its lines are indexed,
+ * the status code, header values and Encapsulated offsets are then read straight from the bytes. Strings are only created for the values
+ * a caller asks for.
+ */
+public final class IcapHeaders {
+
+    /** Header name/value separator. */
+    private static final byte COLON = ':';
+
+    /** Lines indexed before the index grows. */
+    private static final int INITIAL_LINES = 16;
+
+    /** Base for decimal parsing. */
+    private static final int DECIMAL_BASE = 10;
+
+    /** Largest value parsed before it would overflow an int. */
+    private static final int MAX_INT_BEFORE_DIGIT = Integer.MAX_VALUE / DECIMAL_BASE - 1;
+
+    /** ICAP Encapsulated header. */
+    private static final String ENCAPSULATED_HEADER = "Encapsulated";
+
+    /** The header block, without the terminating CRLFCRLF. */
+    private final byte[] bytes;
+
+    /** Start offset of every line. */
+    private int[] lineStarts = new int[INITIAL_LINES];
+
+    /** Number of lines, including the status line. */
+    private int lineCount;
+
+    /** Lines as strings, created on first use. */
+    private String[] lines;
+
+    /**
+     * Reads the header block at the given position of the buffer, without moving its reader index.
+     *
+     * @param buf the inbound buffer
+     * @param index first byte of the block
+     * @param length length of the block, without the terminating CRLFCRLF
+     */
+    public IcapHeaders(@Nonnull final ByteBuf buf, final int index, final int length) {
+        this.bytes = new byte[length];
+        buf.getBytes(index, bytes);
+        lineStarts[lineCount++] = 0;
+        for (int i = 0; i < length - 1; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                }
+                lineStarts[lineCount++] = i + 2;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lines, including the status line.
+     *
+     * @return number of lines
+     */
+    public int size() {
+        return lineCount;
+    }
+
+    /**
+     * Returns one line of the header block.
+     *
+     * @param index line number, 0 is the status line
+     * @return the line
+     */
+    @Nonnull
+    public String getLine(final int index) {
+        if (null != lines) {
+            return lines[index];
+        }
+        return new String(bytes, lineStarts[index], lineEnd(index) - lineStarts[index], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns all lines of the header block.
+     *
+     * @return the lines, the status line first
+     */
+    @Nonnull
+    public String[] toArray() {
+        if (null == lines) {
+            final String[] l = new String[lineCount];
+            for (int i = 0; i < lineCount; i++) {
+                l[i] = getLine(i);
+            }
+            lines = l;
+        }
+        return lines;
+    }
+
+    /**
+     * Does the line start with the given ASCII prefix?
+     *
+     * @param index line number, 0 is the status line
+     * @param prefix the prefix
+     * @return true if the line starts with the prefix
+     */
+    public boolean lineStartsWith(final int index, @Nonnull final String prefix) {
+        final int start = lineStarts[index];
+        if (lineEnd(index) - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the status code from the status line, for instance 201 for "ICAP/1.0 201 Created".
+     *
+     * @return the status code, -1 if the status line has no numeric status code
+     */
+    public int getStatusCode() {
+        final int end = lineEnd(0);
+        int i = 0;
+        while (i < end && bytes[i] != ' ') {
+            i++;
+        }
+        return parseInt(i + 1, end);
+    }
+
+    /**
+     * Finds a header by name, ignoring case. The status line is skipped.
+     *
+     * @param name header name without the colon
+     * @return the line number of the header, -1 if not present
+     */
+    public int indexOf(@Nonnull final String name) {
+        final int nameLen = name.length();
+        for (int line = 1; line < lineCount; line++) {
+            final int start = lineStarts[line];
+            if (lineEnd(line) - start > nameLen && bytes[start + nameLen] == COLON && regionMatches(start, name)) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of a header, ignoring the case of its name.
+     *
+     * @param name header name without the colon
+     * @return the trimmed value, null if the header is not present
+     */
+    @Nullable
+    public String get(@Nonnull final String name) {
+        final int line = indexOf(name);
+        if (-1 == line) {
+            return null;
+        }
+        final int start = valueStart(line, name.length());
+        final int end = valueEnd(line, start);
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the value of a numeric header.
+     *
+     * @param name header name without the colon
+     * @param defaultValue value returned when the header is not present or not a number
+     * @return the value
+     */
+    public int getInt(@Nonnull final String name, final int defaultValue) {
+        final int line = indexOf(name);
+        if (-1 == line) {
+            return defaultValue;
+        }
+        final int start = valueStart(line, name.length());
+        final int value = parseInt(start, valueEnd(line, start));
+        return -1 == value ? defaultValue : value;
+    }
+
+    /**
+     * Returns an offset from the Encapsulated header, for instance 83 for res-body in "Encapsulated: res-hdr=0, res-body=83".
+     *
+     * @param entity the encapsulated entity, such as res-hdr, res-body or null-body
+     * @return the offset, -1 if the header or the entity is not present
+     * @throws IcapException if the offset is not a number
+     */
+    public int getEncapsulatedOffset(@Nonnull final String entity) throws IcapException {
+        final int line = indexOf(ENCAPSULATED_HEADER);
+        if (-1 == line) {
+            return -1;
+        }
+        final int end = lineEnd(line);
+        int pos = valueStart(line, ENCAPSULATED_HEADER.length());
+        while (pos < end) {
+            // one "name=offset" element per iteration
+            int elemEnd = pos;
+            while (elemEnd < end && bytes[elemEnd] != ',') {
+                elemEnd++;
+            }
+            int nameStart = pos;
+            while (nameStart < elemEnd && bytes[nameStart] == ' ') {
+                nameStart++;
+            }
+            final int eq = nameStart + entity.length();
+            if (eq < elemEnd && bytes[eq] == '=' && regionMatches(nameStart, entity)) {
+                final int valueStart = eq + 1;
+                final int offset = parseInt(valueStart, trimEnd(valueStart, elemEnd));
+                if (-1 == offset) {
+                    throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList(entity,
+                            new String(bytes, valueStart, elemEnd - valueStart, StandardCharsets.ISO_8859_1)));
+                }
+                return offset;
+            }
+            pos = elemEnd + 1;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the end offset of a line, exclusive of its CRLF.
+     *
+     * @param index line number
+     * @return end offset
+     */
+    private int lineEnd(final int index) {
+        return index + 1 < lineCount ? lineStarts[index + 1] - 2 : bytes.length;
+    }
+
+    /**
+     * Returns the start of a header value, after the colon and any blanks.
+     *
+     * @param line line number
+     * @param nameLen length of the header name
+     * @return start offset of the value
+     */
+    private int valueStart(final int line, final int nameLen) {
+        final int end = lineEnd(line);
+        int i = lineStarts[line] + nameLen + 1;
+        while (i < end && (bytes[i] == ' ' || bytes[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the end of a header value, without trailing blanks.
+     *
+     * @param line line number
+     * @param start start offset of the value
+     * @return end offset of the value
+     */
+    private int valueEnd(final int line, final int start) {
+        return trimEnd(start, lineEnd(line));
+    }
+
+    /**
+     * Returns the end of a value ending at or before the given offset, without trailing blanks.
+     *
+     * @param start start offset of the value
+     * @param limit end offset to trim from
+     * @return end offset of the value
+     */
+    private int trimEnd(final int start, final int limit) {
+        int end = limit;
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Case insensitive comparison of the bytes at the offset with an ASCII string.
+     *
+     * @param offset start offset
+     * @param s the string
+     * @return true if the bytes match
+     */
+    private boolean regionMatches(final int offset, @Nonnull final String s) {
+        if (offset + s.length() > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            final char c = (char) bytes[offset + i];
+            final char o = s.charAt(i);
+            if (c != o && Character.toLowerCase(c) != Character.toLowerCase(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a non negative decimal number, stopping at the first blank.
+     *
+     * @param start start offset
+     * @param end end offset
+     * @return the number, -1 if there are no digits or a byte other than a digit before the first blank
+     */
+    private int parseInt(final int start, final int end) {
+        int value = 0;
+        int i = start;
+        for (; i < end && bytes[i] != ' '; i++) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit >= DECIMAL_BASE || value > MAX_INT_BEFORE_DIGIT) {
+                return -1;
+            }
+            value = value * DECIMAL_BASE + digit;
+        }
+        return i == start ? -1 : value;
+    }
+}
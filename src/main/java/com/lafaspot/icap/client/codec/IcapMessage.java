@@ -3,25 +3,24 @@
  */
 package com.lafaspot.icap.client.codec;
 
+import com.lafaspot.icap.client.IcapResponseConsumer;
 import com.lafaspot.icap.client.IcapResult;
 import com.lafaspot.icap.client.exception.IcapException;
 import com.lafaspot.icap.client.exception.IcapException.FailureType;
 import com.lafaspot.logfast.logging.Logger;
 import io.netty.buffer.ByteBuf;
-import org.apache.http.Header;
-import org.apache.http.HeaderElement;
-import org.apache.http.StatusLine;
-import org.apache.http.message.BasicHeaderValueParser;
-import org.apache.http.message.BasicLineParser;
-import org.apache.http.message.LineParser;
-import org.apache.http.message.ParserCursor;
-import org.apache.http.util.CharArrayBuffer;
+import io.netty.buffer.CompositeByteBuf;
 
 import javax.annotation.Nonnull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Pattern;
 
 /**
  * Base IcapMessage object.
@@ -38,17 +37,23 @@ public class IcapMessage {
     /** Current parsing state. */
     private State state = State.PARSE_ICAP_MESSAGE;
 
-    /** Offset used on parsing. */
-    private int payloadOffset;
+    /** Number of bytes after the reader index already scanned for the delimiter, so a fragmented header is scanned only once. */
+    private int scanOffset;
+
+    /** Number of delimiter bytes matched at the end of the scanned bytes. */
+    private int delimMatched;
 
-    /** String buffer to hold the current parsed ICAP headers. */
-    private StringBuffer currentMessage = new StringBuffer(MAX_HEADER_BUFFER);
+    /** Bytes of the current chunk still to be read. */
+    private int chunkRemaining;
 
-    /** Payload length parsed from response. */
-    private int payloadLen;
+    /** Holds the response scanned/cleaned payload, one component per read. */
+    private CompositeByteBuf resPayload;
 
-    /** Holds the response scanned/cleaned payload. */
-    private byte[] resPayload;
+    /** Skip the payload, the consumer only wants the verdict. */
+    private boolean verdictOnly;
+
+    /** Number of payload bytes decoded so far. */
+    private long payloadLength;
 
     /** The logger object. */
     private final Logger logger;
@@ -57,19 +62,22 @@ public class IcapMessage {
     private IcapResult result = new IcapResult();
 
     /** Parsed ICAP headers. */
-    private String[] icapHeaders;
+    private IcapHeaders headers;
 
     /** Failure cause. */
     private Exception cause;
 
+    /** ICAP status code of the response, 0 until the status line is parsed. */
+    private int status;
+
+    /** When the first byte of the message was read, from System.nanoTime(), 0 until then. */
+    private long firstByteNanos;
+
     /** ICAP message prefix. */
     private static final String ICAP_PREFIX = "ICAP/1.0";
 
-    /** ICAP violations found prefix. */
-    private static final String ICAP_VIOLATIONS_PREFIX = "X-Violations-Found:";
-
     /** ICAP Encapsulated header. */
-    private static final String ICAP_ENCAPSULATED_PREFIX = "Encapsulated:";
+    private static final String ICAP_ENCAPSULATED_HEADER = "Encapsulated";
 
     /** ICAP response body len prefix. */
     private static final String ICAP_RES_BODY_PREFIX = "res-body";
@@ -77,15 +85,18 @@ public class IcapMessage {
     /** ICAP response header len prefix. */
     private static final String ICAP_RES_HDR_PREFIX = "res-hdr";
 
-    /** ICAP NULL body prefix. */
-    private static final String ICAP_NULL_BODY_PREFIX = "null-body";
-
     /** ICAP header delimiter. */
     private static final byte[] ICAP_ENDOFHEADER_DELIM_HALF = { '\r', '\n' };
 
     /** ICAP header delimiter. */
     private static final byte[] ICAP_ENDOFHEADER_DELIM_FULL = { '\r', '\n', '\r', '\n' };
 
+    /** ICAP status code 100 Continue, the server wants the rest of a previewed body. */
+    private static final int ICAP_STATUS_CODE_100 = 100;
+
+    /** ICAP status code 204 No Content, the content needs no modification. */
+    private static final int ICAP_STATUS_CODE_204 = 204;
+
     /** HTTP status code 200. */
     private static final int HTTP_STATUS_CODE_200 = 200;
 
@@ -95,15 +106,21 @@ public class IcapMessage {
     /** HTTP status code 500. */
     private static final int HTTP_STATUS_CODE_500 = 500;
 
-    /** Max buffer size. */
-    private static final int MAX_HEADER_BUFFER = 1024;
-
     /** Max length of debug string in Exception. */
     private static final int MAX_DEBUG_STR_LEN = 10;
 
     /** Base for length parsing. */
     private static final int HEX_BASE = 16;
 
+    /** Components the payload buffer holds before it consolidates them. */
+    private static final int MAX_PAYLOAD_COMPONENTS = 4096;
+
+    /** Largest array the cleaned payload is copied into, a payload up to this size ends up in a single array. */
+    private static final int CLEANED_CHUNK_SIZE = 1024 * 1024;
+
+    /** Max number of hex digits in a chunk size that fits an int. */
+    private static final int MAX_CHUNK_SIZE_DIGITS = 7;
+
     /**
      * Constructor.
      *
@@ -118,14 +135,17 @@ public class IcapMessage {
      */
     public void reset() {
         state = State.PARSE_ICAP_MESSAGE;
-        currentMessage.setLength(0);
+        scanOffset = delimMatched = 0;
         cause = null;
-        resPayload = null;
-        icapHeaders = null;
+        status = 0;
+        firstByteNanos = 0;
+        release();
+        headers = null;
         result = new IcapResult();
-        payloadLen = payloadOffset = 0;
+        chunkRemaining = 0;
+        payloadLength = 0;
+        verdictOnly = false;
         nextStates.clear();
-        resPayload = null;
     }
 
     /**
@@ -137,6 +157,15 @@ public class IcapMessage {
         return (state == State.PARSE_DONE);
     }
 
+    /**
+     * Returns when the first byte of the message was read, the end of the server's round trip without the download of the body.
+     *
+     * @return System.nanoTime() at the first read of the message, 0 if nothing was read yet
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
     /**
      * Function to parse incoming buffer.
      *
@@ -145,20 +174,23 @@ public class IcapMessage {
      */
     @SuppressWarnings("checkstyle:illegalcatch")
     public void parse(@Nonnull final ByteBuf buf, @Nonnull final IcapMessageDecoder dec) {
+        if (0 == firstByteNanos) {
+            firstByteNanos = System.nanoTime();
+        }
         try {
             // logger.debug("<- parse in - " + state + " - " + this.hashCode(), null);
             switch (state) {
             case PARSE_ICAP_MESSAGE: {
-                if (!parseForHeader(buf, ICAP_ENDOFHEADER_DELIM_FULL)) {
+                final int start = buf.readerIndex();
+                final int next = findDelimiter(buf, ICAP_ENDOFHEADER_DELIM_FULL);
+                if (-1 == next) {
                     return;
                 }
-                String header = currentMessage.toString();
-                currentMessage.setLength(0);
-
-                String[] headers = parseHeader(header);
+                headers = new IcapHeaders(buf, start, next - start - ICAP_ENDOFHEADER_DELIM_FULL.length);
+                buf.readerIndex(next);
 
                 // now handle the ICAP message
-                if (!handleIcapMessage(headers, dec)) {
+                if (!handleIcapMessage(dec)) {
                     state = State.PARSE_DONE;
 
                     // reset the readIndex to avoid replay
@@ -168,49 +200,20 @@ public class IcapMessage {
                     return;
                 }
 
-                BasicLineParser lineParser = new BasicLineParser();
-                final int maxLineLen = 128;
-                CharArrayBuffer charBuf = new CharArrayBuffer(maxLineLen);
-
-                int resHdr = -1;
-                int resBody = -1;
-                String encapsulatedHeaderStr = getEncapsulatedHeader(headers);
-                charBuf.setLength(0);
-                charBuf.append(encapsulatedHeaderStr);
-                Header encapsulateHeder = lineParser.parseHeader(charBuf);
-                String encapsulateHeaderVal = encapsulateHeder.getValue();
-                if (null != encapsulateHeaderVal) {
-                    BasicHeaderValueParser encParser = new BasicHeaderValueParser();
-
-                    charBuf.setLength(0);
-                    charBuf.append(encapsulateHeaderVal);
-                    ParserCursor encCursor = new ParserCursor(0, encapsulateHeaderVal.length());
-                    HeaderElement[] elems = encParser.parseElements(charBuf, encCursor);
-
-                    try {
-                        for (int i = 0; i < elems.length; i++) {
-                            if (elems[i].getName().startsWith(ICAP_RES_HDR_PREFIX)) {
-                                resHdr = Integer.parseInt(elems[i].getValue().trim());
-                            }
-
-                            if (elems[i].getName().startsWith(ICAP_RES_BODY_PREFIX)) {
-                                resBody = Integer.parseInt(elems[i].getValue().trim());
-                            }
-                        }
-                    } catch (NumberFormatException e) {
-                        throw new IcapException(IcapException.FailureType.PARSE_ERROR, e);
-                    }
+                if (-1 == headers.indexOf(ICAP_ENCAPSULATED_HEADER) && ICAP_STATUS_CODE_100 != status && ICAP_STATUS_CODE_204 != status) {
+                    // only the bodyless responses may leave out the Encapsulated header
+                    throw new IcapException(IcapException.FailureType.PARSE_ERROR);
                 }
+                final int resHdr = headers.getEncapsulatedOffset(ICAP_RES_HDR_PREFIX);
+                final int resBody = headers.getEncapsulatedOffset(ICAP_RES_BODY_PREFIX);
 
-                // logger.debug("<- encap " + encapsulateHeaderVal + ", rh " + resHdr + ", rb " + resBody, null);
                 if (-1 != resHdr) {
                     nextStates.add(State.PARSE_RES_HEADER);
                 }
 
                 if (-1 != resBody) {
-                    // nextStates.add(State.PARSE_RES_BODY);
+                    // loops over the chunks, then moves on to the next state
                     nextStates.add(State.PARSE_RES_PAYLOAD_LENGTH);
-                    nextStates.add(State.PARSE_PAYLOAD);
                 }
 
                 nextStates.add(State.PARSE_DONE);
@@ -220,100 +223,154 @@ public class IcapMessage {
             }
 
             case PARSE_RES_HEADER: {
-                if (!parseForHeader(buf, ICAP_ENDOFHEADER_DELIM_FULL)) {
+                // the encapsulated HTTP response header is not used, skip it
+                final int next = findDelimiter(buf, ICAP_ENDOFHEADER_DELIM_FULL);
+                if (-1 == next) {
                     return;
                 }
-
-                String header = currentMessage.toString();
-                currentMessage.setLength(0);
-                String[] headers = parseHeader(header);
-
-                LineParser parser = new BasicLineParser();
-                ParserCursor cursor = new ParserCursor(0, headers[0].length());
-                final int maxStatusBuffer = 64;
-                CharArrayBuffer statusBuffer = new CharArrayBuffer(maxStatusBuffer);
-                statusBuffer.append(headers[0]);
-                StatusLine statusLine = parser.parseStatusLine(statusBuffer, cursor);
-
-                // handle 200 OK
-                if (statusLine.getStatusCode() == HTTP_STATUS_CODE_200) {
-                    // todo
-                } else {
-                    // todo
-                }
+                buf.readerIndex(next);
 
                 state = nextStates.remove(0);
-                // logger.debug(" done with parsing body - moving to " + state, null);
                 break;
             }
 
             case PARSE_RES_PAYLOAD_LENGTH: {
-                if (!parseForHeader(buf, dec, ICAP_ENDOFHEADER_DELIM_HALF)) {
+                final int start = buf.readerIndex();
+                final int next = findDelimiter(buf, ICAP_ENDOFHEADER_DELIM_HALF);
+                if (-1 == next) {
                     return;
                 }
-                final String lengthStr = currentMessage.toString().trim();
-
-                currentMessage.setLength(0);
-                try {
-                    payloadLen = Integer.parseInt(lengthStr, HEX_BASE);
-                } catch (NumberFormatException e) {
-                    final String errorLenStr = (lengthStr.length() > MAX_DEBUG_STR_LEN ? lengthStr.substring(0, MAX_DEBUG_STR_LEN) : lengthStr);
-                    throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("payloadLen", errorLenStr));
-                }
+                chunkRemaining = parseChunkSize(buf, start, next - ICAP_ENDOFHEADER_DELIM_HALF.length);
+                buf.readerIndex(next);
 
-                resPayload = new byte[payloadLen];
-                payloadOffset = 0;
-                state = nextStates.remove(0);
-                // logger.debug(" done with parsing payload len=" + payloadLen + " - moving to " + state, null);
+                // the last chunk has size 0 and is followed by the trailer
+                state = 0 == chunkRemaining ? State.PARSE_PAYLOAD_TRAILER : State.PARSE_PAYLOAD;
                 break;
             }
 
-            case PARSE_PAYLOAD:
-                if (0 == payloadLen) {
-                    // bad
-                    throw new IcapException(IcapException.FailureType.PARSE_ERROR);
+            case PARSE_PAYLOAD: {
+                final int toReadLen = Math.min(chunkRemaining, buf.readableBytes());
+                if (0 == toReadLen) {
+                    return;
                 }
-                final int availableLen = buf.writerIndex() - buf.readerIndex();
-                final int toReadLen = payloadLen - payloadOffset;
-
-                // the readBytes() API will update readerIndex
-                if (toReadLen < availableLen) {
-                    buf.readBytes(resPayload, payloadOffset, toReadLen);
-                    payloadOffset += toReadLen;
-
+                final WritableByteChannel sink = dec.getResultSink();
+                if (verdictOnly) {
+                    // only the verdict is wanted, drop the bytes in place
+                    buf.skipBytes(toReadLen);
+                } else if (null != sink) {
+                    // hand the bytes on as they arrive, nothing is kept
+                    writeToSink(buf, toReadLen, sink);
                 } else {
-                    buf.readBytes(resPayload, payloadOffset, availableLen);
-                    payloadOffset += availableLen;
+                    if (null == resPayload) {
+                        resPayload = buf.alloc().compositeBuffer(MAX_PAYLOAD_COMPONENTS);
+                    }
+                    // keep the received bytes as they are, no contiguous copy of the whole body
+                    resPayload.addComponent(true, buf.readRetainedSlice(toReadLen));
                 }
-                if (payloadOffset < payloadLen) {
-                    // logger.debug("more to raad o " + payloadOffset + ", l " + payloadLen + ", ri " + buf.readerIndex(), null);
-                    // still more to read
-                    return;
+                payloadLength += toReadLen;
+                chunkRemaining -= toReadLen;
+                if (0 == chunkRemaining) {
+                    state = State.PARSE_PAYLOAD_END;
                 }
+                break;
+            }
 
-                // reset the readIndex to avoid replay
-                buf.readerIndex(buf.writerIndex());
-
-                result.setCleanedBytes(resPayload);
+            case PARSE_PAYLOAD_END: {
+                if (buf.readableBytes() < ICAP_ENDOFHEADER_DELIM_HALF.length) {
+                    return;
+                }
+                if (buf.readByte() != '\r' || buf.readByte() != '\n') {
+                    throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("chunk", "missing CRLF"));
+                }
+                state = State.PARSE_RES_PAYLOAD_LENGTH;
+                break;
+            }
 
-                state = nextStates.remove(0);
-                // logger.debug(" done with parsing payload of " + payloadLen + " bytes - moving to " + state, null);
+            case PARSE_PAYLOAD_TRAILER: {
+                // trailer headers, if any, up to an empty line
+                final int start = buf.readerIndex();
+                final int next = findDelimiter(buf, ICAP_ENDOFHEADER_DELIM_HALF);
+                if (-1 == next) {
+                    return;
+                }
+                buf.readerIndex(next);
+                if (next - start == ICAP_ENDOFHEADER_DELIM_HALF.length) {
+                    if (verdictOnly || null != dec.getResultSink()) {
+                        result.setCleanedByteCount(payloadLength);
+                    } else {
+                        result.setCleanedChunks(cleanedChunks());
+                    }
+                    release();
+                    state = nextStates.remove(0);
+                }
+                break;
+            }
 
             case PARSE_DONE:
-                // reset the readIndex to avoid replay
-                buf.readerIndex(buf.writerIndex());
                 break;
             default:
 
             }
         } catch (Exception e) {
             cause = e;
+            release();
             state = State.PARSE_DONE;
             // reset the readIndex to avoid replay
             buf.readerIndex(buf.writerIndex());
         }
     }
 
+    /**
+     * Write payload bytes to the result sink and consume them.
+     *
+     * @param buf incoming buffer
+     * @param len number of bytes to write
+     * @param sink the result sink
+     * @throws IcapException if the sink fails
+     */
+    private static void writeToSink(@Nonnull final ByteBuf buf, final int len, @Nonnull final WritableByteChannel sink) throws IcapException {
+        final ByteBuffer bytes = buf.nioBuffer(buf.readerIndex(), len);
+        try {
+            while (bytes.hasRemaining()) {
+                sink.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new IcapException(FailureType.RESULT_SINK_FAILED, e);
+        }
+        buf.skipBytes(len);
+    }
+
+    /**
+     * Copy the cleaned payload out of the pooled buffers once, into arrays of at most {@link #CLEANED_CHUNK_SIZE} bytes, so a large body
+     * never needs one contiguous array and a small one needs no join later.
+     *
+     * @return the cleaned payload in order
+     */
+    @Nonnull
+    private List<byte[]> cleanedChunks() {
+        if (null == resPayload || !resPayload.isReadable()) {
+            return Collections.emptyList();
+        }
+        final int length = resPayload.readableBytes();
+        final List<byte[]> chunks = new ArrayList<byte[]>((length - 1) / CLEANED_CHUNK_SIZE + 1);
+        for (int offset = 0; offset < length; offset += CLEANED_CHUNK_SIZE) {
+            final byte[] chunk = new byte[Math.min(CLEANED_CHUNK_SIZE, length - offset)];
+            resPayload.getBytes(resPayload.readerIndex() + offset, chunk);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Release the payload received so far. Called when the message is done with, or when the channel goes away in the middle of it.
+     */
+    public void release() {
+        if (null != resPayload) {
+            resPayload.release();
+            resPayload = null;
+        }
+    }
+
     /**
      * Get AV scan result.
      *
@@ -339,11 +396,8 @@ public class IcapMessage {
             buf.append(cause);
         }
 
-        if (null != icapHeaders) {
-            for (int i = 0; i < icapHeaders.length; i++) {
-                buf.append(icapHeaders[i]);
-                buf.append("\n");
-            }
+        if (null != headers) {
+            buf.append(headers);
         }
 
         return buf.toString();
@@ -352,164 +406,163 @@ public class IcapMessage {
     /**
      * Parse ICAP message.
      *
-     * @param headers headers to be parsed
      * @param messageDecoder message decoder
      * @return true if response was successful
      * @throws IcapException on failure
      */
-    private boolean handleIcapMessage(@Nonnull final String[] headers, @Nonnull final IcapMessageDecoder messageDecoder) throws IcapException {
-        if (headers[0].startsWith(ICAP_PREFIX)) {
-
-            icapHeaders = headers;
-            String[] toks = headers[0].split(" ");
-            if (toks.length > 2) {
-                int status;
-                try {
-                    status = Integer.parseInt(toks[1].trim());
-                } catch (NumberFormatException e) {
-                    final String errorStatusStr = toks[1].length() > MAX_DEBUG_STR_LEN ? toks[1].substring(0, 0) : toks[1];
-                    throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("icapStatusHdr", errorStatusStr));
-                }
-                // logger.debug("-- icap status code " + status, null);
-                IcapResult decodedResult = messageDecoder.getIcapResponseConsumer().responseReceived(status, this);
-                // set the result only if disposition have been set
-                if (decodedResult.getDisposition() != null) {
-                    this.result = decodedResult;
-                }
-                switch (status) {
-                case HTTP_STATUS_CODE_201:
-                case HTTP_STATUS_CODE_200:
-                    return true;
-                case HTTP_STATUS_CODE_500:
-                    return false;
-                default:
+    private boolean handleIcapMessage(@Nonnull final IcapMessageDecoder messageDecoder) throws IcapException {
+        if (headers.lineStartsWith(0, ICAP_PREFIX)) {
+            status = headers.getStatusCode();
+            if (-1 == status) {
+                final String statusLine = headers.getLine(0);
+                final String errorStatusStr = statusLine.length() > MAX_DEBUG_STR_LEN ? statusLine.substring(0, MAX_DEBUG_STR_LEN) : statusLine;
+                throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("icapStatusHdr", errorStatusStr));
+            }
+            if (ICAP_STATUS_CODE_100 == status) {
+                // interim response to a preview, there is no result yet
+                return true;
+            }
+            final IcapResponseConsumer consumer = messageDecoder.getIcapResponseConsumer();
+            verdictOnly = consumer.isVerdictOnly();
+            IcapResult decodedResult = consumer.responseReceived(status, this);
+            // set the result only if disposition have been set
+            if (decodedResult.getDisposition() != null) {
+                this.result = decodedResult;
+            }
+            switch (status) {
+            case ICAP_STATUS_CODE_204:
+                // the server did not modify the content, it is clean
+                if (null == result.getDisposition()) {
+                    result.setDisposition(IcapResult.Disposition.CLEAN);
+                    result.setNumViolations(0);
                 }
+                return true;
+            case HTTP_STATUS_CODE_201:
+            case HTTP_STATUS_CODE_200:
+                return true;
+            case HTTP_STATUS_CODE_500:
+                return false;
+            default:
             }
         }
-        throw new IcapException(IcapException.FailureType.PARSE_ERROR_ICAP_STATUS, Arrays.asList("invalidStatus",
-                String.valueOf(headers[0])));
+        throw new IcapException(IcapException.FailureType.PARSE_ERROR_ICAP_STATUS, Arrays.asList("invalidStatus", headers.getLine(0)));
     }
 
     /**
-     * Look for the "Encapsulated" header in an ICAP message.
+     * Scan for the delimiter. Handles partial message buffers: nothing is consumed, and the scan resumes where the previous call stopped, so
+     * every byte is looked at once however the message is fragmented.
      *
-     * @param headers list of ICAP headers
-     * @return the parsed Encapsualted header if present
-     * @throws IcapException on failure
+     * @param buf incoming buffer
+     * @param delim delimiter
+     * @return the index after the delimiter, -1 if the delimiter is not found yet
      */
-    private String getEncapsulatedHeader(final String[] headers) throws IcapException {
-
-        for (int index = 0; index < headers.length; index++) {
-            if (headers[index].startsWith(ICAP_ENCAPSULATED_PREFIX)) {
-                int j = headers[index].indexOf(ICAP_ENCAPSULATED_PREFIX);
-                if (-1 != j) {
-                    return headers[index]; // .substring(j + ICAP_RES_BODY_PREFIX.length() + 1);
+    private int findDelimiter(@Nonnull final ByteBuf buf, @Nonnull final byte[] delim) {
+        final int start = buf.readerIndex();
+        final int end = buf.writerIndex();
+        int matched = delimMatched;
+        for (int idx = start + scanOffset; idx < end; idx++) {
+            final byte b = buf.getByte(idx);
+            if (b == delim[matched]) {
+                matched++;
+                if (matched == delim.length) {
+                    scanOffset = delimMatched = 0;
+                    return idx + 1;
                 }
+            } else {
+                // CR only starts the delimiters, a mismatch may still begin a new match
+                matched = (b == delim[0]) ? 1 : 0;
             }
         }
 
-        throw new IcapException(IcapException.FailureType.PARSE_ERROR);
+        // remember how far we got, the next call continues from here
+        scanOffset = end - start;
+        delimMatched = matched;
+        return -1;
     }
 
     /**
-     * Parse until the header delimiter is reached. Handles partial message buffer, will return false if the delimiter is not yet found.
+     * Parse a hex chunk size line, ignoring blanks and chunk extensions.
      *
      * @param buf incoming buffer
-     * @param delim delimiter
-     * @return true if parsing is complete, false otherwise
-     * @throws IcapException on failure
+     * @param start first byte of the line
+     * @param end end of the line, exclusive of CRLF
+     * @return the chunk size
+     * @throws IcapException if the line is not a valid chunk size
      */
-    private boolean parseForHeader(@Nonnull final ByteBuf buf, @Nonnull final byte[] delim) throws IcapException {
-        // logger.debug(" parseHeader r:" + buf.readerIndex() + ", w:" + buf.writerIndex(), null);
-        if (buf.readableBytes() < delim.length) {
-            // error
-            throw new IcapException(IcapException.FailureType.PARSE_ERROR);
+    private static int parseChunkSize(@Nonnull final ByteBuf buf, final int start, final int end) throws IcapException {
+        int idx = start;
+        while (idx < end && buf.getByte(idx) == ' ') {
+            idx++;
         }
-        int eohIdx = 0;
-        for (int idx = buf.readerIndex(); idx < buf.writerIndex(); idx++) {
-            final char msg = (char) buf.getByte(idx);
-            if (msg == delim[eohIdx]) {
-                eohIdx++;
-                if (eohIdx == (delim.length)) {
-                    buf.readerIndex(idx + 1);
-                    // remove last 3 bytes because we did not add the 4th delim byte yet
-                    currentMessage.setLength(currentMessage.length() - (delim.length - 1));
-                    return true;
-                } else {
-                    currentMessage.append(msg);
-                }
-            } else {
-                currentMessage.append(msg);
-                eohIdx = 0;
+        final int digitsStart = idx;
+        int size = 0;
+        for (; idx < end; idx++) {
+            final int digit = Character.digit((char) buf.getByte(idx), HEX_BASE);
+            if (-1 == digit) {
+                break;
+            }
+            if (idx - digitsStart >= MAX_CHUNK_SIZE_DIGITS) {
+                digitsError(buf, start, end);
             }
+            size = size * HEX_BASE + digit;
         }
-
-        // drop the entire message and parse again
-        currentMessage.setLength(0);
-        return false;
+        while (idx < end && buf.getByte(idx) == ' ') {
+            idx++;
+        }
+        if (idx == digitsStart || (idx < end && buf.getByte(idx) != ';')) {
+            digitsError(buf, start, end);
+        }
+        return size;
     }
 
     /**
-     * A variant of parseForHeader where we can look for CRLFCRLF or just CRLF. TODO: merge the two functions.
+     * Fail on an invalid chunk size line.
      *
      * @param buf incoming buffer
-     * @param dec the decoder object
-     * @param delim delimiter
-     * @return true if parsing is complete
-     * @throws IcapException on failure
+     * @param start first byte of the line
+     * @param end end of the line
+     * @throws IcapException always
      */
-    private boolean parseForHeader(@Nonnull final ByteBuf buf, @Nonnull final IcapMessageDecoder dec, @Nonnull final byte[] delim)
-            throws IcapException {
-
-        // logger.debug(" parseHeader r:" + buf.readerIndex() + ", w:" + buf.writerIndex(), null);
-        if (buf.readableBytes() < delim.length) {
-            // error
-            throw new IcapException(IcapException.FailureType.PARSE_ERROR);
-        }
-        int eohIdx = 0;
-        // delim bytes CRLF
-        final int eohLen = delim.length;
-        for (int idx = buf.readerIndex(); idx < buf.writerIndex(); idx++) {
-            final char msg = (char) buf.getByte(idx);
-            if (msg == delim[eohIdx]) {
-                eohIdx++;
-                if (eohIdx == (delim.length)) {
-                    // remove the last (eohLen -1) bytes as the last byte is yet to be added
-                    currentMessage.setLength(currentMessage.length() - (eohLen - 1));
-                    // next byte to be read is idx+1
-                    buf.readerIndex(idx + 1);
-                    return true;
-                } else {
-                    // length did not match, add the byte (as char) to global buffer
-                    currentMessage.append(msg);
-                }
-            } else {
-                currentMessage.append(msg);
-                eohIdx = 0;
-            }
-        }
-
-        currentMessage.setLength(0);
-        return false;
+    private static void digitsError(@Nonnull final ByteBuf buf, final int start, final int end) throws IcapException {
+        final String errorLenStr = buf.toString(start, Math.min(end - start, MAX_DEBUG_STR_LEN), StandardCharsets.ISO_8859_1);
+        throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("payloadLen", errorLenStr));
     }
 
     /**
-     * Parse ICAP headers.
+     * Returns the ICAP status code of the response.
      *
-     * @param buf message buffer
-     * @return headers
+     * @return status code, 0 if the status line was not parsed
      */
-    private String[] parseHeader(final String buf) {
-        final Pattern pat = Pattern.compile("\r\n");
-        return pat.split(buf);
+    public int getStatus() {
+        return status;
     }
 
     /**
+     * Returns the ICAP headers as strings, created on first use. Prefer {@link #getHeaders()}, which reads headers without copying them.
      *
      * @return icap message headers
      */
     public String[] getIcapHeaders() {
-        return icapHeaders;
+        return null != headers ? headers.toArray() : null;
+    }
+
+    /**
+     * Returns a view over the ICAP headers, for response consumers to read the headers they need.
+     *
+     * @return the headers, null until the ICAP header block is parsed
+     */
+    public IcapHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Look up an ICAP header by name, ignoring case.
+     *
+     * @param name header name without the colon
+     * @return the trimmed header value, null if the header is not present
+     */
+    public String getIcapHeader(@Nonnull final String name) {
+        return null != headers ? headers.get(name) : null;
     }
 
     /** ICAP message states - when parsing. */
@@ -517,11 +570,15 @@ public class IcapMessage {
         /** parsing ICAP message. */
         PARSE_ICAP_MESSAGE,
         /** parsing ICAP response header. */
-        PARSE_RES_HEADER, PARSE_RES_BODY,
+        PARSE_RES_HEADER,
         /** Parsing ICAP payload length. */
         PARSE_RES_PAYLOAD_LENGTH,
         /** Parsing ICAP payload. */
         PARSE_PAYLOAD,
+        /** Parsing the CRLF ending a chunk. */
+        PARSE_PAYLOAD_END,
+        /** Parsing the trailer after the last chunk. */
+        PARSE_PAYLOAD_TRAILER,
         /** Parsing complete. */
         PARSE_DONE
     }
@@ -3,54 +3,66 @@ package com.lafaspot.icap.client.codec;
 import com.lafaspot.icap.client.IcapResponseConsumer;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.lafaspot.logfast.logging.Logger;
 
 /**
- * Decoder to parse ICAP messages from Symantec server.
+ * Decoder to parse ICAP messages from Symantec server. Bytes are accumulated by {@link ByteToMessageDecoder}, the message being parsed
+ * keeps its own scan state, so a response arriving in many small reads is not re-parsed from the start on every read.
  *
  * @author kraman
  *
  */
-public class IcapMessageDecoder extends ReplayingDecoder<IcapMessage> {
+public class IcapMessageDecoder extends ByteToMessageDecoder {
 
     /** The logger object. */
     private final Logger logger;
 
-    /** IcapResponse consumer object. */
-    private final IcapResponseConsumer icapResponseConsumer;
+    /** The message being parsed. */
+    private IcapMessage message;
+
+    /** IcapResponse consumer object for the scan in progress. */
+    private volatile IcapResponseConsumer icapResponseConsumer;
+
+    /** Where the cleaned payload of the scan in progress is written, null to collect it in the result. */
+    private volatile WritableByteChannel resultSink;
 
     /**
      * Constructor for the decoder.
      *
      * @param logger the logger object
-     * @param icapResponseConsumer In ICAP response consumer object that will be used to parse icap response message
      */
-    public IcapMessageDecoder(@Nonnull final Logger logger, @Nonnull final IcapResponseConsumer icapResponseConsumer) {
-        super(new IcapMessage(logger));
+    public IcapMessageDecoder(@Nonnull final Logger logger) {
         this.logger = logger;
-        this.icapResponseConsumer = icapResponseConsumer;
+        this.message = new IcapMessage(logger);
     }
 
     @Override
     protected void decode(final ChannelHandlerContext ctx, final ByteBuf buf, final List<Object> out) throws Exception {
 
         // logger.debug("<- replay ri " + buf.readerIndex() + ", wi " + buf.writerIndex() + ", th " + Thread.currentThread().getId(), null);
-        IcapMessage msg = state();
+        final IcapMessage msg = message;
         msg.parse(buf, this);
         if (msg.parsingDone()) {
             out.add(msg);
-            final IcapMessage newMsg = new IcapMessage(logger);
-            state(newMsg);
+            message = new IcapMessage(logger);
         }
 
     }
 
+    @Override
+    protected void handlerRemoved0(final ChannelHandlerContext ctx) throws Exception {
+        // the channel went away in the middle of a response
+        message.release();
+    }
+
     /**
      * Get icap response consumer.
      * @return icap response consumer
@@ -58,4 +70,30 @@ public class IcapMessageDecoder extends ReplayingDecoder<IcapMessage> {
     public IcapResponseConsumer getIcapResponseConsumer() {
         return icapResponseConsumer;
     }
+
+    /**
+     * Set the icap response consumer, called by the session at the start of every scan.
+     * @param icapResponseConsumer In ICAP response consumer object that will be used to parse icap response message
+     */
+    public void setIcapResponseConsumer(@Nonnull final IcapResponseConsumer icapResponseConsumer) {
+        this.icapResponseConsumer = icapResponseConsumer;
+    }
+
+    /**
+     * Get the result sink.
+     * @return the channel the cleaned payload is written to, null if it is collected in the result
+     */
+    @Nullable
+    public WritableByteChannel getResultSink() {
+        return resultSink;
+    }
+
+    /**
+     * Set the result sink, called by the session at the start of every scan. Chunks are written as they are decoded, on the channel's event
+     * loop, so the sink should not block for long.
+     * @param resultSink the channel the cleaned payload is written to, null to collect it in the result
+     */
+    public void setResultSink(@Nullable final WritableByteChannel resultSink) {
+        this.resultSink = resultSink;
+    }
 }
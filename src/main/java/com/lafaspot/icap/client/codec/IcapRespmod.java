@@ -3,8 +3,12 @@
  */
 package com.lafaspot.icap.client.codec;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import javax.annotation.Nonnull;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Command to send RESPMOD request to AV scan server.
@@ -17,12 +21,18 @@ public class IcapRespmod extends IcapRequest {
 
     /** Bytes denoting the end of the message. */
     private static final byte[] END_OF_MESSAGE = { '\r', '\n' };
+    /** Terminates a chunked body. */
+    private static final byte[] PREVIEW_TRAILER = "\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    /** Terminates a preview that carries the whole payload. */
+    private static final byte[] PREVIEW_IEOF_TRAILER = "\r\n0; ieof\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
     /** Bytes to be scanned. */
     protected final byte[] inBuffer;
     /** The ICAP message. */
     private final String respModString;
     /** Bytes denoting the end of the message. */
     private final byte[] trailerBytes;
+    /** Number of bytes sent as preview, -1 if the request is sent without preview. */
+    private final int previewSize;
 
     /**
      * Constructs a ICAP RESPMODE command.
@@ -39,6 +49,24 @@ public class IcapRespmod extends IcapRequest {
         this.respModString = respModString;
         this.inBuffer = inBuffer;
         this.trailerBytes = trailerBytes;
+        this.previewSize = -1;
+    }
+
+    /**
+     * Constructs a ICAP RESPMOD command that sends the first bytes of the payload as preview. The resp mod string ends with the size line of
+     * the preview chunk, the payload is not copied.
+     *
+     * @param uri symantec server uri
+     * @param respModString resp mod message string, including the Preview header
+     * @param inBuffer bytes to be scanned
+     * @param previewSize number of bytes sent in the preview
+     */
+    public IcapRespmod(@Nonnull final URI uri, @Nonnull final String respModString, @Nonnull final byte[] inBuffer, final int previewSize) {
+        super(uri);
+        this.respModString = respModString;
+        this.inBuffer = inBuffer;
+        this.trailerBytes = null;
+        this.previewSize = previewSize;
     }
 
     /**
@@ -77,4 +105,89 @@ public class IcapRespmod extends IcapRequest {
         return END_OF_MESSAGE;
     }
 
+    /**
+     * Assemble the request as it goes on the wire: headers, chunk size line, payload and trailer. The payload is wrapped, not copied, so the
+     * frame can be written with a single flush. For a preview request only the preview is included, see {@link #remainderToByteBuf()}.
+     *
+     * @return the RESPMOD frame
+     */
+    public ByteBuf toByteBuf() {
+        final ByteBuf headers = Unpooled.wrappedBuffer(respModString.getBytes(StandardCharsets.UTF_8));
+        if (isPreview()) {
+            return Unpooled.wrappedBuffer(headers, Unpooled.wrappedBuffer(inBuffer, 0, getPreviewLength()),
+                    Unpooled.wrappedBuffer(getPreviewTrailer()));
+        }
+        if (null == trailerBytes) {
+            return Unpooled.wrappedBuffer(headers, Unpooled.wrappedBuffer(inBuffer), Unpooled.wrappedBuffer(END_OF_MESSAGE));
+        }
+        return Unpooled.wrappedBuffer(headers, Unpooled.wrappedBuffer(inBuffer), Unpooled.wrappedBuffer(trailerBytes),
+                Unpooled.wrappedBuffer(END_OF_MESSAGE));
+    }
+
+    /**
+     * Assemble the part of a preview request's payload that did not fit in the preview, sent after the server answers 100 Continue. The
+     * payload is wrapped, not copied.
+     *
+     * @return the remainder frame
+     */
+    public ByteBuf remainderToByteBuf() {
+        final int offset = getPreviewLength();
+        return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(getRemainderChunkHeader().getBytes(StandardCharsets.US_ASCII)),
+                Unpooled.wrappedBuffer(inBuffer, offset, inBuffer.length - offset), Unpooled.wrappedBuffer(PREVIEW_TRAILER));
+    }
+
+    /**
+     * Is this request sent with a preview?
+     *
+     * @return true if only the first bytes are sent until the server asks for the rest
+     */
+    public boolean isPreview() {
+        return previewSize > 0;
+    }
+
+    /**
+     * Returns the number of payload bytes sent in the preview.
+     *
+     * @return preview length, 0 if the request is sent without preview
+     */
+    public int getPreviewLength() {
+        return isPreview() ? Math.min(previewSize, inBuffer.length) : 0;
+    }
+
+    /**
+     * Does the preview carry the whole payload? The server then answers with the final response instead of 100 Continue.
+     *
+     * @return true if the preview is terminated with ieof
+     */
+    public boolean isPreviewComplete() {
+        return isPreview() && inBuffer.length <= previewSize;
+    }
+
+    /**
+     * Returns the bytes terminating the preview chunk.
+     *
+     * @return zero chunk, with the ieof extension if the preview carries the whole payload
+     */
+    public byte[] getPreviewTrailer() {
+        return isPreviewComplete() ? PREVIEW_IEOF_TRAILER : PREVIEW_TRAILER;
+    }
+
+    /**
+     * Returns the chunk size line for the rest of the payload, sent after the server answers the preview with 100 Continue.
+     *
+     * @return chunk size line of the remainder
+     */
+    public String getRemainderChunkHeader() {
+        return Integer.toHexString(inBuffer.length - getPreviewLength()) + "\r\n";
+    }
+
+    /**
+     * Returns the bytes terminating the remainder chunk.
+     *
+     * @return zero chunk
+     */
+    public byte[] getRemainderTrailer() {
+        return PREVIEW_TRAILER;
+    }
+
 }
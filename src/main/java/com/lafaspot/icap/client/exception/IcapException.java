@@ -80,6 +80,7 @@ public class IcapException extends Exception {
      */
     public IcapException(@Nonnull final FailureType failureType, @Nullable final Throwable cause) {
         super(failureType.getMessage(), cause);
+        this.failureType = failureType;
     }
 
     /**
@@ -90,7 +91,17 @@ public class IcapException extends Exception {
      */
     public IcapException(@Nonnull final FailureType type, @Nonnull final IcapSession ctx) {
         this.context = ctx;
-        this.failureType = failureType;
+        this.failureType = type;
+    }
+
+    /**
+     * Returns the type of failure.
+     *
+     * @return failure type, null if the exception was created with a plain message
+     */
+    @Nullable
+    public FailureType getFailureType() {
+        return failureType;
     }
 
     /**
@@ -114,12 +125,20 @@ public class IcapException extends Exception {
         NO_FREE_CONNECTION("Ran out of connections"),
         /** Request to scan file failed. */
         SCAN_REQUEST_FAILED("Scan request failed"),
+        /** Writing the cleaned payload to the result sink failed. */
+        RESULT_SINK_FAILED("Failed to write the cleaned payload"),
         /** Internal error. */
         INTERNAL_ERROR("Internal error"),
         /** Invalid response from server. */
         SERVER_ERROR("Invalid response from server."),
         /** Reached max number of routes. */
         NO_MORE_ROUTES("Reached max routes."),
+        /** No route group registered under the service name. */
+        UNKNOWN_ROUTE_GROUP("Unknown route group."),
+        /** The circuit breaker of the route is open after repeated failures. */
+        CIRCUIT_OPEN("Route circuit open, server failing."),
+        /** The payload bytes in flight are over the client's budget. */
+        OVER_BYTE_BUDGET("Payload bytes in flight over budget."),
         /** conneciton reuse not implemented. */
         CONNECTION_REUSE_NOT_IMPLEMENTED("Connection reuse not implemented.");
 
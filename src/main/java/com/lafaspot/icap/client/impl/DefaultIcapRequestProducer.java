@@ -32,10 +32,18 @@ public class DefaultIcapRequestProducer extends AbstractIcapRequestProducer {
 
     @Override
     public IcapRespmod generateRespMod(final boolean keepAlive) {
-        byte[] copiedStream = new byte[dataToScan.length + TRAILER_BYTES.length];
-        System.arraycopy(dataToScan, 0, copiedStream, 0, dataToScan.length);
-        System.arraycopy(TRAILER_BYTES, 0, copiedStream, dataToScan.length, TRAILER_BYTES.length);
-        return new IcapRespmod(uri, constructIcapRespMod(SERVICE_NAME, keepAlive), copiedStream, TRAILER_BYTES);
+        return generateRespMod(keepAlive, -1, false);
+    }
+
+    @Override
+    public IcapRespmod generateRespMod(final boolean keepAlive, final int previewSize, final boolean allow204) {
+        final String respModString = constructIcapRespMod(SERVICE_NAME, keepAlive, previewSize, allow204);
+        if (previewSize > 0) {
+            // the session sends the preview and the remainder as slices of the payload
+            return new IcapRespmod(uri, respModString, dataToScan, previewSize);
+        }
+        // the payload is wrapped as is, the trailer goes out as its own component of the same frame
+        return new IcapRespmod(uri, respModString, dataToScan, TRAILER_BYTES);
     }
 
 }
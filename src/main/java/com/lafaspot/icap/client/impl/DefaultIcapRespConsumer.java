@@ -2,6 +2,7 @@ package com.lafaspot.icap.client.impl;
 
 import com.lafaspot.icap.client.AbstractIcapResponseConsumer;
 import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.codec.IcapHeaders;
 import com.lafaspot.icap.client.codec.IcapMessage;
 import com.lafaspot.icap.client.exception.IcapException;
 
@@ -14,13 +15,37 @@ import java.util.Arrays;
  */
 public class DefaultIcapRespConsumer extends AbstractIcapResponseConsumer {
 
+    /** Discard the cleaned payload, only the verdict is wanted. */
+    private final boolean verdictOnly;
+
+    /**
+     * Creates a consumer that returns the cleaned payload with the verdict.
+     */
+    public DefaultIcapRespConsumer() {
+        this(false);
+    }
+
+    /**
+     * Creates a consumer.
+     *
+     * @param verdictOnly true to discard the cleaned payload and return the verdict only
+     */
+    public DefaultIcapRespConsumer(final boolean verdictOnly) {
+        this.verdictOnly = verdictOnly;
+    }
+
+    @Override
+    public boolean isVerdictOnly() {
+        return verdictOnly;
+    }
+
     @Override
     public IcapResult responseReceived(final int status, @Nonnull final IcapMessage icapMessage) throws IcapException {
         switch (status) {
         case HTTP_STATUS_CODE_200:
-            return handleIcap200Ok(icapMessage.getIcapHeaders());
+            return handleIcap200Ok(icapMessage.getHeaders());
         case HTTP_STATUS_CODE_201:
-            return handleIcap201Ok(icapMessage.getIcapHeaders());
+            return handleIcap201Ok(icapMessage.getHeaders());
         case HTTP_STATUS_CODE_500:
         default:
             return new IcapResult();
@@ -33,32 +58,12 @@ public class DefaultIcapRespConsumer extends AbstractIcapResponseConsumer {
      * @param headers ICAP headers
      * @throws IcapException on failure
      */
-    private IcapResult handleIcap200Ok(@Nonnull final String[] headers) throws IcapException {
-        int index = 1;
+    private IcapResult handleIcap200Ok(@Nonnull final IcapHeaders headers) throws IcapException {
         IcapResult result = new IcapResult();
-        for (; index < headers.length; index++) {
-            if (headers[index].startsWith(ICAP_ENCAPSULATED_PREFIX)) {
-                int j = headers[index].indexOf(ICAP_RES_BODY_PREFIX);
-                if (-1 != j) {
-                    String resBodyStr = headers[index].substring(j + ICAP_RES_BODY_PREFIX.length() + 1);
-
-                    try {
-                        // TODO: validate the parsed value
-                        Integer.parseInt(resBodyStr.trim());
-                        result.setNumViolations(0);
-                        result.setDisposition(IcapResult.Disposition.CLEAN);
-                        break;
-                    } catch (NumberFormatException e) {
-                        final String partOfTheErrorStr = (resBodyStr.length() > MAX_DEBUG_STR_LEN ? resBodyStr.substring(0,
-                                (MAX_DEBUG_STR_LEN - 1)) : resBodyStr);
-                        throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("bodyLen", partOfTheErrorStr));
-                    }
-
-                } else if (headers[index].indexOf(ICAP_NULL_BODY_PREFIX) != -1) {
-                    // done
-                    return result;
-                }
-            }
+        // a body means the file came back unmodified, null-body has no verdict
+        if (-1 != headers.getEncapsulatedOffset(ICAP_RES_BODY_PREFIX)) {
+            result.setNumViolations(0);
+            result.setDisposition(IcapResult.Disposition.CLEAN);
         }
         return result;
     }
@@ -69,49 +74,33 @@ public class DefaultIcapRespConsumer extends AbstractIcapResponseConsumer {
      * @param headers ICAP headers
      * @throws IcapException on failure
      */
-    private IcapResult handleIcap201Ok(@Nonnull final String[] headers) throws IcapException {
+    private IcapResult handleIcap201Ok(@Nonnull final IcapHeaders headers) throws IcapException {
 
-        // skip first status line
-        int index = 1;
         IcapResult result = new IcapResult();
-        for (; index < headers.length; index++) {
-            if (headers[index].startsWith(ICAP_VIOLATIONS_PREFIX)) {
-                break;
-            }
-        }
-
-        int numViolations;
-        if (index < headers.length) {
-            final int k = headers[index].indexOf(':');
-            if (-1 != k) {
-                try {
-                    numViolations = Integer.parseInt(headers[index].substring(k + 1).trim());
-                    result.setNumViolations(numViolations);
-                } catch (NumberFormatException e) {
-                    final String partOfTheErrorStr = (headers[index].length() > MAX_DEBUG_STR_LEN ? headers[index].substring(0,
-                            (MAX_DEBUG_STR_LEN - 1))
-                            : headers[index]);
-                    throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("numViolations", partOfTheErrorStr));
-                }
-            } else {
-                throw new IcapException(IcapException.FailureType.PARSE_ERROR);
-            }
-            // increment
-            index++;
+        int index = headers.indexOf(ICAP_VIOLATIONS_HEADER);
 
-            final int headersPerViolation = 4;
-            // validate header size
-            if (index + (headersPerViolation * numViolations) < headers.length) {
-                // look at first violation only
-                result.setViolationFilename(headers[index++]);
-                result.setViolationName(headers[index++]);
-                result.setViolationId(headers[index++]);
-                String dispositionStr = headers[index++];
-                result.setDispositionAsStr(dispositionStr);
-            } else {
-                throw new IcapException(IcapException.FailureType.PARSE_ERROR);
-            }
+        if (-1 == index) {
+            throw new IcapException(IcapException.FailureType.PARSE_ERROR);
+        }
+        final int numViolations = headers.getInt(ICAP_VIOLATIONS_HEADER, -1);
+        if (-1 == numViolations) {
+            final String header = headers.getLine(index);
+            final String partOfTheErrorStr = (header.length() > MAX_DEBUG_STR_LEN ? header.substring(0, (MAX_DEBUG_STR_LEN - 1)) : header);
+            throw new IcapException(IcapException.FailureType.PARSE_ERROR, Arrays.asList("numViolations", partOfTheErrorStr));
+        }
+        result.setNumViolations(numViolations);
+        // increment
+        index++;
 
+        final int headersPerViolation = 4;
+        // validate header size
+        if (index + (headersPerViolation * numViolations) < headers.size()) {
+            // look at first violation only
+            result.setViolationFilename(headers.getLine(index++));
+            result.setViolationName(headers.getLine(index++));
+            result.setViolationId(headers.getLine(index++));
+            String dispositionStr = headers.getLine(index++);
+            result.setDispositionAsStr(dispositionStr);
         } else {
             throw new IcapException(IcapException.FailureType.PARSE_ERROR);
         }
@@ -119,6 +108,6 @@ public class DefaultIcapRespConsumer extends AbstractIcapResponseConsumer {
     }
 
 
-    /** ICAP violations found prefix. */
-    private static final String ICAP_VIOLATIONS_PREFIX = "X-Violations-Found:";
+    /** ICAP violations found header. */
+    private static final String ICAP_VIOLATIONS_HEADER = "X-Violations-Found";
 }
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+/**
+ * Concurrency limit of a route that adapts to the server's response time, with additive increase and multiplicative decrease (AIMD). Each
+ * RESPMOD is timed from the last request byte written to the first response byte read, and compared with the lowest time seen recently. A
+ * time within the tolerance while the route is busy raises the limit by one over the limit, about one per round of the requests in flight;
+ * a slower one or a timeout cuts it by a tenth. The next limit's worth of samples after a cut on a slow time is skipped, those requests
+ * went out at the old concurrency and would cut the limit again for the same congestion. The limit settles where the server answers about
+ * as fast as when idle, instead of at a static session count guessed per deployment.
+ * <p>
+ * Timing from the last byte written to the first byte read leaves the upload and download of the payload out, so large and small files
+ * share one baseline. Empty payloads answered without the server give no sample. OPTIONS requests give none either: the server answers
+ * them from its configuration without scanning anything, far faster than any RESPMOD, so a single one would set the lowest time and every
+ * scan after it would look congested.
+ * </p>
+ */
+public class IcapAdaptiveLimit {
+
+    /** Default response time over the lowest one that counts as congestion. */
+    public static final double DEFAULT_TOLERANCE = 2.0;
+
+    /** Share of the limit kept on congestion. */
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /** Samples after which the lowest response time is measured again, so the baseline follows the server. */
+    private static final int BASELINE_SAMPLES = 1000;
+
+    /** Lowest limit. */
+    private final int minLimit;
+
+    /** Highest limit. */
+    private final int maxLimit;
+
+    /** Response time over the lowest one that counts as congestion. */
+    private final double tolerance;
+
+    /** Current limit, written under this. */
+    private volatile int limit;
+
+    /** Exact limit, guarded by this. */
+    private double exactLimit;
+
+    /** Lowest response time of the current baseline period, in microseconds, guarded by this. */
+    private long minMicros = Long.MAX_VALUE;
+
+    /** Lowest response time of the previous baseline period, in microseconds, guarded by this. */
+    private long baselineMicros = Long.MAX_VALUE;
+
+    /** Samples in the current baseline period, guarded by this. */
+    private int samples;
+
+    /** Samples still to skip after a cut on a slow response time, guarded by this. */
+    private int skipped;
+
+    /**
+     * Creates a limit starting at its lowest value.
+     *
+     * @param minLimit lowest limit, at least 1
+     * @param maxLimit highest limit
+     * @param tolerance response time over the lowest one that counts as congestion, such as 2 for twice as slow
+     */
+    public IcapAdaptiveLimit(final int minLimit, final int maxLimit, final double tolerance) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = tolerance;
+        this.exactLimit = this.minLimit;
+        this.limit = this.minLimit;
+    }
+
+    /**
+     * Record the response time of a completed request.
+     *
+     * @param micros time from the last request byte written to the first response byte read, in microseconds
+     * @param inFlight requests on the route when it completed, itself included
+     */
+    public synchronized void onSample(final long micros, final int inFlight) {
+        if (++samples >= BASELINE_SAMPLES) {
+            baselineMicros = minMicros;
+            minMicros = Long.MAX_VALUE;
+            samples = 0;
+        }
+        minMicros = Math.min(minMicros, micros);
+        final long lowest = Math.min(minMicros, baselineMicros);
+        if (skipped > 0) {
+            skipped--;
+        } else if (micros > Math.max(1, lowest) * tolerance) {
+            skipped = limit;
+            decrease();
+        } else if (inFlight * 2 >= limit) {
+            // only grow while the limit is actually used, by one per limit's worth of samples so it does not race past the knee
+            exactLimit = Math.min(maxLimit, exactLimit + 1 / exactLimit);
+            limit = (int) exactLimit;
+        }
+    }
+
+    /**
+     * Record a request that timed out.
+     */
+    public synchronized void onDrop() {
+        decrease();
+    }
+
+    /**
+     * Cut the limit on congestion. Called with this locked.
+     */
+    private void decrease() {
+        exactLimit = Math.max(minLimit, exactLimit * BACKOFF_RATIO);
+        limit = (int) exactLimit;
+    }
+
+    /**
+     * Returns the number of requests allowed on the route at once.
+     *
+     * @return current limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
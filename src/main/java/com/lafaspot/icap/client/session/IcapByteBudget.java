@@ -0,0 +1,382 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.exception.IcapException.FailureType;
+
+/**
+ * Client-wide budget of payload bytes in flight, to keep a burst of large attachments from running the JVM out of memory. A scan takes
+ * as many bytes as its payload before the request is sent and gives them back once its result is delivered. The JVM holds roughly
+ * twice that while the scan runs: the caller's payload, which the request is written from without a copy, and the cleaned payload of the
+ * response.
+ * <p>
+ * When the budget is used up a scan either blocks the caller, waits without blocking for bytes to be given back, or is rejected with
+ * OVER_BYTE_BUDGET, per the {@link Admission} the budget was created with. Waiting scans are admitted in order. A payload larger than the
+ * whole budget is admitted alone. A budget with {@link Admission#BLOCK} must not be used from an event-loop thread: the bytes it waits
+ * for are given back on the event loops, a blocked one may never get them.
+ * </p>
+ * <p>
+ * Bytes are mostly given back on an event-loop thread, as a scan's result comes in. Waiting scans are started on the budget's executor
+ * instead, since starting a scan may wait for the pool lock or connect a session.
+ * </p>
+ */
+public class IcapByteBudget {
+
+    /**
+     * What a scan does when the budget is used up.
+     */
+    public enum Admission {
+        /** Block the caller until the bytes are free, up to the wait time. Not for callers on an event-loop thread. */
+        BLOCK,
+        /** Return the scan's future right away, the scan starts once the bytes are free. */
+        WAIT,
+        /** Fail the scan right away. */
+        REJECT
+    }
+
+    /** Max payload bytes in flight. */
+    private final long maxBytes;
+
+    /** What a scan does when the budget is used up. */
+    private final Admission admission;
+
+    /** Max time a blocked caller waits, in milliseconds. */
+    private final long maxWaitMillis;
+
+    /** Starts the waiting scans once their bytes are taken. */
+    private final Executor executor;
+
+    /** Bytes taken, guarded by lock. */
+    private long usedBytes;
+
+    /** Scans waiting for bytes, oldest first, guarded by lock. */
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+    /** Lock for synchronizing. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Number of scans rejected or timed out for lack of bytes. */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates a budget.
+     *
+     * @param maxBytes max payload bytes in flight
+     * @param admission what a scan does when the budget is used up
+     * @param maxWaitMillis max time a blocked caller waits, in milliseconds, used by {@link Admission#BLOCK}
+     */
+    public IcapByteBudget(final long maxBytes, @Nonnull final Admission admission, final long maxWaitMillis) {
+        this(maxBytes, admission, maxWaitMillis, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a budget starting its waiting scans on the given executor.
+     *
+     * @param maxBytes max payload bytes in flight
+     * @param admission what a scan does when the budget is used up
+     * @param maxWaitMillis max time a blocked caller waits, in milliseconds, used by {@link Admission#BLOCK}
+     * @param executor starts the waiting scans of {@link Admission#WAIT}, must not run tasks on an event-loop thread
+     */
+    public IcapByteBudget(final long maxBytes, @Nonnull final Admission admission, final long maxWaitMillis,
+            @Nonnull final Executor executor) {
+        this.maxBytes = maxBytes;
+        this.admission = admission;
+        this.maxWaitMillis = maxWaitMillis;
+        this.executor = executor;
+    }
+
+    /**
+     * Start a scan once its payload fits in the budget. The bytes are given back when the scan completes, fails or is cancelled.
+     *
+     * @param payloadBytes size of the payload
+     * @param scan starts the scan
+     * @return the future of the scan
+     * @throws IcapException OVER_BYTE_BUDGET if the scan is rejected or a blocked caller waited too long, or if the scan could not start
+     */
+    @Nonnull
+    public IcapFuture admit(final long payloadBytes, @Nonnull final IcapScanCoalescer.Scan scan) throws IcapException {
+        final long bytes = Math.min(payloadBytes, maxBytes);
+        if (admission == Admission.REJECT) {
+            if (!tryAcquire(bytes)) {
+                rejectedCount.incrementAndGet();
+                throw new IcapException(FailureType.OVER_BYTE_BUDGET);
+            }
+            return start(bytes, scan);
+        }
+        final CompletableFuture<Void> permit = acquire(bytes);
+        if (!permit.isDone()) {
+            if (admission == Admission.WAIT) {
+                return startWhenAdmitted(bytes, permit, scan);
+            }
+            try {
+                permit.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                if (!permit.cancel(false)) {
+                    // admitted just as the wait ended
+                    release(bytes);
+                }
+                rejectedCount.incrementAndGet();
+                throw new IcapException(FailureType.OVER_BYTE_BUDGET, e);
+            }
+        }
+        return start(bytes, scan);
+    }
+
+    /**
+     * Start a scan whose bytes are taken, giving them back when it completes.
+     *
+     * @param bytes bytes taken for the scan
+     * @param scan starts the scan
+     * @return the future of the scan
+     * @throws IcapException if the scan could not start
+     */
+    @Nonnull
+    private IcapFuture start(final long bytes, @Nonnull final IcapScanCoalescer.Scan scan) throws IcapException {
+        final IcapFuture future;
+        try {
+            future = scan.start();
+        } catch (IcapException | RuntimeException e) {
+            release(bytes);
+            throw e;
+        }
+        // given back before the caller sees the result
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                release(bytes);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Return a future right away for a scan that waits for its bytes, and start the scan on the executor once they are taken.
+     *
+     * @param bytes bytes to take for the scan
+     * @param permit completes once the bytes are taken
+     * @param scan starts the scan
+     * @return the future of the scan
+     */
+    @Nonnull
+    private IcapFuture startWhenAdmitted(final long bytes, @Nonnull final CompletableFuture<Void> permit,
+            @Nonnull final IcapScanCoalescer.Scan scan) {
+        final IcapFuture future = new IcapFuture();
+        final AtomicReference<IcapFuture> started = new AtomicReference<IcapFuture>();
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                // give up the place in the queue, or stop the scan, if the caller cancels
+                permit.cancel(false);
+                final IcapFuture inner = started.get();
+                if (null != inner) {
+                    inner.cancel(false);
+                }
+            }
+        });
+        // not on the thread giving the bytes back, it is often an event loop
+        permit.whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(final Void ignored, final Throwable cause) {
+                if (null != cause) {
+                    return;
+                }
+                if (future.isDone()) {
+                    release(bytes);
+                    return;
+                }
+                final IcapFuture inner;
+                try {
+                    inner = start(bytes, scan);
+                } catch (IcapException e) {
+                    future.done(e);
+                    return;
+                } catch (RuntimeException e) {
+                    // start() gave the bytes back, for instance when the event loop rejected the scan
+                    future.done(new IcapException(FailureType.INTERNAL_ERROR, e));
+                    return;
+                }
+                started.set(inner);
+                inner.whenComplete(new BiConsumer<IcapResult, Throwable>() {
+                    @Override
+                    public void accept(final IcapResult result, final Throwable failure) {
+                        if (null == failure) {
+                            future.done(result);
+                        } else if (failure instanceof Exception) {
+                            future.done((Exception) failure);
+                        } else {
+                            future.done(new IcapException(FailureType.INTERNAL_ERROR, failure));
+                        }
+                    }
+                });
+                if (future.isDone()) {
+                    inner.cancel(false);
+                }
+            }
+        }, executor);
+        return future;
+    }
+
+    /**
+     * Take bytes from the budget if they are free and no scan is waiting for bytes.
+     *
+     * @param bytes bytes to take
+     * @return true if the bytes were taken
+     */
+    private boolean tryAcquire(final long bytes) {
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && usedBytes + bytes <= maxBytes) {
+                usedBytes += bytes;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take bytes from the budget, or queue for them behind the scans already waiting.
+     *
+     * @param bytes bytes to take
+     * @return completes once the bytes are taken, cancel it to leave the queue
+     */
+    @Nonnull
+    private CompletableFuture<Void> acquire(final long bytes) {
+        lock.lock();
+        try {
+            if (tryAcquire(bytes)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final Waiter waiter = new Waiter(bytes);
+            waiters.add(waiter);
+            return waiter.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give bytes back and admit the waiting scans that now fit, oldest first.
+     *
+     * @param bytes bytes to give back
+     */
+    private void release(final long bytes) {
+        List<Waiter> admitted = Collections.emptyList();
+        lock.lock();
+        try {
+            usedBytes -= bytes;
+            while (!waiters.isEmpty()) {
+                final Waiter waiter = waiters.peek();
+                if (waiter.future.isDone()) {
+                    // cancelled
+                    waiters.poll();
+                    continue;
+                }
+                if (usedBytes + waiter.bytes > maxBytes) {
+                    break;
+                }
+                waiters.poll();
+                usedBytes += waiter.bytes;
+                if (admitted.isEmpty()) {
+                    admitted = new ArrayList<Waiter>();
+                }
+                admitted.add(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (final Waiter waiter : admitted) {
+            if (!waiter.future.complete(null)) {
+                // cancelled after it was admitted
+                release(waiter.bytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the payload bytes in flight.
+     *
+     * @return bytes taken
+     */
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the max payload bytes in flight.
+     *
+     * @return budget size
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of scans waiting for bytes.
+     *
+     * @return queue depth
+     */
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of scans rejected, or timed out while blocked, for lack of bytes.
+     *
+     * @return rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * A scan waiting for bytes.
+     */
+    private static class Waiter {
+        /** Bytes the scan needs. */
+        private final long bytes;
+
+        /** Completes once the bytes are taken. */
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        /**
+         * Creates a waiter.
+         *
+         * @param bytes bytes the scan needs
+         */
+        Waiter(final long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.time.Clock;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Circuit breaker of one route. It opens after a run of consecutive failures (connect failures, server errors and timeouts), and while
+ * open scans fail right away instead of waiting out the connect timeout of a dead server. Once the open time is over the breaker goes
+ * half-open and lets a single OPTIONS probe through: the breaker closes if the server answers, and opens again otherwise.
+ */
+public class IcapCircuitBreaker {
+
+    /**
+     * Breaker states.
+     */
+    public enum State {
+        /** Scans go through. */
+        CLOSED,
+        /** Scans fail fast until the open time is over. */
+        OPEN,
+        /** A probe is in progress, scans still fail fast. */
+        HALF_OPEN
+    }
+
+    /** Consecutive failures that open the breaker. */
+    private final int failureThreshold;
+
+    /** Time the breaker stays open before a probe, in milliseconds. */
+    private final long openMillis;
+
+    /** clock object. */
+    private final Clock clock;
+
+    /** Current state, guarded by this. */
+    private State state = State.CLOSED;
+
+    /** Consecutive failures while closed, guarded by this. */
+    private int failures;
+
+    /** Time the breaker last opened, guarded by this. */
+    private long openedAt;
+
+    /** Number of times the breaker opened, guarded by this. */
+    private long openCount;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMillis time the breaker stays open before a probe, in milliseconds
+     */
+    public IcapCircuitBreaker(final int failureThreshold, final long openMillis) {
+        this(failureThreshold, openMillis, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a closed breaker with the given clock.
+     *
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMillis time the breaker stays open before a probe, in milliseconds
+     * @param clock the clock used to time the open state
+     */
+    public IcapCircuitBreaker(final int failureThreshold, final long openMillis, @Nonnull final Clock clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * May a scan go to the route?
+     *
+     * @return true while the breaker is closed
+     */
+    public synchronized boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Move an open breaker to half-open once its open time is over. Only one caller gets true, and must send the probe.
+     *
+     * @return true if the caller must probe the route
+     */
+    public synchronized boolean tryProbe() {
+        if (state != State.OPEN || clock.millis() - openedAt < openMillis) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    /**
+     * Record a scan or a probe that got an answer from the server, closing the breaker.
+     */
+    public synchronized void onSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Record a failed connect, a server error or a timeout. A failed probe opens the breaker again.
+     */
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = clock.millis();
+            failures = 0;
+            openCount++;
+        }
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return breaker state
+     */
+    @Nonnull
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of times the breaker opened.
+     *
+     * @return open count
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+}
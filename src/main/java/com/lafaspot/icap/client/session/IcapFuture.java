@@ -3,36 +3,44 @@
  */
 package com.lafaspot.icap.client.session;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Nonnull;
 
 import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.exception.IcapException.FailureType;
 
 /**
+ * The future of one scan. Completed from the channel's I/O thread when the response is decoded, so callers can compose on it with the
+ * {@link java.util.concurrent.CompletionStage} methods instead of parking a thread in get().
+ *
+ * Completing the future from outside, with {@link #complete} or {@link #completeExceptionally}, ends the scan the same way a cancel does:
+ * the listeners run and the session leaves its pool. The outcome of a scan that is over cannot be replaced, the obtrude methods only
+ * complete a scan still running.
+ *
  * @author kraman
  *
  */
-public class IcapFuture implements Future<IcapResult> {
+public class IcapFuture extends CompletableFuture<IcapResult> {
 
-    /** Holds the current session. */
+    /** Holds the session running the scan, null while waiting for one. */
     private final AtomicReference<IcapSession> sessionRef = new AtomicReference<IcapSession>();
-    /** Is this future task done? */
-    private final AtomicBoolean isDone = new AtomicBoolean(false);
+    /** The scan is over, guarded by lock. */
+    private boolean over;
     /** Holds the failure cause. */
     private final AtomicReference<Exception> causeRef = new AtomicReference<Exception>();
     /** Used to synchronize threads. */
     private final Object lock = new Object();
     /** holds the result object. */
     private final AtomicReference<IcapResult> resultRef = new AtomicReference<IcapResult>();
-    /** Wait interval when the user calls get(). */
-    private static final int GET_WAIT_INTERVAL_MILLIS = 1000;
+    /** Callbacks run once the scan is over, guarded by lock. */
+    private final List<BiConsumer<IcapResult, Exception>> listeners = new ArrayList<BiConsumer<IcapResult, Exception>>();
 
     /**
      * Constructor.
@@ -44,36 +52,114 @@ public class IcapFuture implements Future<IcapResult> {
     }
 
     /**
-     * Cancel the Future task. TODO:
+     * Constructor for a scan still waiting for a session, the session is bound once the scan starts on it.
+     */
+    public IcapFuture() {
+    }
+
+    /**
+     * Bind the session that runs the scan.
      *
-     * @param mayInterruptIfRunning should the task be cancelled if running?
-     * @return true if cancel was successful
+     * @param session the session
+     * @return false if the scan is already over, cancelled while waiting for the session
+     */
+    boolean attach(@Nonnull final IcapSession session) {
+        synchronized (lock) {
+            if (over) {
+                return false;
+            }
+            sessionRef.set(session);
+            return true;
+        }
+    }
+
+    /**
+     * Is the scan over? Unlike isDone() this is true as soon as a cancel starts, before its listeners run.
+     *
+     * @return true once the scan completed, failed or was cancelled
+     */
+    boolean isOver() {
+        synchronized (lock) {
+            return over;
+        }
+    }
+
+    /**
+     * Cancel the scan. The session closes its channel, which stops any remaining writes, and leaves its pool right away. Listeners are called
+     * with a {@link CancellationException}. Nothing happens if the scan is already over.
+     *
+     * @param mayInterruptIfRunning ignored, the scan runs on the event loop and is never interrupted
+     * @return true if the scan was cancelled by this call
      */
     @Override
     public boolean cancel(final boolean mayInterruptIfRunning) {
-        // TODO
-        return false;
+        final IcapSession session;
+        final List<BiConsumer<IcapResult, Exception>> toRun;
+        final CancellationException cause = new CancellationException();
+        synchronized (lock) {
+            if (over) {
+                return false;
+            }
+            over = true;
+            session = sessionRef.getAndSet(null);
+            causeRef.set(cause);
+            toRun = new ArrayList<BiConsumer<IcapResult, Exception>>(listeners);
+            listeners.clear();
+        }
+        if (null != session) {
+            session.cancel(this);
+        }
+        for (final BiConsumer<IcapResult, Exception> listener : toRun) {
+            listener.accept(null, cause);
+        }
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * Complete the scan with a result supplied by the caller. A scan still running is abandoned, its session is closed.
+     *
+     * @param value the result
+     * @return true if this call completed the scan
+     */
+    @Override
+    public boolean complete(final IcapResult value) {
+        return finish(value, null, null, true);
     }
 
     /**
-     * Is this Future cancelled? TODO: return return true if cancelled
+     * Fail the scan with a cause supplied by the caller. A scan still running is abandoned, its session is closed.
      *
-     * @return true if Future was cancelled
+     * @param ex the failure cause
+     * @return true if this call completed the scan
      */
     @Override
-    public boolean isCancelled() {
-        // TODO
-        return false;
+    public boolean completeExceptionally(final Throwable ex) {
+        return finish(null, asException(ex), ex, true);
     }
 
     /**
-     * Is the future task complete?
+     * Same as {@link #complete}, the result of a scan that is over cannot be replaced and IllegalStateException is thrown instead.
      *
-     * @return true if task is complete
+     * @param value the result
      */
     @Override
-    public boolean isDone() {
-        return isDone.get();
+    public void obtrudeValue(final IcapResult value) {
+        if (!complete(value)) {
+            throw new IllegalStateException("scan is over");
+        }
+    }
+
+    /**
+     * Same as {@link #completeExceptionally}, the outcome of a scan that is over cannot be replaced and IllegalStateException is thrown
+     * instead.
+     *
+     * @param ex the failure cause
+     */
+    @Override
+    public void obtrudeException(final Throwable ex) {
+        if (!completeExceptionally(ex)) {
+            throw new IllegalStateException("scan is over");
+        }
     }
 
     /**
@@ -82,16 +168,7 @@ public class IcapFuture implements Future<IcapResult> {
      * @param result the result to be set
      */
     protected void done(@Nonnull final IcapResult result) {
-        synchronized (lock) {
-            if (!isDone.get()) {
-                IcapSession session = sessionRef.get();
-                if (sessionRef.compareAndSet(session, null)) {
-                    resultRef.set(result);
-                    isDone.set(true);
-                }
-            }
-            lock.notify();
-        }
+        finish(result, null, null, false);
     }
 
     /**
@@ -100,72 +177,69 @@ public class IcapFuture implements Future<IcapResult> {
      * @param cause the exception that caused execution to fail
      */
     protected void done(final Exception cause) {
-        synchronized (lock) {
-            if (!isDone.get()) {
-                IcapSession session = sessionRef.get();
-                if (sessionRef.compareAndSet(session, null)) {
-                    causeRef.set(cause);
-                    isDone.set(true);
-                }
-            }
-            lock.notify();
-        }
+        finish(null, cause, cause, false);
     }
 
     /**
-     * Synchronously get the result, will hold the thread until the task is complete.
+     * Record the outcome, run the callbacks added by {@link #addListener}, then complete the future. Those callbacks run before get() returns
+     * and before the dependent stages, so whatever they record is visible to the caller once it has the result.
      *
-     * @return the result object
-     * @throws InterruptedException on failure
-     * @throws ExecutionException on failure
+     * @param result the result, null on failure
+     * @param cause the failure cause handed to the callbacks, null on success
+     * @param failure the failure the future completes with, null on success
+     * @param abandon the outcome does not come from the session, which is still running the scan and must let go of it
+     * @return true if this call completed the scan
      */
-    @Override
-    public IcapResult get() throws InterruptedException, ExecutionException {
+    private boolean finish(final IcapResult result, final Exception cause, final Throwable failure, final boolean abandon) {
+        final IcapSession session;
+        final List<BiConsumer<IcapResult, Exception>> toRun;
         synchronized (lock) {
-            while (!isDone.get()) {
-                lock.wait(GET_WAIT_INTERVAL_MILLIS);
+            if (over) {
+                return false;
             }
-            lock.notify();
+            over = true;
+            session = sessionRef.getAndSet(null);
+            resultRef.set(result);
+            causeRef.set(cause);
+            toRun = new ArrayList<BiConsumer<IcapResult, Exception>>(listeners);
+            listeners.clear();
+        }
+        if (abandon && null != session) {
+            session.cancel(this);
         }
-        if (causeRef.get() != null) {
-            throw new ExecutionException(causeRef.get());
-        } else if (isCancelled()) {
-            throw new CancellationException();
-        } else {
-            return resultRef.get();
+        for (final BiConsumer<IcapResult, Exception> listener : toRun) {
+            listener.accept(result, cause);
         }
+        if (null != failure) {
+            return super.completeExceptionally(failure);
+        }
+        return super.complete(result);
     }
 
     /**
-     * Synchronously get the result, will hold the thread until the task is complete or timeout is passed.
+     * The cause handed to the callbacks, which only take an {@link Exception}.
      *
-     * @return the result object
-     * @param timeout time to wait before giving up
-     * @param unit unit value for timeout
-     * @throws InterruptedException on failure
-     * @throws ExecutionException on failure
-     * @throws TimeoutException when timeout has expired
+     * @param ex the failure cause
+     * @return the cause itself, or wrapped in an {@link IcapException} when it is an Error
      */
-    @Override
-    public IcapResult get(final long timeout, @Nonnull final TimeUnit unit) throws InterruptedException, ExecutionException,
-            TimeoutException {
+    @Nonnull
+    private static Exception asException(@Nonnull final Throwable ex) {
+        return ex instanceof Exception ? (Exception) ex : new IcapException(FailureType.INTERNAL_ERROR, ex);
+    }
+
+    /**
+     * Run a callback once the scan is over, right away if it already is. The callback runs on the thread completing the future, usually
+     * the channel's I/O thread, and must not block.
+     *
+     * @param listener called with the result, or with the failure cause
+     */
+    public void addListener(@Nonnull final BiConsumer<IcapResult, Exception> listener) {
         synchronized (lock) {
-            if (!isDone.get()) {
-                lock.wait(unit.toMillis(timeout));
+            if (!over) {
+                listeners.add(listener);
+                return;
             }
-            lock.notify();
-        }
-        if (isDone.get()) {
-            if (causeRef.get() != null) {
-                throw new ExecutionException(causeRef.get());
-            } else if (isCancelled()) {
-                throw new CancellationException();
-            } else {
-                return resultRef.get();
-            }
-        } else {
-            throw new TimeoutException("Timeout reached.");
         }
+        listener.accept(resultRef.get(), causeRef.get());
     }
-
 }
@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent scans of a route, to tell how long a scan normally takes there. A fixed window of samples is kept,
+ * percentiles are computed on demand from a sorted copy.
+ */
+public class IcapLatencyTracker {
+
+    /** Default number of samples kept. */
+    public static final int DEFAULT_WINDOW = 256;
+
+    /** Samples needed before a percentile is reported. */
+    private static final int MIN_SAMPLES = 20;
+
+    /** Percentiles are given out of a hundred. */
+    private static final double PERCENT = 100;
+
+    /** Ring of samples, guarded by this. */
+    private final long[] samples;
+
+    /** Next slot to write, guarded by this. */
+    private int next;
+
+    /** Number of samples written, up to the window, guarded by this. */
+    private int count;
+
+    /**
+     * Creates a tracker keeping the default number of samples.
+     */
+    public IcapLatencyTracker() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a tracker keeping the given number of samples.
+     *
+     * @param window number of recent samples kept
+     */
+    public IcapLatencyTracker(final int window) {
+        this.samples = new long[window];
+    }
+
+    /**
+     * Record the latency of a completed scan.
+     *
+     * @param millis scan latency in milliseconds
+     */
+    public synchronized void record(final long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Returns the latency below which the given share of the recent scans completed.
+     *
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, -1 while too few scans were recorded
+     */
+    public long getPercentile(final double percentile) {
+        final long[] sorted;
+        synchronized (this) {
+            if (count < Math.min(MIN_SAMPLES, samples.length)) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / PERCENT * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.net.URI;
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.lafaspot.icap.client.codec.IcapMessage;
+
+/**
+ * Caches the OPTIONS response per route, so a warm session sends its RESPMOD right away instead of an OPTIONS round trip before every
+ * scan. Entries honor the server's Options-TTL and are dropped when the server reports a new ISTag. Once an entry expires one scan is
+ * chosen to refresh it while the other scans keep using the stale options. The cached Preview and Allow headers drive RESPMOD preview
+ * and 204 No Content support.
+ */
+public class IcapOptionsCache {
+
+    /** ICAP Options-TTL header. */
+    private static final String OPTIONS_TTL_HEADER = "Options-TTL";
+
+    /** ICAP ISTag header. */
+    private static final String ISTAG_HEADER = "ISTag";
+
+    /** ICAP Preview header. */
+    private static final String PREVIEW_HEADER = "Preview";
+
+    /** ICAP Allow header. */
+    private static final String ALLOW_HEADER = "Allow";
+
+    /** Allow header value for 204 No Content support. */
+    private static final String ALLOW_204 = "204";
+
+    /** Time a session gets to refresh an expired entry before another session may try. */
+    private static final long REFRESH_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Millis per second. */
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /** Cached options by route. */
+    private final ConcurrentMap<URI, Entry> entries = new ConcurrentHashMap<URI, Entry>();
+
+    /** Latest ISTag reported by each route, in an OPTIONS or a RESPMOD response. Kept when the options are dropped. */
+    private final ConcurrentMap<URI, String> latestIstags = new ConcurrentHashMap<URI, String>();
+
+    /** clock object. */
+    private final Clock clock;
+
+    /**
+     * Creates an empty cache.
+     */
+    public IcapOptionsCache() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * Creates an empty cache with the given clock.
+     *
+     * @param clock the clock used to expire entries
+     */
+    public IcapOptionsCache(@Nonnull final Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Should a session on the given route send OPTIONS before its RESPMOD? True when nothing is cached for the route, or when the cached
+     * entry has expired and the caller is the one session chosen to refresh it.
+     *
+     * @param route server URI
+     * @return true if OPTIONS must be sent
+     */
+    public boolean needsOptions(@Nonnull final URI route) {
+        final Entry entry = entries.get(route);
+        if (null == entry) {
+            return true;
+        }
+        final long now = clock.millis();
+        if (now < entry.expiresAt) {
+            return false;
+        }
+        // expired, only one session refreshes while the others keep using the stale options
+        final long refreshDeadline = entry.refreshDeadline.get();
+        return now >= refreshDeadline && entry.refreshDeadline.compareAndSet(refreshDeadline, now + REFRESH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Are options cached for the route, fresh or expired? A scan chosen to refresh expired options may go on with them and leave the
+     * refresh to another session.
+     *
+     * @param route server URI
+     * @return true if an entry is cached
+     */
+    public boolean hasOptions(@Nonnull final URI route) {
+        return entries.containsKey(route);
+    }
+
+    /**
+     * Record a successful OPTIONS response for the route.
+     *
+     * @param route server URI
+     * @param msg the OPTIONS response
+     */
+    public void update(@Nonnull final URI route, @Nonnull final IcapMessage msg) {
+        final long now = clock.millis();
+        final String ttlStr = msg.getIcapHeader(OPTIONS_TTL_HEADER);
+        long expiresAt = Long.MAX_VALUE;
+        if (null != ttlStr) {
+            try {
+                expiresAt = now + Long.parseLong(ttlStr) * MILLIS_PER_SECOND;
+            } catch (NumberFormatException e) {
+                // treat a malformed TTL as already expired, the next scan asks again
+                expiresAt = now;
+            }
+        }
+        int previewSize = -1;
+        final String previewStr = msg.getIcapHeader(PREVIEW_HEADER);
+        if (null != previewStr) {
+            try {
+                previewSize = Integer.parseInt(previewStr);
+            } catch (NumberFormatException e) {
+                // no preview
+                previewSize = -1;
+            }
+        }
+        final String allowStr = msg.getIcapHeader(ALLOW_HEADER);
+        final boolean allow204 = null != allowStr && allowStr.contains(ALLOW_204);
+        final String istag = msg.getIcapHeader(ISTAG_HEADER);
+        entries.put(route, new Entry(istag, expiresAt, previewSize, allow204));
+        if (null != istag) {
+            latestIstags.put(route, istag);
+        }
+    }
+
+    /**
+     * Record the ISTag seen in a RESPMOD response. A new ISTag means the service changed, so the cached options are dropped.
+     *
+     * @param route server URI
+     * @param istag the ISTag header value, null if not present
+     */
+    public void onIstag(@Nonnull final URI route, @Nullable final String istag) {
+        if (null != istag) {
+            latestIstags.put(route, istag);
+        }
+        final Entry entry = entries.get(route);
+        if (null != entry && null != istag && !istag.equals(entry.istag)) {
+            entries.remove(route, entry);
+        }
+    }
+
+    /**
+     * Drop the cached options for the route.
+     *
+     * @param route server URI
+     */
+    public void invalidate(@Nonnull final URI route) {
+        entries.remove(route);
+    }
+
+    /**
+     * Returns the ISTag of the cached options for the route.
+     *
+     * @param route server URI
+     * @return the ISTag, null if nothing is cached
+     */
+    @Nullable
+    public String getIstag(@Nonnull final URI route) {
+        final Entry entry = entries.get(route);
+        return null != entry ? entry.istag : null;
+    }
+
+    /**
+     * Returns the latest ISTag the route reported. Unlike {@link #getIstag(URI)} this survives the options being dropped for a new ISTag.
+     *
+     * @param route server URI
+     * @return the ISTag, null if the route has not reported one
+     */
+    @Nullable
+    public String getLatestIstag(@Nonnull final URI route) {
+        return latestIstags.get(route);
+    }
+
+    /**
+     * Returns the preview size the route advertised in its OPTIONS response.
+     *
+     * @param route server URI
+     * @return number of bytes to send as preview, -1 if the route does not support preview or nothing is cached
+     */
+    public int getPreviewSize(@Nonnull final URI route) {
+        final Entry entry = entries.get(route);
+        return null != entry ? entry.previewSize : -1;
+    }
+
+    /**
+     * Does the route support 204 No Content responses?
+     *
+     * @param route server URI
+     * @return true if the route's OPTIONS response carried "Allow: 204"
+     */
+    public boolean isAllow204(@Nonnull final URI route) {
+        final Entry entry = entries.get(route);
+        return null != entry && entry.allow204;
+    }
+
+    /**
+     * One cached OPTIONS response.
+     */
+    private static final class Entry {
+        /** Service tag reported with the options. */
+        private final String istag;
+        /** Time the options expire. */
+        private final long expiresAt;
+        /** Preview size advertised by the server, -1 if none. */
+        private final int previewSize;
+        /** Server supports 204 No Content. */
+        private final boolean allow204;
+        /** Time until which a session owns the refresh of the expired entry. */
+        private final AtomicLong refreshDeadline = new AtomicLong();
+
+        /**
+         * Constructor.
+         *
+         * @param istag service tag
+         * @param expiresAt expiry time
+         * @param previewSize preview size, -1 if none
+         * @param allow204 server supports 204 No Content
+         */
+        private Entry(@Nullable final String istag, final long expiresAt, final int previewSize, final boolean allow204) {
+            this.istag = istag;
+            this.expiresAt = expiresAt;
+            this.previewSize = previewSize;
+            this.allow204 = allow204;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.exception.IcapException.FailureType;
+
+/**
+ * Caches scan results by content, so the same attachment scanned again on the same route is answered without a round trip. Entries are
+ * keyed by the SHA-256 digest of the payload and the full server URI the scan was sent to. Nothing else of the service is part of the key,
+ * two services share entries only when they are reached through the same URI. The cache holds at most a given number of entries, dropping
+ * the least recently used one, and entries expire after a fixed time.
+ *
+ * Only the verdict is kept. A full scan is answered from the cache only when the server returned the payload unmodified, the caller's own
+ * bytes are then handed back as the cleaned bytes. A verdict-only scan is answered by any entry. Whether the payload came back unmodified
+ * is told from the disposition and the cleaned byte count, the cleaned payload itself is not read, see {@link #isUnmodified}.
+ *
+ * Every entry records the ISTag of the response it came from. When the route later reports another ISTag, for instance after the AV engine
+ * loaded new definitions, its entries are dropped as they are looked up, so a long TTL does not keep serving verdicts of old definitions.
+ */
+public class IcapResultCache {
+
+    /** Digest used for the cache key. */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** Load factor of the entry map. */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /** Max number of entries. */
+    private final int maxEntries;
+
+    /** Time an entry stays valid. */
+    private final long ttlMillis;
+
+    /** clock object. */
+    private final Clock clock;
+
+    /** Entries in access order, guarded by lock. */
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /** Lock for synchronization. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups not answered from the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of entries dropped for size or age. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Number of entries dropped because the route reported a new ISTag. */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxEntries max number of results kept
+     * @param ttlMillis time a result stays valid
+     */
+    public IcapResultCache(final int maxEntries, final long ttlMillis) {
+        this(maxEntries, ttlMillis, Clock.systemUTC());
+    }
+
+    /**
+     * Creates an empty cache with the given clock.
+     *
+     * @param maxEntries max number of results kept
+     * @param ttlMillis time a result stays valid
+     * @param clock the clock used to expire entries
+     */
+    public IcapResultCache(final int maxEntries, final long ttlMillis, @Nonnull final Clock clock) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<Key, Entry>(maxEntries, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+                if (size() > IcapResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Compute the digest of a payload, used as the key for {@link #get} and {@link #put}.
+     *
+     * @param content the payload
+     * @return the SHA-256 digest
+     * @throws IcapException if the digest is not available
+     */
+    @Nonnull
+    public static byte[] digest(@Nonnull final byte[] content) throws IcapException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IcapException(FailureType.INTERNAL_ERROR, e);
+        }
+    }
+
+    /**
+     * Look up the result of an earlier scan of the same payload.
+     *
+     * @param route server URI
+     * @param digest digest of the payload
+     * @param content the payload, returned as the cleaned bytes
+     * @param verdictOnly the caller only wants the verdict
+     * @param latestIstag the ISTag the route reported last, null if not known
+     * @return a new result object, null if nothing usable is cached
+     */
+    @Nullable
+    public IcapResult get(@Nonnull final URI route, @Nonnull final byte[] digest, @Nonnull final byte[] content, final boolean verdictOnly,
+            @Nullable final String latestIstag) {
+        final Key key = new Key(route, digest);
+        final Entry entry;
+        lock.lock();
+        try {
+            final Entry e = entries.get(key);
+            if (null != e && clock.millis() >= e.expiresAt) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            } else if (null != e && null != latestIstag && !latestIstag.equals(e.istag)) {
+                // the verdict was given by a previous version of the service
+                entries.remove(key);
+                invalidations.incrementAndGet();
+                entry = null;
+            } else {
+                entry = e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (null == entry || (!verdictOnly && !entry.unmodified)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        final IcapResult result = new IcapResult();
+        result.setDisposition(entry.disposition);
+        result.setNumViolations(entry.numViolations);
+        result.setViolationFilename(entry.violationFilename);
+        result.setViolationName(entry.violationName);
+        result.setViolationId(entry.violationId);
+        result.setIstag(entry.istag);
+        if (verdictOnly) {
+            result.setCleanedByteCount(entry.cleanedByteCount);
+        } else {
+            result.setCleanedBytes(content);
+        }
+        return result;
+    }
+
+    /**
+     * Record the result of a scan. Results without a disposition are not cached.
+     *
+     * @param route server URI
+     * @param digest digest of the payload
+     * @param content the payload that was scanned
+     * @param result the scan result
+     * @param verdictOnly the scan only asked for the verdict
+     */
+    public void put(@Nonnull final URI route, @Nonnull final byte[] digest, @Nonnull final byte[] content, @Nonnull final IcapResult result,
+            final boolean verdictOnly) {
+        if (null == result.getDisposition()) {
+            return;
+        }
+        final Key key = new Key(route, digest);
+        final Entry entry = new Entry(result, isUnmodified(result, content, verdictOnly), clock.millis() + ttlMillis);
+        lock.lock();
+        try {
+            final Entry old = entries.get(key);
+            if (verdictOnly && null != old && old.unmodified && clock.millis() < old.expiresAt) {
+                // keep the entry that can also answer full scans
+                return;
+            }
+            entries.put(key, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Did the server return the payload unmodified? A clean verdict with as many cleaned bytes as were sent is taken as the payload echoed
+     * back. Called on the I/O thread when a scan completes, so the cleaned payload is neither joined nor compared byte by byte.
+     *
+     * @param result the scan result
+     * @param content the payload that was scanned
+     * @param verdictOnly the scan only asked for the verdict, the payload was not returned
+     * @return true if the caller's payload can stand for the cleaned bytes
+     */
+    static boolean isUnmodified(@Nonnull final IcapResult result, @Nonnull final byte[] content, final boolean verdictOnly) {
+        return !verdictOnly && IcapResult.Disposition.CLEAN == result.getDisposition() && result.getCleanedByteCount() == content.length;
+    }
+
+    /**
+     * Drop all cached results for the route, for instance when its service changed.
+     *
+     * @param route server URI
+     */
+    public void invalidate(@Nonnull final URI route) {
+        lock.lock();
+        try {
+            final Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().route.equals(route)) {
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of cached results.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache.
+     *
+     * @return miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries dropped because the cache was full or the entry expired.
+     *
+     * @return eviction count
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of entries dropped because their route reported a new ISTag.
+     *
+     * @return invalidation count
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Cache key, route and payload digest.
+     */
+    private static final class Key {
+        /** Server URI. */
+        private final URI route;
+        /** Payload digest. */
+        private final byte[] digest;
+        /** Cached hash code. */
+        private final int hash;
+
+        /**
+         * Constructor.
+         *
+         * @param route server URI
+         * @param digest payload digest
+         */
+        private Key(@Nonnull final URI route, @Nonnull final byte[] digest) {
+            this.route = route;
+            this.digest = digest;
+            this.hash = route.hashCode() ^ Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(digest, other.digest) && route.equals(other.route);
+        }
+    }
+
+    /**
+     * One cached verdict.
+     */
+    private static final class Entry {
+        /** Disposition. */
+        private final IcapResult.Disposition disposition;
+        /** Number of violations. */
+        private final int numViolations;
+        /** Violation filename. */
+        private final String violationFilename;
+        /** Violation name. */
+        private final String violationName;
+        /** Violation id. */
+        private final String violationId;
+        /** Number of cleaned bytes returned by the server. */
+        private final long cleanedByteCount;
+        /** ISTag of the response. */
+        private final String istag;
+        /** The server returned the payload unmodified. */
+        private final boolean unmodified;
+        /** Time the entry expires. */
+        private final long expiresAt;
+
+        /**
+         * Constructor.
+         *
+         * @param result the scan result
+         * @param unmodified the server returned the payload unmodified
+         * @param expiresAt expiry time
+         */
+        private Entry(@Nonnull final IcapResult result, final boolean unmodified, final long expiresAt) {
+            this.disposition = result.getDisposition();
+            this.numViolations = result.getNumViolations();
+            this.violationFilename = result.getViolationFilename();
+            this.violationName = result.getViolationName();
+            this.violationId = result.getViolationId();
+            this.cleanedByteCount = result.getCleanedByteCount();
+            this.istag = result.getIstag();
+            this.unmodified = unmodified;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A logical ICAP service backed by several servers, each with its own session pool. Every scan goes to the less loaded of two members
+ * picked at random, measured by their in-flight scans. Two random choices keep a slow or overloaded server from piling up work while
+ * avoiding the herding of always picking the least loaded member. Members whose circuit breaker is open are skipped while any other
+ * member is healthy.
+ * <p>
+ * With hedging on, a scan still running after a percentile of its member's recent latency is sent to a second member as well, and the
+ * first answer wins. A budget caps the hedges at a share of the group's scans.
+ * </p>
+ */
+public class IcapRouteGroup {
+
+    /** Name of the service. */
+    private final String name;
+
+    /** Pools of the member servers. */
+    private final List<IcapRouteSpecificSessionPool> members;
+
+    /** Scans dispatched to the group. */
+    private final AtomicLong scanCount = new AtomicLong();
+
+    /** Hedged scans sent to a second member. */
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    /** Latency percentile after which a scan is hedged, 0 when hedging is off. */
+    private volatile double hedgePercentile;
+
+    /** Max hedged scans as a share of the group's scans, out of a hundred. */
+    private volatile double hedgeBudgetPercent;
+
+    /** Percentages are given out of a hundred. */
+    private static final double PERCENT = 100;
+
+    /**
+     * Creates a group over the given pools.
+     *
+     * @param name name of the service
+     * @param members pools of the member servers, at least one
+     */
+    public IcapRouteGroup(@Nonnull final String name, @Nonnull final List<IcapRouteSpecificSessionPool> members) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("route group " + name + " has no members");
+        }
+        this.name = name;
+        this.members = Collections.unmodifiableList(new ArrayList<IcapRouteSpecificSessionPool>(members));
+    }
+
+    /**
+     * Pick the member for the next scan: the one with fewer in-flight scans out of two distinct members drawn at random. A member with an
+     * open circuit is only picked when no member is healthy, its scan then fails fast.
+     *
+     * @return the pool to scan on
+     */
+    @Nonnull
+    public IcapRouteSpecificSessionPool select() {
+        scanCount.incrementAndGet();
+        final int size = members.size();
+        if (size == 1) {
+            return members.get(0);
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(size);
+        // draw the second one from the other members so the two choices differ
+        final int second = (first + 1 + random.nextInt(size - 1)) % size;
+        final IcapRouteSpecificSessionPool a = members.get(first);
+        final IcapRouteSpecificSessionPool b = members.get(second);
+        final boolean aOpen = a.isCircuitOpen();
+        final boolean bOpen = b.isCircuitOpen();
+        if (aOpen && bOpen) {
+            return firstHealthy(first, a);
+        }
+        if (aOpen || bOpen) {
+            return aOpen ? b : a;
+        }
+        return b.getInFlightCount() < a.getInFlightCount() ? b : a;
+    }
+
+    /**
+     * Pick the member to hedge a scan on: the less loaded of two healthy members other than the one already scanning.
+     *
+     * @param busy the member the scan was sent to first
+     * @return the member for the hedge, null if no other member is healthy
+     */
+    @Nullable
+    public IcapRouteSpecificSessionPool selectOther(@Nonnull final IcapRouteSpecificSessionPool busy) {
+        final List<IcapRouteSpecificSessionPool> healthy = new ArrayList<IcapRouteSpecificSessionPool>(members.size());
+        for (final IcapRouteSpecificSessionPool pool : members) {
+            if (pool != busy && !pool.isCircuitOpen()) {
+                healthy.add(pool);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return null;
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final IcapRouteSpecificSessionPool a = healthy.get(random.nextInt(healthy.size()));
+        final IcapRouteSpecificSessionPool b = healthy.get(random.nextInt(healthy.size()));
+        return b.getInFlightCount() < a.getInFlightCount() ? b : a;
+    }
+
+    /**
+     * Turn hedging on or off.
+     *
+     * @param percentile latency percentile of the member after which a scan is hedged, such as 95, 0 to turn hedging off
+     * @param budgetPercent max hedged scans as a share of all scans on the group, out of a hundred
+     */
+    public void setHedging(final double percentile, final double budgetPercent) {
+        this.hedgeBudgetPercent = budgetPercent;
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * Returns how long a scan on the member may run before it is hedged.
+     *
+     * @param pool the member the scan was sent to
+     * @return the delay in milliseconds, -1 if the scan is not to be hedged
+     */
+    public long getHedgeDelayMillis(@Nonnull final IcapRouteSpecificSessionPool pool) {
+        final double percentile = hedgePercentile;
+        if (percentile <= 0 || members.size() < 2) {
+            return -1;
+        }
+        return pool.getLatencyPercentile(percentile);
+    }
+
+    /**
+     * Take a hedge out of the budget.
+     *
+     * @return true if the scan may be hedged
+     */
+    public boolean tryHedge() {
+        final long hedges = hedgeCount.incrementAndGet();
+        if (hedges > scanCount.get() * hedgeBudgetPercent / PERCENT) {
+            hedgeCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of scans hedged on a second member.
+     *
+     * @return hedge count
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Look for a member with a closed circuit, starting after the given index.
+     *
+     * @param start index of the member to start after
+     * @param fallback returned when every member's circuit is open
+     * @return the first healthy member, or the fallback
+     */
+    @Nonnull
+    private IcapRouteSpecificSessionPool firstHealthy(final int start, @Nonnull final IcapRouteSpecificSessionPool fallback) {
+        final int size = members.size();
+        for (int i = 1; i < size; i++) {
+            final IcapRouteSpecificSessionPool pool = members.get((start + i) % size);
+            if (!pool.isCircuitOpen()) {
+                return pool;
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Returns the name of the service.
+     *
+     * @return the group name
+     */
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the pools of the member servers.
+     *
+     * @return unmodifiable member list
+     */
+    @Nonnull
+    public List<IcapRouteSpecificSessionPool> getMembers() {
+        return members;
+    }
+}
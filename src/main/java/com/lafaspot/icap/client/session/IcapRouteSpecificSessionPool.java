@@ -4,26 +4,46 @@
 package com.lafaspot.icap.client.session;
 
 import java.net.URI;
+import java.nio.channels.WritableByteChannel;
 import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.lafaspot.icap.client.IcapClient;
 import com.lafaspot.icap.client.IcapRequestProducer;
 import com.lafaspot.icap.client.IcapResponseConsumer;
+import com.lafaspot.icap.client.IcapResult;
 import com.lafaspot.icap.client.exception.IcapException;
 import com.lafaspot.icap.client.exception.IcapException.FailureType;
 import com.lafaspot.logfast.logging.Logger;
 
 /**
- * Manages pool of sessions. Configured at the beginning to be of static size, holds sessions only to one server.
+ * Manages pool of sessions. Configured at the beginning to be of static size, holds sessions only to one server. Sessions are returned to the
+ * pool by {@link IcapSession} once a scan completes, so keep-alive connections are reused across scans.
+ *
+ * When all sessions are in use, {@link #leaseAsync(int)} queues the caller instead of failing. A returned session, or a slot freed by a
+ * closed one, goes to the oldest waiter; a waiter still queued at its deadline fails with {@link FailureType#NO_FREE_CONNECTION}.
+ *
+ * Available sessions that died, are due for rotation or sat idle too long are cleaned up by a background task on the same timer, a lease
+ * only looks at the session it hands out.
+ *
  * @author kraman
  *
  */
@@ -44,23 +64,80 @@ public class IcapRouteSpecificSessionPool {
     /** URI that defines the server. */
     private final URI route;
 
-    /** List of available IcapSession objects . */
-    private final LinkedList<IcapSession> available;
+    /** Available IcapSession objects, most recently returned first, so the idle ones gather at the end. */
+    private final ArrayDeque<IcapSession> available;
 
     /** Set of in-use IcapSession objects. */
     private final Set<IcapSession> leased;
 
+    /** Callers waiting for a session, oldest first, guarded by lock. */
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+    /** Schedules the waiters' deadlines, null to fail at once when all sessions are in use. */
+    private final ScheduledExecutorService timer;
+
+    /** Queue new callers behind the waiters even when a session is available. */
+    private volatile boolean fair;
+
+    /** Scans started and not complete yet. */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Latencies of the recent successful scans. */
+    private final IcapLatencyTracker latencies = new IcapLatencyTracker();
+
+    /** Number of sessions kept available, opened ahead of demand. */
+    private volatile int minIdle;
+
+    /** Produces the OPTIONS request that warms up or probes a new session, null while neither min idle nor a breaker is set. */
+    private volatile IcapRequestProducer warmUpProducer;
+
+    /** Decodes the OPTIONS response that warms up or probes a new session. */
+    private volatile IcapResponseConsumer warmUpConsumer;
+
+    /** Fails scans fast while the server keeps failing, null to always try. */
+    private volatile IcapCircuitBreaker breaker;
+
+    /** Adapts the number of scans allowed at once to the server's response time, null to allow up to the max sessions. */
+    private volatile IcapAdaptiveLimit adaptiveLimit;
+
+    /** Sessions opened for min idle or as a breaker probe and not yet warmed up, guarded by lock. */
+    private final Set<IcapSession> warming = new HashSet<IcapSession>();
+
+    /** Number of connections being made, guarded by lock. */
+    private int connecting;
+
     /** Lock for synchronizing. */
     private final ReentrantLock lock = new ReentrantLock();
 
+    /** Number of waiters that got a session. */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /** Total time the waiters that got a session waited. */
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+
+    /** Longest time a waiter waited for a session. */
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    /** Number of waiters that reached their deadline. */
+    private final AtomicLong waitTimeouts = new AtomicLong();
+
     /** Max number of commands to be sent on the session. */
     private static final long MAX_COMMAND_COUNT = Integer.MAX_VALUE;
 
     /** Max time to use the session. */
     private static final long MAX_SESSION_TIME = 5 * 60 * 60 * 1000;
 
+    /** Interval of the background housekeeping. */
+    private static final long REAP_INTERVAL_MILLIS = 1000;
+
+    /** Default time an available session may stay unused before it is closed. */
+    private static final long DEFAULT_MAX_IDLE_MILLIS = 60 * 1000;
+
+    /** Time an available session may stay unused before it is closed, 0 to keep idle sessions. */
+    private volatile long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+
     /**
-     * Constructor to create IcapSessionPool.
+     * Constructor to create IcapSessionPool, without a waiter queue.
      *
      * @param client the IcapClient instance
      * @param route the server URI
@@ -69,16 +146,70 @@ public class IcapRouteSpecificSessionPool {
      */
     public IcapRouteSpecificSessionPool(@Nonnull final IcapClient client, @Nonnull final URI route, final int maxAllowedSessions,
             @Nonnull final Logger logger) {
+        this(client, route, maxAllowedSessions, null, logger);
+    }
+
+    /**
+     * Constructor to create IcapSessionPool.
+     *
+     * @param client the IcapClient instance
+     * @param route the server URI
+     * @param maxAllowedSessions max allowed sessions
+     * @param timer schedules the deadlines of queued callers, null to fail at once when all sessions are in use
+     * @param logger the logger object
+     */
+    public IcapRouteSpecificSessionPool(@Nonnull final IcapClient client, @Nonnull final URI route, final int maxAllowedSessions,
+            @Nullable final ScheduledExecutorService timer, @Nonnull final Logger logger) {
         this.client = client;
-        this.available = new LinkedList<IcapSession>();
+        this.available = new ArrayDeque<IcapSession>();
         this.leased = new HashSet<IcapSession>();
         this.route = route;
         this.maxAllowedSessions = maxAllowedSessions;
+        this.timer = timer;
         this.logger = logger;
+        if (null != timer) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reap();
+                }
+            }, REAP_INTERVAL_MILLIS, REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
-     * Returns a IcapSession object, if available. Returns null if not.
+     * Returns a IcapSession object, if available. Returns null if not. A new connection is made outside the pool lock, so a slow server
+     * does not hold up the callers that find a session available.
+     *
+     * @param timeout time in millisecond
+     * @return IcapSession object
+     * @throws TimeoutException when a session could not be found within timeout given
+     * @throws IcapException on failure
+     */
+    @Nonnull
+    public IcapSession lease(final int timeout) throws TimeoutException, IcapException {
+        final long now = clock.millis();
+
+        logger.debug("### = available A:" + available.size() + ", L:" + leased.size(), null);
+        lock(timeout);
+        try {
+            final IcapSession sess = pollAvailable(now);
+            if (null != sess) {
+                return sess;
+            }
+            // all sessions are in use, reserve a slot for a new one
+            if (!hasFreeSlot()) {
+                throw new IcapException(FailureType.NO_FREE_CONNECTION);
+            }
+            connecting++;
+        } finally {
+            lock.unlock();
+        }
+        return connectReserved();
+    }
+
+    /**
+     * Returns a IcapSession object bound to the given producer and consumer, for {@link IcapSession#scanFile(String, byte[])}.
      *
      * @param timeout time in millisecond
      * @param icapRequestProducer An ICAP request producer
@@ -86,81 +217,808 @@ public class IcapRouteSpecificSessionPool {
      * @return IcapSession object
      * @throws TimeoutException when a session could not be found within timeout given
      * @throws IcapException on failure
+     * @deprecated use {@link #lease(int)} and pass the producer and consumer to each scan
      */
+    @Deprecated
     @Nonnull
     public IcapSession lease(final int timeout, @Nonnull final IcapRequestProducer icapRequestProducer,
             @Nonnull final IcapResponseConsumer icapResponseConsumer) throws TimeoutException, IcapException {
+        final IcapSession sess = lease(timeout);
+        sess.bind(icapRequestProducer, icapResponseConsumer);
+        return sess;
+    }
+
+    /**
+     * Returns a IcapSession object, waiting in the queue for one to be returned when all sessions are in use. Never parks the caller, the
+     * returned future completes once a session is handed over, or fails with {@link FailureType#NO_FREE_CONNECTION} at the deadline.
+     * Cancelling the future gives up the place in the queue. Without a timer it behaves like {@link #lease(int)}.
+     *
+     * @param timeout time in millisecond
+     * @return future of the IcapSession object
+     * @throws TimeoutException when a session could not be found within timeout given
+     * @throws IcapException on failure
+     */
+    @Nonnull
+    public CompletableFuture<IcapSession> leaseAsync(final int timeout) throws TimeoutException, IcapException {
         final long now = clock.millis();
         final long deadline = timeout + now;
 
-        logger.debug("### = available A:" + available.size() + ", L:" + leased.size(), null);
+        final Waiter waiter;
+        List<Waiter> ready = null;
+        lock(timeout);
         try {
-            if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
-                throw new IcapException(FailureType.TIMEOUT);
+            if (!fair || waiters.isEmpty()) {
+                final IcapSession sess = pollAvailable(now);
+                if (null != sess) {
+                    return CompletableFuture.completedFuture(sess);
+                }
             }
+            if (waiters.isEmpty() && hasFreeSlot()) {
+                connecting++;
+                waiter = null;
+            } else if (null == timer) {
+                throw new IcapException(FailureType.NO_FREE_CONNECTION);
+            } else {
+                waiter = new Waiter(now);
+                waiters.add(waiter);
+                // sessions sorted out by the housekeeping go to the waiters first
+                ready = dispatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (null == waiter) {
+            return CompletableFuture.completedFuture(connectReserved());
+        }
+        handOver(ready);
 
-            // housekeeping, remove unused sessions
-            final Iterator<IcapSession> leasedIter = leased.iterator();
-            while (leasedIter.hasNext()) {
-                IcapSession leasedSess = leasedIter.next();
-                if (leasedSess.isDead()) {
-                    leasedIter.remove();
-                    continue;
-                }
+        waiter.deadline = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(waiter);
+            }
+        }, deadline - clock.millis(), TimeUnit.MILLISECONDS);
+        // however the wait ends, the deadline task is dropped, also when the waiter was handed over before it was scheduled
+        waiter.future.whenComplete(new BiConsumer<IcapSession, Throwable>() {
+            @Override
+            public void accept(final IcapSession session, final Throwable cause) {
+                waiter.deadline.cancel(false);
+            }
+        });
+        return waiter.future;
+    }
 
-                if (leasedSess.isAvailable()) {
-                    leasedIter.remove();
-                    available.add(leasedSess);
-                    continue;
+    /**
+     * Lease a session and start the scan on it. When all sessions are in use the scan waits in the queue, its future is returned right away
+     * and the scan starts once a session is handed over.
+     *
+     * @param timeout time in millisecond to wait for a session
+     * @param filename name of the file to be scanned
+     * @param fileToScan byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer for this scan
+     * @param icapResponseConsumer An ICAP response consumer for this scan
+     * @param resultSink where the cleaned payload is written, null to collect it in the result
+     * @param closeSink close the sink once the scan is over
+     * @return the future object
+     * @throws TimeoutException when the pool could not be looked at within timeout given
+     * @throws IcapException on failure
+     */
+    @Nonnull
+    public IcapFuture scanFile(final int timeout, @Nonnull final String filename, @Nonnull final byte[] fileToScan,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer,
+            @Nullable final WritableByteChannel resultSink, final boolean closeSink) throws TimeoutException, IcapException {
+        if (isCircuitOpen()) {
+            probe();
+            throw new IcapException(FailureType.CIRCUIT_OPEN, Collections.singletonList(route.toString()));
+        }
+        inFlight.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        final IcapFuture future;
+        try {
+            future = leaseAndScan(timeout, filename, fileToScan, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
+        } catch (IcapException e) {
+            inFlight.decrementAndGet();
+            recordOutcome(e);
+            throw e;
+        } catch (TimeoutException | RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+        // recorded before the caller sees the result
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                inFlight.decrementAndGet();
+                recordOutcome(cause);
+                if (null == cause) {
+                    latencies.record(System.currentTimeMillis() - start);
                 }
+            }
+        });
+        return future;
+    }
 
-                // time check
-                if (deadline <= clock.millis()) {
-                    throw new IcapException(FailureType.TIMEOUT);
+    /**
+     * Feed the outcome of a scan to the circuit breaker and the adaptive limit. An answer from the server closes the breaker, connect
+     * failures, server errors and timeouts count towards opening it, other failures say nothing about the server's health. Timeouts also
+     * cut the adaptive limit.
+     *
+     * @param cause the failure, null if the scan completed
+     */
+    private void recordOutcome(@Nullable final Throwable cause) {
+        final IcapCircuitBreaker cb = breaker;
+        if (null == cause) {
+            if (null != cb) {
+                cb.onSuccess();
+            }
+            return;
+        }
+        if (!(cause instanceof IcapException)) {
+            return;
+        }
+        final FailureType type = ((IcapException) cause).getFailureType();
+        if (null != cb && (type == FailureType.NOT_CONNECTED || type == FailureType.SERVER_ERROR || type == FailureType.TIMEOUT)) {
+            cb.onFailure();
+        }
+        final IcapAdaptiveLimit limit = adaptiveLimit;
+        if (null != limit && type == FailureType.TIMEOUT) {
+            limit.onDrop();
+        }
+    }
+
+    /**
+     * Lease a session, waiting in the queue if none is free, and start the scan on it.
+     *
+     * @param timeout max time to wait for a session, in milliseconds
+     * @param filename name of the file to be scanned
+     * @param fileToScan byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer
+     * @param icapResponseConsumer An ICAP response consumer
+     * @param resultSink where the cleaned payload is written, null to collect it in the result
+     * @param closeSink close the sink once the scan is over
+     * @return the future object
+     * @throws TimeoutException if the pool lock cannot be acquired in time
+     * @throws IcapException if the scan cannot be queued
+     */
+    private IcapFuture leaseAndScan(final int timeout, @Nonnull final String filename, @Nonnull final byte[] fileToScan,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer,
+            @Nullable final WritableByteChannel resultSink, final boolean closeSink) throws TimeoutException, IcapException {
+        final CompletableFuture<IcapSession> lease = leaseAsync(timeout);
+        final IcapSession sess = lease.isCompletedExceptionally() ? null : lease.getNow(null);
+        if (null != sess) {
+            return sess.scanFile(filename, fileToScan, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
+        }
+
+        final IcapFuture future = new IcapFuture();
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                // give up the place in the queue if the scan is cancelled while waiting
+                lease.cancel(false);
+            }
+        });
+        lease.whenComplete(new BiConsumer<IcapSession, Throwable>() {
+            @Override
+            public void accept(final IcapSession leased, final Throwable cause) {
+                if (null != cause) {
+                    future.done(cause instanceof IcapException ? (IcapException) cause
+                            : new IcapException(FailureType.NO_FREE_CONNECTION, cause));
+                    return;
+                }
+                try {
+                    leased.scanFile(future, filename, fileToScan, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
+                } catch (IcapException e) {
+                    future.done(e);
                 }
             }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a session to the available list once its scan is complete, or hands it to the oldest waiter. Called from the event loop, it
+     * takes the pool lock with a blocking lock(): the lock is only held for list updates, never across a connect, so the event loop waits
+     * at most for another caller's list update.
+     *
+     * @param sess the session to return
+     */
+    public void release(@Nonnull final IcapSession sess) {
+        if (sess.isAvailable()) {
+            giveBack(sess);
+        } else {
+            lock.lock();
+            try {
+                leased.remove(sess);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a session that was not used, to the oldest waiter or to the available list.
+     *
+     * @param sess the session to return
+     */
+    void giveBack(@Nonnull final IcapSession sess) {
+        final List<Waiter> ready;
+        lock.lock();
+        try {
+            if (!leased.remove(sess) || sess.isDead()) {
+                return;
+            }
+            available.addFirst(sess);
+            ready = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        handOver(ready);
+    }
+
+    /**
+     * A session opened for min idle, an OPTIONS refresh or a breaker probe got its OPTIONS answer. Called before the session is returned
+     * or, when sessions are not reused, closed, so its close is not taken for a failed warm up.
+     *
+     * @param sess the warmed up session
+     */
+    void warmedUp(@Nonnull final IcapSession sess) {
+        final boolean tracked;
+        lock.lock();
+        try {
+            tracked = warming.remove(sess);
+        } finally {
+            lock.unlock();
+        }
+        if (tracked) {
+            recordOutcome(null);
+        }
+    }
+
+    /**
+     * Drops a closed session from the pool, freeing its slot for the oldest waiter or the next lease.
+     *
+     * @param sess the session to drop
+     */
+    void discard(@Nonnull final IcapSession sess) {
+        final List<Waiter> ready;
+        final boolean warmUpFailed;
+        lock.lock();
+        try {
+            warmUpFailed = warming.remove(sess);
+            leased.remove(sess);
+            available.remove(sess);
+            ready = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        if (warmUpFailed) {
+            recordOutcome(new IcapException(FailureType.NOT_CONNECTED));
+        }
+        handOver(ready);
+    }
+
+    /**
+     * Keep at least this many sessions available, opening them ahead of demand. Each new session is validated with an OPTIONS request
+     * before it is handed out. The pool is filled right away and topped up by the background housekeeping, within the max sessions.
+     *
+     * A pool with max sessions 0 does not reuse sessions, each one is closed after a single exchange, so it cannot keep any available.
+     *
+     * @param minIdle number of sessions kept available, 0 to open sessions on demand only
+     * @param producer produces the OPTIONS request
+     * @param consumer decodes the OPTIONS response
+     * @throws IcapException with {@link FailureType#CONNECTION_REUSE_NOT_IMPLEMENTED} if minIdle is set on a pool that does not reuse
+     *             sessions
+     */
+    public void setMinIdle(final int minIdle, @Nonnull final IcapRequestProducer producer, @Nonnull final IcapResponseConsumer consumer)
+            throws IcapException {
+        if (minIdle > 0 && 0 == maxAllowedSessions) {
+            throw new IcapException(FailureType.CONNECTION_REUSE_NOT_IMPLEMENTED);
+        }
+        this.warmUpProducer = producer;
+        this.warmUpConsumer = consumer;
+        this.minIdle = minIdle;
+        refill();
+    }
+
+    /**
+     * Refresh the route's expired OPTIONS in the background: open a new session and warm it up with OPTIONS, which updates the cached
+     * options, so the scan that found them expired does not wait for the round trip. The session joins the available list afterwards.
+     *
+     * @param producer produces the OPTIONS request
+     * @param consumer decodes the OPTIONS response
+     * @return true if a session was opened for the refresh, false if the pool has no room for one
+     */
+    boolean refreshOptions(@Nonnull final IcapRequestProducer producer, @Nonnull final IcapResponseConsumer consumer) {
+        lock.lock();
+        try {
+            if (!hasFreeSlot()) {
+                return false;
+            }
+            connecting++;
+        } finally {
+            lock.unlock();
+        }
+        warmUpReserved(producer, consumer);
+        return true;
+    }
+
+    /**
+     * Fail scans fast while the server keeps failing. Once the breaker's open time is over, a single session is opened and sent OPTIONS
+     * to probe the server, scans go through again when it answers.
+     *
+     * @param breaker the circuit breaker of this route, null to always try the server
+     * @param producer produces the OPTIONS probe
+     * @param consumer decodes the OPTIONS response
+     */
+    public void setCircuitBreaker(@Nullable final IcapCircuitBreaker breaker, @Nonnull final IcapRequestProducer producer,
+            @Nonnull final IcapResponseConsumer consumer) {
+        this.warmUpProducer = producer;
+        this.warmUpConsumer = consumer;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Adapt the number of scans allowed at once on this route to the server's response time, within the max sessions. Scans over the
+     * limit wait in the queue, or fail with NO_FREE_CONNECTION when the pool has no queue.
+     *
+     * @param adaptiveLimit the limit of this route, null to allow up to the max sessions
+     */
+    public void setAdaptiveLimit(@Nullable final IcapAdaptiveLimit adaptiveLimit) {
+        this.adaptiveLimit = adaptiveLimit;
+    }
+
+    /**
+     * Feed the server time of a completed RESPMOD to the adaptive limit. Called by every session of the route, reused or not, before the
+     * scan's future completes. OPTIONS times are left out on purpose, they are no scan and would drag the baseline down, see
+     * {@link IcapAdaptiveLimit}.
+     *
+     * @param micros time from the last request byte written to the first response byte read, in microseconds
+     */
+    void onServerTime(final long micros) {
+        final IcapAdaptiveLimit limit = adaptiveLimit;
+        if (null != limit) {
+            // the scan still counts as in flight
+            limit.onSample(micros, inFlight.get());
+        }
+    }
 
+    /**
+     * Returns the number of scans currently allowed at once on this route.
+     *
+     * @return the adaptive limit, or the max sessions if the limit is not adaptive, 0 for no limit
+     */
+    public int getConcurrencyLimit() {
+        final IcapAdaptiveLimit limit = adaptiveLimit;
+        return null != limit ? limit.getLimit() : maxAllowedSessions;
+    }
 
+    /**
+     * Returns the circuit breaker of this route.
+     *
+     * @return the breaker, null if none is set
+     */
+    @Nullable
+    public IcapCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
 
-            final Iterator<IcapSession> availableIter = available.iterator();
-            IcapSession sess = null;
-            while (availableIter.hasNext()) {
-                sess = availableIter.next();
-                if ((sess.getCount() + 1 >= MAX_COMMAND_COUNT) || ((now - sess.getCreateTime()) >= MAX_SESSION_TIME) || sess.isDead()) {
-                    availableIter.remove();
-                    sess = null;
-                } else {
-                    break;
+    /**
+     * Are scans on this route failing fast?
+     *
+     * @return true if the circuit breaker is open or probing
+     */
+    public boolean isCircuitOpen() {
+        final IcapCircuitBreaker cb = breaker;
+        return null != cb && !cb.allowRequest();
+    }
+
+    /**
+     * Set the time an available session may stay unused before the background housekeeping closes it.
+     *
+     * @param maxIdleMillis max idle time, 0 to keep idle sessions
+     */
+    public void setMaxIdleMillis(final long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Queue new callers behind the waiters even when a session is available, instead of letting them take it.
+     *
+     * @param fair true for strict first come first served
+     */
+    public void setFair(final boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * Returns the number of callers waiting for a session.
+     *
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiters that got a session.
+     *
+     * @return wait count
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Returns the total time the waiters that got a session waited for it.
+     *
+     * @return total wait in milliseconds
+     */
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+
+    /**
+     * Returns the longest time a waiter waited for a session.
+     *
+     * @return max wait in milliseconds
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    /**
+     * Returns the number of waiters that reached their deadline without a session.
+     *
+     * @return timeout count
+     */
+    public long getWaitTimeouts() {
+        return waitTimeouts.get();
+    }
+
+    /**
+     * Returns the number of scans started on this pool and not complete yet, including the ones waiting for a session.
+     *
+     * @return in-flight scan count
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the latency below which the given share of the recent successful scans on this route completed, queueing for a session
+     * included.
+     *
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, -1 while too few scans completed
+     */
+    public long getLatencyPercentile(final double percentile) {
+        return latencies.getPercentile(percentile);
+    }
+
+    /**
+     * Returns the server URI of this pool.
+     *
+     * @return the route
+     */
+    @Nonnull
+    public URI getRoute() {
+        return route;
+    }
+
+    /**
+     * Returns the number of sessions ready to be leased right away.
+     *
+     * @return available session count
+     */
+    public int getAvailableCount() {
+        return availableSize();
+    }
+
+    /**
+     * Take the pool lock within the timeout.
+     *
+     * @param timeout time in millisecond
+     * @throws IcapException NO_FREE_CONNECTION if the lock could not be taken, local contention says nothing about the server
+     */
+    private void lock(final int timeout) throws IcapException {
+        try {
+            if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                throw new IcapException(FailureType.NO_FREE_CONNECTION, Collections.singletonList("pool lock timed out"));
+            }
+        } catch (InterruptedException e) {
+            throw new IcapException(FailureType.NO_FREE_CONNECTION, e);
+        }
+    }
+
+    /**
+     * Take the most recently returned available session. Called with the lock held, costs O(1) unless sessions that died or are due for
+     * rotation are in the way, those are dropped on the way.
+     *
+     * @param now the current time
+     * @return the session, null if none is available
+     */
+    @Nullable
+    private IcapSession pollAvailable(final long now) {
+        if (!underLimit()) {
+            return null;
+        }
+        IcapSession sess;
+        while (null != (sess = available.pollFirst())) {
+            if (sess.isDead()) {
+                continue;
+            }
+            if (isRetired(sess, now)) {
+                sess.close();
+                continue;
+            }
+            leased.add(sess);
+            return sess;
+        }
+        return null;
+    }
+
+    /**
+     * Has the session served its max number of commands or its max lifetime?
+     *
+     * @param sess the session
+     * @param now the current time
+     * @return true if the session should be closed rather than used again
+     */
+    private static boolean isRetired(@Nonnull final IcapSession sess, final long now) {
+        return sess.getCount() + 1 >= MAX_COMMAND_COUNT || now - sess.getCreateTime() >= MAX_SESSION_TIME;
+    }
+
+    /**
+     * Background housekeeping, run on the timer. Drops the available sessions whose channel is gone, closes those due for rotation and
+     * those idle for longer than the max idle time, so a lease never hands out a session the server already closed.
+     */
+    private void reap() {
+        final long now = clock.millis();
+        final long maxIdle = maxIdleMillis;
+        final List<IcapSession> toClose = new ArrayList<IcapSession>();
+        final List<Waiter> ready;
+        lock.lock();
+        try {
+            final Iterator<IcapSession> it = available.iterator();
+            while (it.hasNext()) {
+                final IcapSession sess = it.next();
+                final boolean idle = maxIdle > 0 && now - sess.getLastUsedTime() >= maxIdle && available.size() > minIdle;
+                if (sess.isDead() || isRetired(sess, now) || idle) {
+                    it.remove();
+                    toClose.add(sess);
                 }
+            }
+            ready = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        for (final IcapSession sess : toClose) {
+            sess.close();
+        }
+        handOver(ready);
+        probe();
+        refill();
+    }
+
+    /**
+     * Open and warm up sessions until min idle sessions are available or being warmed up, within the max sessions.
+     */
+    private void refill() {
+        final IcapRequestProducer producer = warmUpProducer;
+        final IcapResponseConsumer consumer = warmUpConsumer;
+        if (minIdle <= 0 || null == producer || null == consumer || isCircuitOpen()) {
+            return;
+        }
+        int toOpen = 0;
+        lock.lock();
+        try {
+            while (available.size() + warming.size() + toOpen < minIdle && waiters.isEmpty() && hasFreeSlot()) {
+                connecting++;
+                toOpen++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < toOpen; i++) {
+            warmUpReserved(producer, consumer);
+        }
+    }
+
+    /**
+     * Send the single OPTIONS probe of a circuit breaker whose open time is over.
+     */
+    private void probe() {
+        final IcapCircuitBreaker cb = breaker;
+        final IcapRequestProducer producer = warmUpProducer;
+        final IcapResponseConsumer consumer = warmUpConsumer;
+        if (null == cb || null == producer || null == consumer || !cb.tryProbe()) {
+            return;
+        }
+        final boolean reserved;
+        lock.lock();
+        try {
+            reserved = hasFreeSlot();
+            if (reserved) {
+                connecting++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (reserved) {
+            warmUpReserved(producer, consumer);
+        } else {
+            // no room for the probe, wait for another open period
+            cb.onFailure();
+        }
+    }
+
+    /**
+     * Open a session in a slot reserved with connecting and warm it up with OPTIONS. The session joins the available list once the server
+     * answers, the outcome is fed to the circuit breaker.
+     *
+     * @param producer produces the OPTIONS request
+     * @param consumer decodes the OPTIONS response
+     */
+    private void warmUpReserved(@Nonnull final IcapRequestProducer producer, @Nonnull final IcapResponseConsumer consumer) {
+        final IcapSession sess;
+        try {
+            sess = connectReserved();
+        } catch (IcapException e) {
+            logger.debug("warm up connect to " + route + " failed " + e, null);
+            recordOutcome(e);
+            return;
+        }
+        final boolean dead;
+        lock.lock();
+        try {
+            // a connect that failed already was discarded before it could be tracked
+            dead = sess.isDead();
+            if (!dead) {
+                warming.add(sess);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (dead) {
+            recordOutcome(new IcapException(FailureType.NOT_CONNECTED));
+            return;
+        }
+        try {
+            sess.warmUp(producer, consumer);
+        } catch (IcapException e) {
+            sess.close();
+            discard(sess);
+        }
+    }
+
+    /**
+     * Is there room for another session? Called with the lock held.
+     *
+     * @return true if a new session may be created
+     */
+    private boolean hasFreeSlot() {
+        return (maxAllowedSessions <= 0 || size() + connecting < maxAllowedSessions) && underLimit();
+    }
+
+    /**
+     * May another session be leased under the adaptive limit? Called with the lock held.
+     *
+     * @return true if no adaptive limit is set or it is not reached
+     */
+    private boolean underLimit() {
+        final IcapAdaptiveLimit limit = adaptiveLimit;
+        return null == limit || leased.size() + connecting < limit.getLimit();
+    }
 
-                // time check
-                if (deadline <= clock.millis()) {
-                    throw new IcapException(FailureType.TIMEOUT);
+    /**
+     * Create a session in a slot reserved with connecting, outside the lock.
+     *
+     * @return the new session
+     * @throws IcapException on connect failure
+     */
+    @Nonnull
+    private IcapSession connectReserved() throws IcapException {
+        IcapSession sess = null;
+        try {
+            sess = client.connect(route, this);
+            return sess;
+        } finally {
+            lock.lock();
+            try {
+                connecting--;
+                if (null != sess) {
+                    leased.add(sess);
                 }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Pair the oldest waiters with available sessions, or with free slots to connect in. Called with the lock held, the waiters are handed
+     * their sessions by {@link #handOver(List)} once the lock is released.
+     *
+     * @return the waiters to hand a session to, with a null session for those that get a new connection
+     */
+    @Nonnull
+    private List<Waiter> dispatch() {
+        List<Waiter> ready = null;
+        while (!waiters.isEmpty()) {
+            final Waiter waiter = waiters.peek();
+            if (waiter.future.isDone()) {
+                // cancelled
+                waiters.poll();
+                continue;
+            }
+            final IcapSession sess = pollAvailable(clock.millis());
+            if (null != sess) {
+                waiter.session = sess;
+            } else if (hasFreeSlot()) {
+                connecting++;
+            } else {
+                break;
             }
+            waiters.poll();
+            if (null == ready) {
+                ready = new ArrayList<Waiter>();
+            }
+            ready.add(waiter);
+        }
+        return null == ready ? new ArrayList<Waiter>(0) : ready;
+    }
 
+    /**
+     * Hand the dispatched waiters their sessions, outside the lock. A session whose waiter gave up in the meantime is returned.
+     *
+     * @param ready the dispatched waiters
+     */
+    private void handOver(@Nonnull final List<Waiter> ready) {
+        for (final Waiter waiter : ready) {
+            IcapSession sess = waiter.session;
             if (null == sess) {
-                // all sessions are in use
-                if (maxAllowedSessions > 0 && size() >= maxAllowedSessions) {
-                    throw new IcapException(FailureType.NO_FREE_CONNECTION);
+                try {
+                    sess = connectReserved();
+                } catch (IcapException e) {
+                    waiter.future.completeExceptionally(e);
+                    continue;
+                }
+            }
+            if (waiter.future.complete(sess)) {
+                final long waited = clock.millis() - waiter.since;
+                waitCount.incrementAndGet();
+                totalWaitMillis.addAndGet(waited);
+                long max = maxWaitMillis.get();
+                while (waited > max && !maxWaitMillis.compareAndSet(max, waited)) {
+                    max = maxWaitMillis.get();
                 }
-                // try getting a new session
-                sess = client.connect(route, icapRequestProducer, icapResponseConsumer);
-                leased.add(sess);
             } else {
-                availableIter.remove();
-                leased.add(sess);
+                giveBack(sess);
             }
+        }
+    }
 
-            return sess;
-
-        } catch (IcapException e) {
-            throw e;
-        } catch (InterruptedException e) {
-            throw new IcapException(FailureType.NO_FREE_CONNECTION, e);
+    /**
+     * Fail a waiter that reached its deadline.
+     *
+     * @param waiter the waiter
+     */
+    private void expire(@Nonnull final Waiter waiter) {
+        lock.lock();
+        try {
+            if (!waiters.remove(waiter)) {
+                return;
+            }
         } finally {
             lock.unlock();
         }
+        waitTimeouts.incrementAndGet();
+        waiter.future.completeExceptionally(new IcapException(FailureType.NO_FREE_CONNECTION));
     }
 
     /**
@@ -190,4 +1048,26 @@ public class IcapRouteSpecificSessionPool {
         return available.size();
     }
 
+    /**
+     * A caller waiting for a session.
+     */
+    private static final class Waiter {
+        /** Completed with the session handed over. */
+        private final CompletableFuture<IcapSession> future = new CompletableFuture<IcapSession>();
+        /** Time the caller started waiting. */
+        private final long since;
+        /** The session handed over by dispatch, null for a new connection. */
+        private IcapSession session;
+        /** Fails the waiter at its deadline, cancelled once the future completes. */
+        private volatile ScheduledFuture<?> deadline;
+
+        /**
+         * Constructor.
+         *
+         * @param since time the caller started waiting
+         */
+        private Waiter(final long since) {
+            this.since = since;
+        }
+    }
 }
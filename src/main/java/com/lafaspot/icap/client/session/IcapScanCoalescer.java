@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+
+/**
+ * Coalesces identical scans in flight. The first scan of a payload on a route goes to the server, scans of the same payload started before
+ * it completes wait for its result instead of leasing a session and uploading the payload again. Each waiting caller gets its own result
+ * object, the cleaned payload is shared read-only between them.
+ */
+public class IcapScanCoalescer {
+
+    /** Scans in flight, by route, payload digest and mode. */
+    private final ConcurrentMap<Key, Flight> inflight = new ConcurrentHashMap<Key, Flight>();
+
+    /** Number of scans that were answered by a scan already in flight. */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Starts a scan, or joins the identical scan already in flight. Cancelling the returned future only drops this caller: the scan goes on
+     * for the callers still waiting on it, and is cancelled once none is left.
+     *
+     * @param route server URI
+     * @param digest digest of the payload
+     * @param verdictOnly the scan only asks for the verdict
+     * @param scan starts the scan when none is in flight
+     * @return the future object
+     * @throws IcapException if the scan could not be started
+     */
+    public CompletableFuture<IcapResult> scan(@Nonnull final URI route, @Nonnull final byte[] digest, final boolean verdictOnly,
+            @Nonnull final Scan scan) throws IcapException {
+        final Key key = new Key(route, digest, verdictOnly);
+        final CompletableFuture<IcapResult> leader = new CompletableFuture<IcapResult>();
+        final Flight flight = new Flight(leader);
+        Flight existing = inflight.putIfAbsent(key, flight);
+        while (null != existing) {
+            final CompletableFuture<IcapResult> joined = existing.join();
+            if (null != joined) {
+                coalesced.incrementAndGet();
+                return joined;
+            }
+            // every caller of that scan gave up, it is being cancelled
+            inflight.remove(key, existing);
+            existing = inflight.putIfAbsent(key, flight);
+        }
+
+        final IcapFuture future;
+        try {
+            future = scan.start();
+        } catch (IcapException e) {
+            inflight.remove(key, flight);
+            flight.complete(null, e);
+            throw e;
+        }
+        flight.started(future);
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                // later scans of the payload go to the server or the result cache again
+                inflight.remove(key, flight);
+                flight.complete(result, cause);
+            }
+        });
+        return leader;
+    }
+
+    /**
+     * Returns the number of scans answered by a scan already in flight.
+     *
+     * @return coalesced scan count
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of distinct scans in flight.
+     *
+     * @return in flight count
+     */
+    public int getInflight() {
+        return inflight.size();
+    }
+
+    /**
+     * Copy a result, so callers sharing a scan do not share a mutable object. The cleaned payload is not copied, see
+     * {@link IcapResult#setCleanedPayload(IcapResult)}.
+     *
+     * @param result the result
+     * @return the copy
+     */
+    private static IcapResult copy(@Nonnull final IcapResult result) {
+        final IcapResult c = new IcapResult();
+        if (null != result.getDisposition()) {
+            c.setDisposition(result.getDisposition());
+        }
+        c.setNumViolations(result.getNumViolations());
+        c.setViolationFilename(result.getViolationFilename());
+        c.setViolationName(result.getViolationName());
+        c.setViolationId(result.getViolationId());
+        c.setIstag(result.getIstag());
+        c.setCleanedPayload(result);
+        return c;
+    }
+
+    /**
+     * Starts the scan that others may join.
+     */
+    public interface Scan {
+        /**
+         * Start the scan.
+         *
+         * @return the future of the scan
+         * @throws IcapException on failure
+         */
+        IcapFuture start() throws IcapException;
+    }
+
+    /**
+     * One scan in flight and the callers waiting on it.
+     */
+    private static final class Flight {
+        /** Future of the caller that started the scan, handed the result itself. */
+        private final CompletableFuture<IcapResult> leader;
+
+        /** Futures of the callers still waiting, guarded by this. */
+        private final List<CompletableFuture<IcapResult>> callers = new ArrayList<CompletableFuture<IcapResult>>();
+
+        /** The scan, null until it started, guarded by this. */
+        private IcapFuture scan;
+
+        /** No caller may join any more, the scan is over or being cancelled, guarded by this. */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         *
+         * @param leader future of the caller that starts the scan
+         */
+        private Flight(@Nonnull final CompletableFuture<IcapResult> leader) {
+            this.leader = leader;
+            add(leader);
+        }
+
+        /**
+         * Add a caller to the scan.
+         *
+         * @return the caller's future, null if the scan is over or being cancelled
+         */
+        @Nullable
+        private CompletableFuture<IcapResult> join() {
+            final CompletableFuture<IcapResult> joined = new CompletableFuture<IcapResult>();
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                add(joined);
+            }
+            return joined;
+        }
+
+        /**
+         * Track a caller's future, dropping the caller if it cancels.
+         *
+         * @param caller the caller's future
+         */
+        private void add(@Nonnull final CompletableFuture<IcapResult> caller) {
+            synchronized (this) {
+                callers.add(caller);
+            }
+            caller.whenComplete(new BiConsumer<IcapResult, Throwable>() {
+                @Override
+                public void accept(final IcapResult result, final Throwable cause) {
+                    if (cause instanceof CancellationException) {
+                        leave(caller);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Record the scan once started, so the last caller to leave can cancel it.
+         *
+         * @param future the future of the scan
+         */
+        private synchronized void started(@Nonnull final IcapFuture future) {
+            scan = future;
+        }
+
+        /**
+         * Drop a caller that cancelled, and cancel the scan if no caller is left.
+         *
+         * @param caller the caller's future
+         */
+        private void leave(@Nonnull final CompletableFuture<IcapResult> caller) {
+            final IcapFuture toCancel;
+            synchronized (this) {
+                if (!callers.remove(caller) || !callers.isEmpty() || closed) {
+                    return;
+                }
+                closed = true;
+                toCancel = scan;
+            }
+            if (null != toCancel) {
+                toCancel.cancel(true);
+            }
+        }
+
+        /**
+         * Hand the scan's outcome to the callers still waiting, a copy of the result to each one but the leader.
+         *
+         * @param result the result, null on failure
+         * @param cause the failure cause, null on success
+         */
+        private void complete(@Nullable final IcapResult result, @Nullable final Exception cause) {
+            final List<CompletableFuture<IcapResult>> waiting;
+            synchronized (this) {
+                closed = true;
+                waiting = new ArrayList<CompletableFuture<IcapResult>>(callers);
+                callers.clear();
+            }
+            for (final CompletableFuture<IcapResult> caller : waiting) {
+                if (null != cause) {
+                    caller.completeExceptionally(cause);
+                } else {
+                    caller.complete(caller == leader ? result : copy(result));
+                }
+            }
+        }
+    }
+
+    /**
+     * Key of a scan in flight.
+     */
+    private static final class Key {
+        /** Server URI. */
+        private final URI route;
+        /** Payload digest. */
+        private final byte[] digest;
+        /** Verdict only scan. */
+        private final boolean verdictOnly;
+        /** Cached hash code. */
+        private final int hash;
+
+        /**
+         * Constructor.
+         *
+         * @param route server URI
+         * @param digest payload digest
+         * @param verdictOnly verdict only scan
+         */
+        private Key(@Nonnull final URI route, @Nonnull final byte[] digest, final boolean verdictOnly) {
+            this.route = route;
+            this.digest = digest;
+            this.verdictOnly = verdictOnly;
+            this.hash = route.hashCode() ^ Arrays.hashCode(digest) ^ Boolean.hashCode(verdictOnly);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return hash == other.hash && verdictOnly == other.verdictOnly && Arrays.equals(digest, other.digest) && route.equals(other.route);
+        }
+    }
+}
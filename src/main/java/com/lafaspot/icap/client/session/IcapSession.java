@@ -3,11 +3,17 @@
  */
 package com.lafaspot.icap.client.session;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.lafaspot.icap.client.IcapRequestProducer;
 import com.lafaspot.icap.client.IcapResponseConsumer;
@@ -24,7 +30,9 @@ import com.lafaspot.logfast.logging.Logger;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
 import io.netty.util.concurrent.GenericFutureListener;
 
 /**
@@ -45,100 +53,342 @@ public class IcapSession {
      * @param connectTimeout channel connect timeout
      * @param inactivityTimeout channel inactivity timeout
      * @param reuseSession if sessions should be reused
+     * @param pool the pool this session is returned to after each scan, null if not pooled
+     * @param optionsCache the OPTIONS response cache shared by all sessions of the client
      * @param logManager the LogManager instance
-     * @param icapRequestProducer An ICAP request producer
-     * @param icapResponseConsumer An ICAP response consumer
      * @throws IcapException on failure
      */
     public IcapSession(@Nonnull final String sessionId, @Nonnull final Bootstrap bootstrap, @Nonnull final URI uri,
             final int connectTimeout,
-            final int inactivityTimeout, final boolean reuseSession, @Nonnull final LogManager logManager,
-            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer)
-            throws IcapException {
+            final int inactivityTimeout, final boolean reuseSession, @Nullable final IcapRouteSpecificSessionPool pool,
+            @Nonnull final IcapOptionsCache optionsCache, @Nonnull final LogManager logManager) throws IcapException {
         this.bootstrap = bootstrap;
         this.serverUri = uri;
         this.connectTimeout = connectTimeout;
         this.inactivityTimeout = inactivityTimeout;
         this.count = 0;
         this.createTime = System.currentTimeMillis();
+        this.lastUsedTime = createTime;
         this.reuseSession = reuseSession;
+        this.pool = pool;
+        this.optionsCache = optionsCache;
         LogContext context = new SessionLogContext("IcapSession-" + uri.toASCIIString(), sessionId);
         this.logger = logManager.getLogger(context);
-        this.icapRequestProducer = icapRequestProducer;
-        this.icapResponseConsumer = icapResponseConsumer;
     }
 
     /**
-     * Open a connection to the server identified by route.
+     * Open a connection to the server identified by route, waiting for it to be established.
      *
      * @throws IcapException on connect failure
      */
     public void connect() throws IcapException {
         logger.debug(" +++ connect to  " + serverUri, null);
+        connectStarted = true;
+        stateRef.set(IcapSessionState.CONNECTING);
         bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
         ChannelFuture future = bootstrap.connect(serverUri.getHost(), serverUri.getPort());
         future.awaitUninterruptibly();
-
-        if (future.isCancelled()) {
-            // ignore
-        } else if (!future.isSuccess()) {
+        onConnect(future);
+        if (!future.isCancelled() && !future.isSuccess()) {
             throw new IcapException(IcapException.FailureType.NOT_CONNECTED);
-        } else {
-            stateRef.set(IcapSessionState.CONNECTED);
+        }
+    }
+
+    /**
+     * Start connecting to the server identified by route, without waiting for the connection. A scan started before the connection is up
+     * is sent from the event loop once it is, or fails with {@link IcapException.FailureType#NOT_CONNECTED}.
+     */
+    public void connectAsync() {
+        logger.debug(" +++ connect async to  " + serverUri, null);
+        connectStarted = true;
+        stateRef.set(IcapSessionState.CONNECTING);
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+        final ChannelFuture future = bootstrap.connect(serverUri.getHost(), serverUri.getPort());
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture f) {
+                onConnect(f);
+            }
+        });
+    }
 
-            this.sessionChannel = future.channel();
-            this.sessionChannel.pipeline().addLast("inactivityHandler", new IcapInactivityHandler(this, inactivityTimeout, logger));
-            this.sessionChannel.pipeline().addLast(new IcapMessageDecoder(logger, icapResponseConsumer));
-            this.sessionChannel.pipeline().addLast(new IcapChannelHandler(this));
+    /**
+     * Set up the channel once the connect attempt is over, and send the scan that was started while connecting.
+     *
+     * @param future the connect future
+     */
+    private void onConnect(@Nonnull final ChannelFuture future) {
+        if (!future.isSuccess()) {
+            stateRef.set(IcapSessionState.DISCONNECTED);
+            releaseSink();
+            final IcapFuture f = futureRef.getAndSet(null);
+            if (null != f) {
+                f.done(new IcapException(IcapException.FailureType.NOT_CONNECTED, future.cause()));
+            }
+            if (null != pool) {
+                pool.discard(this);
+            }
+            return;
+        }
 
-            final IcapSession thisSession = this;
-            this.sessionChannel.closeFuture().addListener(new GenericFutureListener() {
-                @Override
-                public void operationComplete(final io.netty.util.concurrent.Future future) throws Exception {
-                    thisSession.onDisconnect();
-                }
-            });
+        this.sessionChannel = future.channel();
+        this.sessionChannel.pipeline().addLast("inactivityHandler", new IcapInactivityHandler(this, inactivityTimeout, logger));
+        this.decoder = new IcapMessageDecoder(logger);
+        this.sessionChannel.pipeline().addLast(decoder);
+        this.sessionChannel.pipeline().addLast(new IcapChannelHandler(this));
+
+        final IcapSession thisSession = this;
+        this.sessionChannel.closeFuture().addListener(new GenericFutureListener() {
+            @Override
+            public void operationComplete(final io.netty.util.concurrent.Future future) throws Exception {
+                thisSession.onDisconnect();
+            }
+        });
+
+        if (stateRef.compareAndSet(IcapSessionState.CONNECTING, IcapSessionState.CONNECTED)) {
+            return;
+        }
+        // straight to a busy state, a lease in between must not see the session as available
+        if (!stateRef.compareAndSet(IcapSessionState.CONNECT_PENDING_SCAN, IcapSessionState.SCAN)) {
+            // closed while connecting
+            close();
+            return;
+        }
+        // a scan was started while connecting
+        decoder.setIcapResponseConsumer(icapResponseConsumer);
+        decoder.setResultSink(resultSink);
+        try {
+            startScan();
+        } catch (IcapException e) {
+            final IcapFuture f = futureRef.getAndSet(null);
+            close();
+            if (null != f) {
+                f.done(e);
+            }
+        }
+    }
+
+    /**
+     * Bind a producer and a consumer to this session for {@link #scanFile(String, byte[])}.
+     *
+     * @param icapRequestProducer An ICAP request producer
+     * @param icapResponseConsumer An ICAP response consumer
+     * @deprecated pass the producer and consumer to {@link #scanFile(String, byte[], IcapRequestProducer, IcapResponseConsumer)}
+     */
+    @Deprecated
+    public void bind(@Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer) {
+        this.boundProducer = icapRequestProducer;
+        this.boundConsumer = icapResponseConsumer;
+    }
+
+    /**
+     * Request to scan an file with the producer and consumer bound to this session.
+     *
+     * @param filename name of the file to be scanned
+     * @param fileToScan byte stream of the file to be scanned
+     * @return the future object
+     * @throws IcapException on failure, INTERNAL_ERROR if no producer and consumer are bound
+     * @deprecated use {@link #scanFile(String, byte[], IcapRequestProducer, IcapResponseConsumer)}
+     */
+    @Deprecated
+    public IcapFuture scanFile(@Nonnull final String filename, @Nonnull final byte[] fileToScan) throws IcapException {
+        final IcapRequestProducer producer = boundProducer;
+        final IcapResponseConsumer consumer = boundConsumer;
+        if (null == producer || null == consumer) {
+            throw new IcapException(IcapException.FailureType.INTERNAL_ERROR,
+                    Collections.singletonList("no producer and consumer bound to the session"));
         }
+        return scanFile(filename, fileToScan, producer, consumer);
     }
 
     /**
      * Request to scan an file, a request will be sent to the Symantec AV server to scan the request to clean/determine if the file is clean.
+     * The producer and consumer are bound to this session for the duration of this scan only, a reused session gets a fresh pair on every
+     * scan.
      *
      * @param filename name of the file to be scanned
      * @param fileToScan byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer for this scan
+     * @param icapResponseConsumer An ICAP response consumer for this scan
      * @return the future object
      * @throws IcapException on failure
      */
-    @SuppressWarnings({ "unchecked", "rawtypes", "checkstyle:illegalcatch" })
-    public Future<IcapResult> scanFile(@Nonnull final String filename, @Nonnull final byte[] fileToScan)
+    public IcapFuture scanFile(@Nonnull final String filename, @Nonnull final byte[] fileToScan,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer)
             throws IcapException {
+        return scanFile(filename, fileToScan, icapRequestProducer, icapResponseConsumer, null, false);
+    }
 
+    /**
+     * Request to scan a file, writing the cleaned payload to a sink as it is received instead of collecting it in the result. The result
+     * then carries the number of bytes written, and no cleaned bytes.
+     *
+     * @param filename name of the file to be scanned
+     * @param fileToScan byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer for this scan
+     * @param icapResponseConsumer An ICAP response consumer for this scan
+     * @param resultSink where the cleaned payload is written, null to collect it in the result
+     * @param closeSink close the sink once the scan is over
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    public IcapFuture scanFile(@Nonnull final String filename, @Nonnull final byte[] fileToScan,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer,
+            @Nullable final WritableByteChannel resultSink, final boolean closeSink) throws IcapException {
+        return scanFile(new IcapFuture(this), filename, fileToScan, icapRequestProducer, icapResponseConsumer, resultSink, closeSink);
+    }
+
+    /**
+     * Start a scan whose future was handed out before the session was leased, for instance while the caller waited in the pool's queue. If
+     * the future was cancelled in the meantime the session goes back to its pool unused. A failed connect fails the future.
+     *
+     * @param icapFuture the future of the scan
+     * @param filename name of the file to be scanned
+     * @param fileToScan byte stream of the file to be scanned
+     * @param icapRequestProducer An ICAP request producer for this scan
+     * @param icapResponseConsumer An ICAP response consumer for this scan
+     * @param resultSink where the cleaned payload is written, null to collect it in the result
+     * @param closeSink close the sink once the scan is over
+     * @return the future object
+     * @throws IcapException on failure
+     */
+    public IcapFuture scanFile(@Nonnull final IcapFuture icapFuture, @Nonnull final String filename, @Nonnull final byte[] fileToScan,
+            @Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer,
+            @Nullable final WritableByteChannel resultSink, final boolean closeSink) throws IcapException {
+
+        if (!icapFuture.attach(this)) {
+            if (null != pool) {
+                pool.giveBack(this);
+            }
+            return icapFuture;
+        }
+
+        final IcapSessionState state = stateRef.get();
+        if (state != IcapSessionState.CONNECTED && state != IcapSessionState.CONNECTING) {
+            if (!connectStarted) {
+                throw new IcapException(IcapException.FailureType.NOT_CONNECTED);
+            }
+            // the connect attempt already failed, fail the scan the same way as one that was waiting for it
+            icapFuture.done(new IcapException(IcapException.FailureType.NOT_CONNECTED));
+            return icapFuture;
+        }
+
+        this.icapRequestProducer = icapRequestProducer;
+        this.icapResponseConsumer = icapResponseConsumer;
+        this.resultSink = resultSink;
+        this.closeSink = closeSink;
+        this.scanData = fileToScan;
+        count++;
+
+        // set the future before writing, the response may arrive before writeAndFlush() returns
+        futureRef.set(icapFuture);
+        if (icapFuture.isOver()) {
+            // cancelled after attach() but before the future was set, the cancel found nothing to abandon
+            if (futureRef.compareAndSet(icapFuture, null)) {
+                releaseSink();
+                if (null != pool) {
+                    pool.giveBack(this);
+                }
+            }
+            return icapFuture;
+        }
+        if (stateRef.compareAndSet(IcapSessionState.CONNECTING, IcapSessionState.CONNECT_PENDING_SCAN)) {
+            // sent from the event loop once connected
+            return icapFuture;
+        }
         if (stateRef.get() != IcapSessionState.CONNECTED) {
+            // the connect attempt failed in the meantime, unless the failed connect took the future already
+            if (futureRef.compareAndSet(icapFuture, null)) {
+                icapFuture.done(new IcapException(IcapException.FailureType.NOT_CONNECTED));
+            }
+            return icapFuture;
+        }
+        this.decoder.setIcapResponseConsumer(icapResponseConsumer);
+        this.decoder.setResultSink(resultSink);
+        startScan();
+        return icapFuture;
+    }
+
+    /**
+     * Warm a new pooled session up: once connected, send OPTIONS to check that the service answers and to refresh the cached options, then
+     * return the session to its pool as available. A session that fails to connect or to answer is closed and leaves the pool.
+     *
+     * @param icapRequestProducer produces the OPTIONS request
+     * @param icapResponseConsumer decodes the OPTIONS response
+     * @throws IcapException if the session is not connected or connecting
+     */
+    public void warmUp(@Nonnull final IcapRequestProducer icapRequestProducer, @Nonnull final IcapResponseConsumer icapResponseConsumer)
+            throws IcapException {
+        final IcapSessionState state = stateRef.get();
+        if (state != IcapSessionState.CONNECTED && state != IcapSessionState.CONNECTING) {
             throw new IcapException(IcapException.FailureType.NOT_CONNECTED);
         }
+        this.icapRequestProducer = icapRequestProducer;
+        this.icapResponseConsumer = icapResponseConsumer;
+        this.warmingUp = true;
+        if (stateRef.compareAndSet(IcapSessionState.CONNECTING, IcapSessionState.CONNECT_PENDING_SCAN)) {
+            // sent from the event loop once connected
+            return;
+        }
+        if (!stateRef.compareAndSet(IcapSessionState.CONNECTED, IcapSessionState.OPTIONS)) {
+            throw new IcapException(IcapException.FailureType.NOT_CONNECTED);
+        }
+        this.decoder.setIcapResponseConsumer(icapResponseConsumer);
+        startScan();
+    }
 
-        if (fileToScan.length == 0) {
-            IcapFuture icapFuture = new IcapFuture(this);
+    /**
+     * Send the first request of the scan bound to this session, or complete it right away for an empty payload.
+     *
+     * @throws IcapException on failure
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes", "checkstyle:illegalcatch" })
+    private void startScan() throws IcapException {
+        requestSentNanos = 0;
+        if (warmingUp) {
+            try {
+                stateRef.set(IcapSessionState.OPTIONS);
+                this.sessionChannel.writeAndFlush(icapRequestProducer.generateOptions().getMessage());
+            } catch (final Exception e) {
+                throw new IcapException(IcapException.FailureType.SCAN_REQUEST_FAILED, e);
+            }
+            return;
+        }
+        if (scanData.length == 0) {
+            final IcapFuture icapFuture = futureRef.getAndSet(null);
             IcapResult icapResult = new IcapResult();
-            icapResult.setCleanedBytes(fileToScan);
+            if (null == resultSink && !icapResponseConsumer.isVerdictOnly()) {
+                icapResult.setCleanedBytes(scanData);
+            }
             icapResult.setDisposition(Disposition.CLEAN);
             icapResult.setNumViolations(0);
-            icapFuture.done(icapResult);
-            futureRef.set(icapFuture);
-            return futureRef.get();
+            scanCompleted();
+            if (null != icapFuture) {
+                icapFuture.done(icapResult);
+            }
+            return;
         }
 
         try {
-            logger.debug("connected, sending", null);
-            stateRef.set(IcapSessionState.OPTIONS);
-            Future writeFuture = this.sessionChannel.writeAndFlush(icapRequestProducer.generateOptions().getMessage());
-
+            boolean sendOptions = optionsCache.needsOptions(serverUri);
+            if (sendOptions && optionsCache.hasOptions(serverUri) && null != pool
+                    && pool.refreshOptions(icapRequestProducer, icapResponseConsumer)) {
+                // the expired options are refreshed on a new session, this scan goes on with the stale ones
+                sendOptions = false;
+            }
+            if (sendOptions) {
+                logger.debug("connected, sending", null);
+                stateRef.set(IcapSessionState.OPTIONS);
+                Future writeFuture = this.sessionChannel.writeAndFlush(icapRequestProducer.generateOptions().getMessage());
+            } else {
+                // options for this route are cached, go straight to the scan
+                stateRef.set(IcapSessionState.SCAN);
+                sendRespmod();
+            }
         } catch (final Exception e) {
+            futureRef.set(null);
             throw new IcapException(IcapException.FailureType.SCAN_REQUEST_FAILED, e);
         }
-
-        futureRef.set(new IcapFuture(this));
-        return futureRef.get();
     }
 
     /**
@@ -147,52 +397,203 @@ public class IcapSession {
      * @param msg incoming message
      */
     public void processResponse(@Nonnull final IcapMessage msg) {
-        logger.debug("<- messageReceived in " + stateRef.get() + ", [\r\n" + msg.toString() + "\r\n]", null);
+        if (logger.isDebug()) {
+            logger.debug("<- messageReceived in " + stateRef.get() + ", [\r\n" + msg.toString() + "\r\n]", null);
+        }
         switch (stateRef.get()) {
         case OPTIONS:
             if (null != msg.getCause()) {
                 logger.debug("options failed " + msg.getCause(), null);
-                final IcapFuture f = futureRef.get();
-                futureRef.set(null);
+                final IcapFuture f = futureRef.getAndSet(null);
+                // the stream state is unknown, do not hand this session out again
+                close();
                 if (null != f) {
                     f.done(msg.getCause());
                 }
             } else {
-                stateRef.set(IcapSessionState.SCAN);
+                // not timed for the adaptive limit, OPTIONS is answered without a scan and would set a baseline no RESPMOD can meet
+                optionsCache.update(serverUri, msg);
                 msg.reset();
-                final IcapRespmod icapRespmod = icapRequestProducer.generateRespMod(reuseSession);
-                logger.debug(" sending scan req [\r\n" + icapRespmod.getRespModString() + "\r\n]", null);
-                this.sessionChannel.writeAndFlush(icapRespmod.getRespModString());
-                this.sessionChannel.writeAndFlush(icapRespmod.getInStream());
-                this.sessionChannel.writeAndFlush(icapRespmod.getTrailerBytes());
-                this.sessionChannel.writeAndFlush(icapRespmod.getEndOfMessage());
-                logger.debug(" written payload -> ", null);
-                this.sessionChannel.flush();
+                if (warmingUp) {
+                    // the service answered, the session is ready for scans; tell the pool before a session that is not reused closes
+                    warmingUp = false;
+                    if (null != pool) {
+                        pool.warmedUp(this);
+                    }
+                    scanCompleted();
+                    break;
+                }
+                stateRef.set(IcapSessionState.SCAN);
+                sendRespmod();
             }
             break;
-        case SCAN:
-            if (msg.getCause() != null) {
-                logger.debug(" SCAN state - failed " + msg.getCause(), null);
-                final IcapFuture f = futureRef.get();
-                if (f != null) {
-                    futureRef.set(null);
-                    f.done(msg.getCause());
-                }
+        case PREVIEW:
+            if (null == msg.getCause() && ICAP_STATUS_CONTINUE == msg.getStatus()) {
+                // the server wants the rest of the payload
+                stateRef.set(IcapSessionState.SCAN);
+                sendRemainder();
             } else {
+                // the server decided on the preview alone
+                handleScanResponse(msg);
+            }
+            break;
+        case SCAN:
+            handleScanResponse(msg);
+            break;
+        default:
+        }
+    }
+
+    /**
+     * Complete the scan in progress with the final RESPMOD response.
+     *
+     * @param msg the RESPMOD response
+     */
+    private void handleScanResponse(@Nonnull final IcapMessage msg) {
+        // hand the session back before waking up the caller, so a follow-up scan finds it available
+        final IcapFuture f = futureRef.getAndSet(null);
+        if (msg.getCause() != null) {
+            logger.debug(" SCAN state - failed " + msg.getCause(), null);
+            close();
+            if (f != null) {
+                f.done(msg.getCause());
+            }
+        } else {
+            if (logger.isDebug()) {
                 logger.debug(" SCAN state - success " + msg.getResult(), null);
-                final IcapFuture f = futureRef.get();
-                if (f != null) {
-                    futureRef.set(null);
-                    f.done(msg.getResult());
+            }
+            final IcapResult result = msg.getResult();
+            if (ICAP_STATUS_NO_CONTENT == msg.getStatus()) {
+                // nothing was echoed back, the content is unmodified
+                final IcapResponseConsumer consumer = icapResponseConsumer;
+                if (null != consumer && consumer.isVerdictOnly()) {
+                    result.setCleanedByteCount(scanData.length);
+                } else if (null != resultSink) {
+                    try {
+                        final ByteBuffer bytes = ByteBuffer.wrap(scanData);
+                        while (bytes.hasRemaining()) {
+                            resultSink.write(bytes);
+                        }
+                        result.setCleanedByteCount(scanData.length);
+                    } catch (IOException e) {
+                        scanCompleted();
+                        if (f != null) {
+                            f.done(new IcapException(IcapException.FailureType.RESULT_SINK_FAILED, e));
+                        }
+                        return;
+                    }
+                } else {
+                    result.setCleanedBytes(scanData);
                 }
             }
-            if (reuseSession) {
-                stateRef.set(IcapSessionState.CONNECTED);
-            } else {
-                close();
+            final String istag = msg.getIcapHeader(ISTAG_HEADER);
+            result.setIstag(istag);
+            optionsCache.onIstag(serverUri, istag);
+            final long sent = requestSentNanos;
+            if (null != pool && 0 != sent && msg.getFirstByteNanos() > sent) {
+                // from the last byte written to the first byte read, the upload and download of the payload are left out
+                pool.onServerTime(TimeUnit.NANOSECONDS.toMicros(msg.getFirstByteNanos() - sent));
             }
-            break;
-        default:
+            scanCompleted();
+            if (f != null) {
+                f.done(result);
+            }
+        }
+    }
+
+    /**
+     * Write the RESPMOD request for the scan in progress.
+     */
+    private void sendRespmod() {
+        final IcapRespmod icapRespmod = icapRequestProducer.generateRespMod(reuseSession, optionsCache.getPreviewSize(serverUri),
+                optionsCache.isAllow204(serverUri));
+        if (logger.isDebug()) {
+            logger.debug(" sending scan req [\r\n" + icapRespmod.getRespModString() + "\r\n]", null);
+        }
+        if (icapRespmod.isPreview() && !icapRespmod.isPreviewComplete()) {
+            // set the state before writing, the response may arrive before writeAndFlush() returns
+            this.previewRespmod = icapRespmod;
+            stateRef.set(IcapSessionState.PREVIEW);
+        }
+        // one frame wrapping the caller's bytes, one flush
+        this.sessionChannel.writeAndFlush(icapRespmod.toByteBuf(), sendPromise());
+        logger.debug(" written payload -> ", null);
+    }
+
+    /**
+     * Write the part of the payload that did not fit in the preview.
+     */
+    private void sendRemainder() {
+        final IcapRespmod icapRespmod = this.previewRespmod;
+        this.previewRespmod = null;
+        this.sessionChannel.writeAndFlush(icapRespmod.remainderToByteBuf(), sendPromise());
+    }
+
+    /**
+     * Returns a promise for a RESPMOD write that records when the write is done. The listener is added before writing, so it runs on the
+     * event loop as the write completes, not later from the calling thread.
+     *
+     * @return the write promise
+     */
+    private ChannelPromise sendPromise() {
+        final ChannelPromise promise = this.sessionChannel.newPromise();
+        promise.addListener(requestSent);
+        return promise;
+    }
+
+    /**
+     * Called once the current scan is complete. Drops the per scan producer/consumer and either returns the session to its pool or closes
+     * it.
+     */
+    private void scanCompleted() {
+        lastUsedTime = System.currentTimeMillis();
+        releaseSink();
+        this.icapRequestProducer = null;
+        this.icapResponseConsumer = null;
+        this.scanData = null;
+        this.previewRespmod = null;
+        if (reuseSession) {
+            stateRef.set(IcapSessionState.CONNECTED);
+            if (null != pool) {
+                pool.release(this);
+            }
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Drop the result sink of the scan in progress, closing it if the session was asked to.
+     */
+    private void releaseSink() {
+        final WritableByteChannel sink = this.resultSink;
+        this.resultSink = null;
+        if (null != decoder) {
+            decoder.setResultSink(null);
+        }
+        if (closeSink && null != sink) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                logger.debug("closing result sink failed " + e, null);
+            }
+        }
+    }
+
+    /**
+     * Abandon the scan of a cancelled future. The stream is left mid request or response, so the channel is closed rather than reused, and
+     * the session leaves its pool at once instead of waiting for the next lease to notice it is dead.
+     *
+     * @param future the cancelled future
+     */
+    void cancel(@Nonnull final IcapFuture future) {
+        if (!futureRef.compareAndSet(future, null)) {
+            return;
+        }
+        logger.debug("scan cancelled in " + stateRef.get(), null);
+        close();
+        if (null != pool) {
+            pool.discard(this);
         }
     }
 
@@ -202,6 +603,7 @@ public class IcapSession {
     public void onTimeout() {
         logger.debug("**channel timeout** TH " + Thread.currentThread().getId(), null);
         stateRef.set(IcapSessionState.DISCONNECTED);
+        releaseSink();
         if (null != this.sessionChannel) {
             this.sessionChannel.close();
         }
@@ -210,7 +612,7 @@ public class IcapSession {
             final IcapFuture f = futureRef.get();
             futureRef.set(null);
             if (null != f) {
-                f.done(new IcapException("inactivity timeout"));
+                f.done(new IcapException(IcapException.FailureType.TIMEOUT, Collections.singletonList("inactivity timeout")));
             }
         }
     }
@@ -222,6 +624,7 @@ public class IcapSession {
         logger.debug("**channel disconnected (not-ignored)** TH " + Thread.currentThread().getId(), null);
         final IcapSessionState prevState = stateRef.get();
         stateRef.set(IcapSessionState.DISCONNECTED);
+        releaseSink();
         if (null != this.sessionChannel) {
             this.sessionChannel.close();
         }
@@ -230,9 +633,13 @@ public class IcapSession {
             final IcapFuture f = futureRef.get();
             futureRef.set(null);
             if (null != f) {
-                f.done(new IcapException("Channel disconnected, state: " + prevState));
+                f.done(new IcapException(IcapException.FailureType.NOT_CONNECTED, Collections.singletonList("channel disconnected in " + prevState)));
             }
         }
+        if (null != pool) {
+            // free the slot now, a caller may be waiting for it
+            pool.discard(this);
+        }
     }
 
     /**
@@ -240,21 +647,32 @@ public class IcapSession {
      */
     public void close() {
         stateRef.set(IcapSessionState.DISCONNECTED);
+        warmingUp = false;
         final Channel ch = this.sessionChannel;
         futureRef.set(null);
         this.sessionChannel = null;
         this.icapResponseConsumer = null;
         this.icapRequestProducer = null;
-        ch.close();
+        this.scanData = null;
+        this.previewRespmod = null;
+        releaseSink();
+        if (null != ch) {
+            ch.close();
+        }
     }
 
     /**
-     * Is this session active?
+     * Is this session dead? Also true for an idle session whose channel the server closed, before the close has been processed.
      *
-     * @return return if active
+     * @return true if the session cannot be used
      */
     public boolean isDead() {
-        return stateRef.get() == IcapSessionState.DISCONNECTED;
+        final IcapSessionState state = stateRef.get();
+        if (state == IcapSessionState.DISCONNECTED) {
+            return true;
+        }
+        final Channel ch = this.sessionChannel;
+        return state == IcapSessionState.CONNECTED && null != ch && !ch.isActive();
     }
 
     /**
@@ -294,6 +712,15 @@ public class IcapSession {
         return count;
     }
 
+    /**
+     * Return the time the last scan on this session completed, or the creation time if none did.
+     *
+     * @return time this session was last used
+     */
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
     /**
      * Return the time stamp when the session was created.
      *
@@ -303,6 +730,15 @@ public class IcapSession {
         return createTime;
     }
 
+    /** ICAP ISTag header. */
+    private static final String ISTAG_HEADER = "ISTag";
+
+    /** ICAP status 100 Continue, sent by the server when it wants the rest of a previewed payload. */
+    private static final int ICAP_STATUS_CONTINUE = 100;
+
+    /** ICAP status 204 No Content. */
+    private static final int ICAP_STATUS_NO_CONTENT = 204;
+
     /** Reference to the current IcapFuture object. */
     private final AtomicReference<IcapFuture> futureRef = new AtomicReference<IcapFuture>();
 
@@ -322,7 +758,7 @@ public class IcapSession {
     private AtomicReference<IcapSessionState> stateRef = new AtomicReference<IcapSession.IcapSessionState>(IcapSessionState.DISCONNECTED);
 
     /** The channel associated with this session. */
-    private Channel sessionChannel;
+    private volatile Channel sessionChannel;
 
     /** The logger. */
     private final Logger logger;
@@ -330,26 +766,81 @@ public class IcapSession {
     /** Timestamp when the session was created. */
     private final long createTime;
 
+    /** Time the last scan completed. */
+    private volatile long lastUsedTime;
+
+    /** When the last RESPMOD bytes of the scan in progress were written, from System.nanoTime(), 0 until then. */
+    private volatile long requestSentNanos;
+
+    /** Records when a RESPMOD write is done. */
+    private final ChannelFutureListener requestSent = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            if (future.isSuccess()) {
+                requestSentNanos = System.nanoTime();
+            }
+        }
+    };
+
     /** Number of commands sent in this session. */
     private long count;
 
     /** Enable session reuse. */
     private final boolean reuseSession;
 
-    /** An ICAP request producer to be used for this session. */
+    /** The pool this session belongs to, null if the session is not pooled. */
+    private final IcapRouteSpecificSessionPool pool;
+
+    /** OPTIONS responses cached per route. */
+    private final IcapOptionsCache optionsCache;
+
+    /** The decoder on this session's channel. */
+    private IcapMessageDecoder decoder;
+
+    /** The ICAP request producer for the scan in progress. */
     private IcapRequestProducer icapRequestProducer;
 
-    /** An ICAP response consumer to be used for this session. */
+    /** The ICAP response consumer for the scan in progress. */
     private IcapResponseConsumer icapResponseConsumer;
 
+    /** The payload of the scan in progress. */
+    private byte[] scanData;
+
+    /** Where the cleaned payload of the scan in progress is written, null to collect it in the result. */
+    private WritableByteChannel resultSink;
+
+    /** Close the result sink once the scan is over. */
+    private boolean closeSink;
+
+    /** OPTIONS is sent to warm the session up, no scan is bound to it. */
+    private boolean warmingUp;
+
+    /** The RESPMOD whose preview was sent, kept until the server asks for the rest. */
+    private IcapRespmod previewRespmod;
+
+    /** A connect was started, a scan on the session fails its future rather than throwing if the connect failed. */
+    private volatile boolean connectStarted;
+
+    /** Producer bound by the deprecated connect, used by {@link #scanFile(String, byte[])}. */
+    private volatile IcapRequestProducer boundProducer;
+
+    /** Consumer bound by the deprecated connect, used by {@link #scanFile(String, byte[])}. */
+    private volatile IcapResponseConsumer boundConsumer;
+
     /** Enum identifying the session states. */
     enum IcapSessionState {
         /** Session not started. */
         DISCONNECTED,
+        /** connect in progress. */
+        CONNECTING,
+        /** connect in progress, a scan is waiting to be sent. */
+        CONNECT_PENDING_SCAN,
         /** connected. */
         CONNECTED,
         /** options request sent. */
         OPTIONS,
+        /** scan request preview sent, waiting for 100 Continue or the final response. */
+        PREVIEW,
         /** scan request sent. */
         SCAN
     };
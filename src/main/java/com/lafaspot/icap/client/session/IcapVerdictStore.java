@@ -0,0 +1,594 @@
+/**
+ *
+ */
+package com.lafaspot.icap.client.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.exception.IcapException.FailureType;
+
+/**
+ * Persistent verdict store in a memory-mapped file, so a restarted client does not rescan every popular attachment. Verdicts are kept off
+ * heap in fixed size slots, a store of millions of entries adds no objects for the garbage collector to trace.
+ *
+ * The file is a table of buckets of {@value #SLOTS_PER_BUCKET} slots. The key, the SHA-256 digest of the route and the payload digest,
+ * picks a bucket, and the slots of the bucket are probed in order. A full bucket overwrites its oldest slot. Each slot holds the
+ * disposition, violation count, id and name, ISTag, cleaned byte count and the time it was written. Strings longer than their slot field
+ * are truncated.
+ *
+ * Readers and writers may run concurrently on any thread. Every bucket is guarded by one of a fixed set of {@link StampedLock}s, readers
+ * use optimistic reads and only take the read lock when a writer got in the way.
+ *
+ * A file written with another table size is cleared when opened. The store holds at most {@link #MAX_SLOTS} slots, the largest file a
+ * single mapping covers.
+ */
+public class IcapVerdictStore implements Closeable {
+
+    /** Slots per bucket. */
+    public static final int SLOTS_PER_BUCKET = 8;
+
+    /** Bytes per slot. */
+    public static final int SLOT_SIZE = 256;
+
+    /** Bytes reserved for the file header. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Max number of slots. */
+    public static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE / SLOTS_PER_BUCKET * SLOTS_PER_BUCKET;
+
+    /** File magic, "ICVS". */
+    private static final int MAGIC = 0x49435653;
+
+    /** File format version. */
+    private static final int VERSION = 1;
+
+    /** Header offset of the magic. */
+    private static final int HEADER_MAGIC = 0;
+
+    /** Header offset of the version. */
+    private static final int HEADER_VERSION = 4;
+
+    /** Header offset of the slot count. */
+    private static final int HEADER_SLOTS = 8;
+
+    /** Header offset of the slot size. */
+    private static final int HEADER_SLOT_SIZE = 12;
+
+    /** Slot offset of the key, 4 longs. */
+    private static final int KEY = 0;
+
+    /** Key length in bytes. */
+    private static final int KEY_LENGTH = 32;
+
+    /** Slot offset of the write time, 0 for an empty slot. */
+    private static final int TIMESTAMP = 32;
+
+    /** Slot offset of the cleaned byte count. */
+    private static final int CLEANED_BYTE_COUNT = 40;
+
+    /** Slot offset of the violation count. */
+    private static final int NUM_VIOLATIONS = 48;
+
+    /** Slot offset of the disposition ordinal plus one, 0 for none. */
+    private static final int DISPOSITION = 52;
+
+    /** Slot offset of the flags. */
+    private static final int FLAGS = 53;
+
+    /** Flag set when the server returned the payload unmodified. */
+    private static final byte FLAG_UNMODIFIED = 1;
+
+    /** Slot offset of the ISTag, a length byte followed by the bytes. */
+    private static final int ISTAG = 64;
+
+    /** Field size of the ISTag. */
+    private static final int ISTAG_SIZE = 64;
+
+    /** Slot offset of the violation id. */
+    private static final int VIOLATION_ID = ISTAG + ISTAG_SIZE;
+
+    /** Field size of the violation id. */
+    private static final int VIOLATION_ID_SIZE = 48;
+
+    /** Slot offset of the violation name. */
+    private static final int VIOLATION_NAME = VIOLATION_ID + VIOLATION_ID_SIZE;
+
+    /** Field size of the violation name. */
+    private static final int VIOLATION_NAME_SIZE = SLOT_SIZE - VIOLATION_NAME;
+
+    /** Number of bucket locks. */
+    private static final int LOCK_STRIPES = 256;
+
+    /** Mask of the unsigned byte value. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Mask of the top two bits of a UTF-8 byte. */
+    private static final int UTF8_TAG_MASK = 0xc0;
+
+    /** Top two bits of a UTF-8 continuation byte. */
+    private static final int UTF8_CONTINUATION = 0x80;
+
+    /** Digest used for the key. */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** The disposition values, indexed by ordinal. */
+    private static final IcapResult.Disposition[] DISPOSITIONS = IcapResult.Disposition.values();
+
+    /** The mapped file. */
+    private final FileChannel channel;
+
+    /** The mapping of the whole file. */
+    private final MappedByteBuffer buffer;
+
+    /** Number of buckets. */
+    private final int buckets;
+
+    /** Time a verdict stays valid. */
+    private final long ttlMillis;
+
+    /** clock object. */
+    private final Clock clock;
+
+    /** Bucket locks. */
+    private final StampedLock[] locks = new StampedLock[LOCK_STRIPES];
+
+    /** Number of lookups answered from the store. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups not answered from the store. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of verdicts that replaced the oldest verdict of a full bucket. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Opens or creates a store.
+     *
+     * @param file the store file
+     * @param slots number of verdicts the store holds, rounded up to a whole bucket
+     * @param ttlMillis time a verdict stays valid
+     * @throws IcapException if the file cannot be opened or mapped
+     */
+    public IcapVerdictStore(@Nonnull final Path file, final int slots, final long ttlMillis) throws IcapException {
+        this(file, slots, ttlMillis, Clock.systemUTC());
+    }
+
+    /**
+     * Opens or creates a store with the given clock.
+     *
+     * @param file the store file
+     * @param slots number of verdicts the store holds, rounded up to a whole bucket
+     * @param ttlMillis time a verdict stays valid
+     * @param clock the clock used to time and expire verdicts
+     * @throws IcapException if the file cannot be opened or mapped
+     */
+    public IcapVerdictStore(@Nonnull final Path file, final int slots, final long ttlMillis, @Nonnull final Clock clock) throws IcapException {
+        if (slots <= 0 || slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("slots must be between 1 and " + MAX_SLOTS);
+        }
+        this.buckets = (slots + SLOTS_PER_BUCKET - 1) / SLOTS_PER_BUCKET;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new StampedLock();
+        }
+        final int slotCount = buckets * SLOTS_PER_BUCKET;
+        final long size = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final boolean reuse = channel.size() == size;
+                if (!reuse) {
+                    // a new file, or one written with another table size
+                    channel.truncate(0);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.nativeOrder());
+                if (!reuse || buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                        || buffer.getInt(HEADER_SLOTS) != slotCount || buffer.getInt(HEADER_SLOT_SIZE) != SLOT_SIZE) {
+                    clear(slotCount);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new IcapException(FailureType.INTERNAL_ERROR, e);
+        }
+    }
+
+    /**
+     * Compute the store key of a payload on a route.
+     *
+     * @param route server URI
+     * @param digest digest of the payload
+     * @return the key
+     * @throws IcapException if the digest is not available
+     */
+    @Nonnull
+    public static byte[] key(@Nonnull final URI route, @Nonnull final byte[] digest) throws IcapException {
+        try {
+            final MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            md.update(route.toString().getBytes(StandardCharsets.UTF_8));
+            md.update(digest);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IcapException(FailureType.INTERNAL_ERROR, e);
+        }
+    }
+
+    /**
+     * Look up the verdict of an earlier scan of the same payload on the route. A full scan is answered only when the server returned the
+     * payload unmodified.
+     *
+     * @param key store key from {@link #key(URI, byte[])}
+     * @param content the payload, returned as the cleaned bytes
+     * @param verdictOnly the caller only wants the verdict
+     * @param latestIstag the ISTag the route reported last, null if not known
+     * @return a new result object, null if nothing usable is stored
+     */
+    @Nullable
+    public IcapResult get(@Nonnull final byte[] key, @Nonnull final byte[] content, final boolean verdictOnly,
+            @Nullable final String latestIstag) {
+        final int bucket = bucketOf(key);
+        final StampedLock lock = locks[bucket % LOCK_STRIPES];
+        final long k0 = getLong(key, 0);
+        final long k1 = getLong(key, Long.BYTES);
+        final long k2 = getLong(key, 2 * Long.BYTES);
+        final long k3 = getLong(key, KEY_LENGTH - Long.BYTES);
+
+        long stamp = lock.tryOptimisticRead();
+        Slot slot = read(bucket, k0, k1, k2, k3);
+        if (!lock.validate(stamp)) {
+            // a writer got in the way, read again under the lock
+            stamp = lock.readLock();
+            try {
+                slot = read(bucket, k0, k1, k2, k3);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if (null == slot || clock.millis() - slot.timestamp >= ttlMillis || (null != latestIstag && !latestIstag.equals(slot.istag))
+                || (!verdictOnly && !slot.unmodified)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        final IcapResult result = new IcapResult();
+        result.setDisposition(slot.disposition);
+        result.setNumViolations(slot.numViolations);
+        result.setViolationId(slot.violationId);
+        result.setViolationName(slot.violationName);
+        result.setIstag(slot.istag);
+        if (verdictOnly) {
+            result.setCleanedByteCount(slot.cleanedByteCount);
+        } else {
+            result.setCleanedBytes(content);
+        }
+        return result;
+    }
+
+    /**
+     * Record the verdict of a scan. Results without a disposition are not stored.
+     *
+     * @param key store key from {@link #key(URI, byte[])}
+     * @param content the payload that was scanned
+     * @param result the scan result
+     * @param verdictOnly the scan only asked for the verdict
+     */
+    public void put(@Nonnull final byte[] key, @Nonnull final byte[] content, @Nonnull final IcapResult result, final boolean verdictOnly) {
+        if (null == result.getDisposition()) {
+            return;
+        }
+        final boolean unmodified = IcapResultCache.isUnmodified(result, content, verdictOnly);
+        final int bucket = bucketOf(key);
+        final StampedLock lock = locks[bucket % LOCK_STRIPES];
+        final long k0 = getLong(key, 0);
+        final long k1 = getLong(key, Long.BYTES);
+        final long k2 = getLong(key, 2 * Long.BYTES);
+        final long k3 = getLong(key, KEY_LENGTH - Long.BYTES);
+        final long now = Math.max(1, clock.millis());
+
+        final long stamp = lock.writeLock();
+        try {
+            final int first = slotOffset(bucket, 0);
+            int target = -1;
+            int oldest = first;
+            long oldestTime = Long.MAX_VALUE;
+            for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+                final int slot = slotOffset(bucket, i);
+                final long ts = buffer.getLong(slot + TIMESTAMP);
+                if (0 == ts || matches(slot, k0, k1, k2, k3)) {
+                    target = slot;
+                    break;
+                }
+                if (ts < oldestTime) {
+                    oldestTime = ts;
+                    oldest = slot;
+                }
+            }
+            if (-1 == target) {
+                target = oldest;
+                evictions.incrementAndGet();
+            } else if (verdictOnly && 0 != buffer.getLong(target + TIMESTAMP) && 0 != (buffer.get(target + FLAGS) & FLAG_UNMODIFIED)
+                    && now - buffer.getLong(target + TIMESTAMP) < ttlMillis && sameIstag(target, result.getIstag())) {
+                // keep the verdict that can also answer full scans
+                return;
+            }
+            buffer.putLong(target + KEY, k0);
+            buffer.putLong(target + KEY + Long.BYTES, k1);
+            buffer.putLong(target + KEY + 2 * Long.BYTES, k2);
+            buffer.putLong(target + KEY + KEY_LENGTH - Long.BYTES, k3);
+            buffer.putLong(target + CLEANED_BYTE_COUNT, result.getCleanedByteCount());
+            buffer.putInt(target + NUM_VIOLATIONS, result.getNumViolations());
+            buffer.put(target + DISPOSITION, (byte) (result.getDisposition().ordinal() + 1));
+            buffer.put(target + FLAGS, unmodified ? FLAG_UNMODIFIED : 0);
+            putString(target + ISTAG, ISTAG_SIZE, result.getIstag());
+            putString(target + VIOLATION_ID, VIOLATION_ID_SIZE, result.getViolationId());
+            putString(target + VIOLATION_NAME, VIOLATION_NAME_SIZE, result.getViolationName());
+            buffer.putLong(target + TIMESTAMP, now);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Flush the store to disk.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Flush the store to disk and close the file. The mapping stays valid until it is garbage collected, the store must not be used after
+     * close.
+     *
+     * @throws IOException on failure
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Returns the number of lookups answered from the store.
+     *
+     * @return hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups not answered from the store.
+     *
+     * @return miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of verdicts that replaced the oldest verdict of a full bucket.
+     *
+     * @return eviction count
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of slots.
+     *
+     * @return slot count
+     */
+    public int getSlots() {
+        return buckets * SLOTS_PER_BUCKET;
+    }
+
+    /**
+     * Reads the slot holding the key. May see a torn slot when called without the lock, the caller validates the stamp.
+     *
+     * @param bucket bucket index
+     * @param k0 key bytes 0-7
+     * @param k1 key bytes 8-15
+     * @param k2 key bytes 16-23
+     * @param k3 key bytes 24-31
+     * @return the slot contents, null if the key is not stored
+     */
+    @Nullable
+    private Slot read(final int bucket, final long k0, final long k1, final long k2, final long k3) {
+        for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+            final int slot = slotOffset(bucket, i);
+            final long ts = buffer.getLong(slot + TIMESTAMP);
+            if (0 == ts) {
+                // slots fill in order, nothing further down
+                return null;
+            }
+            if (matches(slot, k0, k1, k2, k3)) {
+                final int disposition = (buffer.get(slot + DISPOSITION) & BYTE_MASK) - 1;
+                if (disposition < 0 || disposition >= DISPOSITIONS.length) {
+                    return null;
+                }
+                final Slot r = new Slot();
+                r.timestamp = ts;
+                r.disposition = DISPOSITIONS[disposition];
+                r.unmodified = 0 != (buffer.get(slot + FLAGS) & FLAG_UNMODIFIED);
+                r.numViolations = buffer.getInt(slot + NUM_VIOLATIONS);
+                r.cleanedByteCount = buffer.getLong(slot + CLEANED_BYTE_COUNT);
+                r.istag = getString(slot + ISTAG, ISTAG_SIZE);
+                r.violationId = getString(slot + VIOLATION_ID, VIOLATION_ID_SIZE);
+                r.violationName = getString(slot + VIOLATION_NAME, VIOLATION_NAME_SIZE);
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Does the slot hold the key?
+     *
+     * @param slot slot offset
+     * @param k0 key bytes 0-7
+     * @param k1 key bytes 8-15
+     * @param k2 key bytes 16-23
+     * @param k3 key bytes 24-31
+     * @return true if the key matches
+     */
+    private boolean matches(final int slot, final long k0, final long k1, final long k2, final long k3) {
+        return buffer.getLong(slot + KEY) == k0 && buffer.getLong(slot + KEY + Long.BYTES) == k1
+                && buffer.getLong(slot + KEY + 2 * Long.BYTES) == k2 && buffer.getLong(slot + KEY + KEY_LENGTH - Long.BYTES) == k3;
+    }
+
+    /**
+     * Does the slot hold the given ISTag?
+     *
+     * @param slot slot offset
+     * @param istag the ISTag
+     * @return true if the stored ISTag is the same
+     */
+    private boolean sameIstag(final int slot, @Nullable final String istag) {
+        final String stored = getString(slot + ISTAG, ISTAG_SIZE);
+        return null == istag ? null == stored : istag.equals(stored);
+    }
+
+    /**
+     * Write a string field, a length byte followed by the UTF-8 bytes, truncated to the field size on a character boundary. A null string
+     * has length 255.
+     *
+     * @param offset field offset
+     * @param size field size
+     * @param s the string
+     */
+    private void putString(final int offset, final int size, @Nullable final String s) {
+        if (null == s) {
+            buffer.put(offset, (byte) BYTE_MASK);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(bytes.length, size - 1);
+        // do not cut a multi-byte character, drop it whole
+        while (len < bytes.length && len > 0 && UTF8_CONTINUATION == (bytes[len] & UTF8_TAG_MASK)) {
+            len--;
+        }
+        buffer.put(offset, (byte) len);
+        for (int i = 0; i < len; i++) {
+            buffer.put(offset + 1 + i, bytes[i]);
+        }
+    }
+
+    /**
+     * Read a string field.
+     *
+     * @param offset field offset
+     * @param size field size
+     * @return the string, null if none was stored
+     */
+    @Nullable
+    private String getString(final int offset, final int size) {
+        final int len = buffer.get(offset) & BYTE_MASK;
+        if (BYTE_MASK == len) {
+            return null;
+        }
+        // bound the length, a torn read may see any value
+        final byte[] bytes = new byte[Math.min(len, size - 1)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Zero the table and write the header.
+     *
+     * @param slotCount number of slots
+     */
+    private void clear(final int slotCount) {
+        for (int i = 0; i < slotCount; i++) {
+            buffer.putLong(HEADER_SIZE + i * SLOT_SIZE + TIMESTAMP, 0);
+        }
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putInt(HEADER_SLOTS, slotCount);
+        buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+        buffer.force();
+    }
+
+    /**
+     * Returns the bucket of a key.
+     *
+     * @param key the key
+     * @return bucket index
+     */
+    private int bucketOf(@Nonnull final byte[] key) {
+        return (int) ((getLong(key, 0) & Long.MAX_VALUE) % buckets);
+    }
+
+    /**
+     * Returns the offset of a slot.
+     *
+     * @param bucket bucket index
+     * @param i slot within the bucket
+     * @return slot offset
+     */
+    private static int slotOffset(final int bucket, final int i) {
+        return HEADER_SIZE + (bucket * SLOTS_PER_BUCKET + i) * SLOT_SIZE;
+    }
+
+    /**
+     * Read 8 bytes of the key as a long.
+     *
+     * @param key the key
+     * @param offset byte offset
+     * @return the value
+     */
+    private static long getLong(@Nonnull final byte[] key, final int offset) {
+        long v = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            v = (v << Byte.SIZE) | (key[offset + i] & BYTE_MASK);
+        }
+        return v;
+    }
+
+    /**
+     * Contents of one slot, read off the mapping.
+     */
+    private static final class Slot {
+        /** Write time. */
+        private long timestamp;
+        /** Disposition. */
+        private IcapResult.Disposition disposition;
+        /** The server returned the payload unmodified. */
+        private boolean unmodified;
+        /** Number of violations. */
+        private int numViolations;
+        /** Number of cleaned bytes returned by the server. */
+        private long cleanedByteCount;
+        /** ISTag of the response. */
+        private String istag;
+        /** Violation id. */
+        private String violationId;
+        /** Violation name. */
+        private String violationName;
+    }
+}
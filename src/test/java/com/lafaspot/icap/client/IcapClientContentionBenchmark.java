@@ -0,0 +1,94 @@
+package com.lafaspot.icap.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.logfast.logging.LogManager;
+import com.lafaspot.logfast.logging.Logger;
+
+/**
+ * 64 caller threads scanning across 4 routes through one client, 16 threads per route, each route served by its own stub server. Measures
+ * how much the callers of one route hold up the callers of the others. Not run by the unit tests, run it from the test classpath:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.lafaspot.icap.client.IcapClientContentionBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class IcapClientContentionBenchmark {
+
+    private static final int ROUTES = 4;
+
+    private final IcapStubServer[] servers = new IcapStubServer[ROUTES];
+    private final URI[] routes = new URI[ROUTES];
+    private final AtomicInteger threadIds = new AtomicInteger();
+    private final byte[] payload = new byte[4 * 1024];
+    private IcapClient client;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, IcapException {
+        for (int i = 0; i < ROUTES; i++) {
+            servers[i] = new IcapStubServer();
+            servers[i].setScanDelayMillis(2);
+            routes[i] = servers[i].getUri();
+        }
+        Arrays.fill(payload, (byte) 'p');
+        client = new IcapClient(4, 30000, 30000, 16, new LogManager(Logger.Level.INFO, 5));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (final IcapStubServer server : servers) {
+            server.close();
+        }
+    }
+
+    /**
+     * The route of a caller thread.
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+        private URI route;
+
+        @Setup(Level.Trial)
+        public void setup(final IcapClientContentionBenchmark bench) {
+            route = bench.routes[bench.threadIds.getAndIncrement() % ROUTES];
+        }
+    }
+
+    @Benchmark
+    public IcapResult scan(final Caller caller) throws Exception {
+        return client.scanFile(caller.route, "attachment.bin", payload).get();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IcapClientContentionBenchmark.class.getSimpleName()).build()).run();
+    }
+}
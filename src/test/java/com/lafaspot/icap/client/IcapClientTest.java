@@ -1,16 +1,39 @@
 package com.lafaspot.icap.client;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import com.lafaspot.icap.client.IcapResult.Disposition;
 import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.impl.DefaultIcapRequestProducer;
+import com.lafaspot.icap.client.impl.DefaultIcapRespConsumer;
+import com.lafaspot.icap.client.session.IcapResultCache;
+import com.lafaspot.icap.client.session.IcapAdaptiveLimit;
+import com.lafaspot.icap.client.session.IcapByteBudget;
+import com.lafaspot.icap.client.session.IcapRouteGroup;
 import com.lafaspot.icap.client.session.IcapRouteSpecificSessionPool;
+import com.lafaspot.icap.client.session.IcapScanCoalescer;
+import com.lafaspot.icap.client.session.IcapVerdictStore;
 import com.lafaspot.icap.client.session.IcapSession;
 import com.lafaspot.logfast.logging.LogContext;
 import com.lafaspot.logfast.logging.LogManager;
@@ -46,8 +69,6 @@ public class IcapClientTest {
 
         final Bootstrap bootstrap = Mockito.mock(Bootstrap.class);
         final ChannelFuture connectFuture = Mockito.mock(ChannelFuture.class);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
         Mockito.when(bootstrap.group(Mockito.any(NioEventLoopGroup.class))).thenReturn(bootstrap);
         Mockito.when(bootstrap.channel(NioSocketChannel.class)).thenReturn(bootstrap);
         Mockito.when(bootstrap.connect(Mockito.anyString(), Mockito.anyInt())).thenReturn(connectFuture);
@@ -67,7 +88,631 @@ public class IcapClientTest {
         Mockito.when(connectChannel.closeFuture()).thenReturn(connectFuture);
 
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, logger);
-        IcapSession sess = pool.lease(10, requestProducer, responseConsumer);
+        IcapSession sess = pool.lease(10);
         Assert.assertNotNull(sess);
     }
-}
\ No newline at end of file
+
+    /** N scans against a keep-alive stub server are served by at most maxAllowedSessions sockets. */
+    @Test
+    public void testScanReusesSessions() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final int maxSessions = 4;
+        final int rounds = 10;
+        try (IcapStubServer server = new IcapStubServer()) {
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, maxSessions, logManager);
+            for (int round = 0; round < rounds; round++) {
+                final List<Future<IcapResult>> futures = new ArrayList<Future<IcapResult>>();
+                final List<byte[]> payloads = new ArrayList<byte[]>();
+                for (int i = 0; i < maxSessions; i++) {
+                    final byte[] payload = ("attachment-" + round + "-" + i).getBytes(StandardCharsets.UTF_8);
+                    payloads.add(payload);
+                    futures.add(client.scanFile(server.getUri(), "file" + i + ".txt", payload));
+                }
+                for (int i = 0; i < maxSessions; i++) {
+                    final IcapResult r = futures.get(i).get();
+                    Assert.assertEquals(r.getDisposition(), Disposition.CLEAN);
+                    Assert.assertEquals(r.getCleanedBytes(), payloads.get(i));
+                }
+            }
+            Assert.assertEquals(server.getRespmodCount(), rounds * maxSessions);
+            Assert.assertTrue(server.getConnectionCount() <= maxSessions, "connections: " + server.getConnectionCount());
+        }
+    }
+
+    /** The deprecated connect binds the producer and consumer for the two argument scanFile. */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedConnect() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, MAX_SESSIONS, logManager);
+            final byte[] payload = "attachment".getBytes(StandardCharsets.UTF_8);
+            final IcapSession sess = client.connect(server.getUri(), new DefaultIcapRequestProducer(server.getUri(), "file.txt", payload),
+                    new DefaultIcapRespConsumer());
+            final IcapResult r = sess.scanFile("file.txt", payload).get();
+            Assert.assertEquals(r.getDisposition(), Disposition.CLEAN);
+            Assert.assertEquals(r.getCleanedBytes(), payload);
+        }
+    }
+
+    /** scanFile does not wait for the connection, a failed connect completes the future instead of throwing. */
+    @Test
+    public void testConnectFailureCompletesFuture() throws IOException, IcapException, InterruptedException {
+        final URI route;
+        try (IcapStubServer server = new IcapStubServer()) {
+            route = server.getUri();
+        }
+        final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, MAX_SESSIONS, logManager);
+        final Future<IcapResult> future = client.scanFile(route, "file.txt", "attachment".getBytes(StandardCharsets.UTF_8));
+        try {
+            future.get();
+            Assert.fail("nothing listens on " + route);
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IcapException, "cause: " + e.getCause());
+            Assert.assertEquals(e.getCause().getMessage(), "Not connected to server");
+        }
+    }
+
+    @DataProvider(name = "maxSessions")
+    public Object[][] maxSessions() {
+        return new Object[][] { { MAX_SESSIONS }, { 0 } };
+    }
+
+    /**
+     * Scans fail fast once a dead server trips the breaker, and go through again after a probe finds it back up. Without session reuse
+     * the probe's session closes right after its answer, which must not count as a failure.
+     */
+    @Test(dataProvider = "maxSessions")
+    public void testCircuitBreaker(final int maxSessions) throws IOException, IcapException, InterruptedException, ExecutionException {
+        final URI route;
+        try (IcapStubServer server = new IcapStubServer()) {
+            route = server.getUri();
+        }
+        final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, maxSessions, logManager);
+        client.setCircuitBreaker(2, 100);
+        final byte[] payload = "attachment".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.scanFile(route, "file.txt", payload).get();
+                Assert.fail("nothing listens on " + route);
+            } catch (ExecutionException e) {
+                Assert.assertEquals(e.getCause().getMessage(), "Not connected to server");
+            }
+        }
+        final IcapRouteSpecificSessionPool pool = client.getSessionPool(route);
+        Assert.assertTrue(pool.isCircuitOpen());
+        try {
+            client.scanFile(route, "file.txt", payload);
+            Assert.fail("the circuit is open");
+        } catch (IcapException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Route circuit open"), e.getMessage());
+        }
+
+        try (IcapStubServer server = new IcapStubServer(route.getPort())) {
+            for (int i = 0; i < 100 && pool.isCircuitOpen(); i++) {
+                Thread.sleep(50);
+                try {
+                    client.scanFile(route, "file.txt", payload).get();
+                } catch (IcapException e) {
+                    // open until the probe gets its answer
+                }
+            }
+            Assert.assertFalse(pool.isCircuitOpen());
+            Assert.assertEquals(client.scanFile(route, "file.txt", payload).get().getCleanedBytes(), payload);
+            Assert.assertEquals(pool.getCircuitBreaker().getOpenCount(), 1);
+            Assert.assertEquals(server.getOptionsCount(), 1);
+        }
+    }
+
+    /** Cancelling a scan against a slow server closes its connection and frees the pool slot for the next scan. */
+    @Test
+    public void testCancelFreesSession() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setScanDelayMillis(2000);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            final byte[] payload = new byte[64 * 1024];
+            Arrays.fill(payload, (byte) 's');
+            final Future<IcapResult> slow = client.scanFile(server.getUri(), "slow.bin", payload);
+            Assert.assertTrue(slow.cancel(true));
+            Assert.assertTrue(slow.isCancelled());
+            try {
+                slow.get();
+                Assert.fail("the scan was cancelled");
+            } catch (CancellationException e) {
+                // expected
+            }
+
+            // the only slot is free again, a new connection serves the next scan
+            server.setScanDelayMillis(0);
+            final byte[] next = "next".getBytes(StandardCharsets.UTF_8);
+            final IcapResult r = client.scanFile(server.getUri(), "next.txt", next).get();
+            Assert.assertEquals(r.getCleanedBytes(), next);
+            Assert.assertEquals(server.getConnectionCount(), 2);
+        }
+    }
+
+    /** More scans than sessions wait for a session to be returned instead of failing. */
+    @Test
+    public void testScansWaitForSession() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final int scans = 4;
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setScanDelayMillis(50);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            final List<Future<IcapResult>> futures = new ArrayList<Future<IcapResult>>();
+            for (int i = 0; i < scans; i++) {
+                futures.add(client.scanFile(server.getUri(), "file" + i + ".txt", ("attachment-" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            for (int i = 0; i < scans; i++) {
+                Assert.assertEquals(futures.get(i).get().getCleanedBytes(), ("attachment-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            Assert.assertEquals(server.getConnectionCount(), 1);
+            final IcapRouteSpecificSessionPool pool = client.getSessionPool(server.getUri());
+            Assert.assertEquals(pool.getWaitCount(), scans - 1);
+            Assert.assertEquals(pool.getQueueDepth(), 0);
+        }
+    }
+
+    /** Scans on a route group are spread over its servers, an unknown group fails right away. */
+    @Test
+    public void testRouteGroup() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer first = new IcapStubServer(); IcapStubServer second = new IcapStubServer()) {
+            first.setScanDelayMillis(20);
+            second.setScanDelayMillis(20);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 4, logManager);
+            client.addRouteGroup("av", Arrays.asList(first.getUri(), second.getUri()));
+            final List<Future<IcapResult>> futures = new ArrayList<Future<IcapResult>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(client.scanFile("av", "file" + i + ".txt", ("attachment-" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals(futures.get(i).get().getCleanedBytes(), ("attachment-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            Assert.assertTrue(first.getRespmodCount() > 0);
+            Assert.assertTrue(second.getRespmodCount() > 0);
+            Assert.assertEquals(first.getRespmodCount() + second.getRespmodCount(), futures.size());
+
+            try {
+                client.scanFile("no-such-service", "a.txt", new byte[1]);
+                Assert.fail("scan on an unknown group");
+            } catch (IcapException e) {
+                Assert.assertTrue(e.getMessage().contains("Unknown route group."), e.getMessage());
+            }
+        }
+    }
+
+    /** A scan stuck on a stalled server is hedged on the other member of its group, the first answer wins. */
+    @Test
+    public void testHedging() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer first = new IcapStubServer(); IcapStubServer second = new IcapStubServer()) {
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 4, logManager);
+            final IcapRouteGroup group = client.addRouteGroup("av", Arrays.asList(first.getUri(), second.getUri()));
+            final byte[] payload = "attachment".getBytes(StandardCharsets.UTF_8);
+            // learn the usual latency of both members
+            for (int i = 0; i < 100; i++) {
+                client.scanFile("av", "file.txt", payload).get();
+            }
+            group.setHedging(95, 100);
+            first.setScanDelayMillis(5000);
+            for (int i = 0; i < 30 && group.getHedgeCount() == 0; i++) {
+                final long start = System.currentTimeMillis();
+                Assert.assertEquals(client.scanFile("av", "file.txt", payload).get().getCleanedBytes(), payload);
+                Assert.assertTrue(System.currentTimeMillis() - start < 2000, "scan was not hedged");
+            }
+            Assert.assertTrue(group.getHedgeCount() > 0);
+        }
+    }
+
+    /** On a server that does not slow down the limit grows well above its minimum. */
+    @Test
+    public void testAdaptiveLimitGrowsWhenIdle() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final int maxSessions = 32;
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setScanDelayMillis(40);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, maxSessions, logManager);
+            client.setAdaptiveLimit(1, IcapAdaptiveLimit.DEFAULT_TOLERANCE);
+            scanAll(client, server.getUri(), 200);
+            final IcapRouteSpecificSessionPool pool = client.getSessionPool(server.getUri());
+            Assert.assertTrue(pool.getConcurrencyLimit() >= 8, "limit " + pool.getConcurrencyLimit());
+            Assert.assertTrue(server.getMaxActiveScans() > 1, "max active scans " + server.getMaxActiveScans());
+        }
+    }
+
+    /** On a server that slows down past eight scans at once the limit settles near eight. */
+    @Test
+    public void testAdaptiveLimitSettlesAtKnee() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final int maxSessions = 32;
+        final int capacity = 8;
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setScanDelayMillis(40);
+            server.setScanCapacity(capacity);
+            // one scan over the capacity takes 100ms, over twice the idle 40ms
+            server.setDelayPerActiveScanMillis(60);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, maxSessions, logManager);
+            client.setAdaptiveLimit(1, IcapAdaptiveLimit.DEFAULT_TOLERANCE);
+            scanAll(client, server.getUri(), 400);
+            final IcapRouteSpecificSessionPool pool = client.getSessionPool(server.getUri());
+            Assert.assertTrue(pool.getConcurrencyLimit() >= capacity - 3, "limit " + pool.getConcurrencyLimit());
+            Assert.assertTrue(pool.getConcurrencyLimit() <= capacity + 3, "limit " + pool.getConcurrencyLimit());
+            Assert.assertTrue(server.getMaxActiveScans() <= capacity + 4, "max active scans " + server.getMaxActiveScans());
+        }
+    }
+
+    /** Start the scans at once and check each result. */
+    private void scanAll(final IcapClient client, final URI route, final int scans) throws IcapException, InterruptedException,
+            ExecutionException {
+        final List<Future<IcapResult>> futures = new ArrayList<Future<IcapResult>>();
+        for (int i = 0; i < scans; i++) {
+            futures.add(client.scanFile(route, "file" + i + ".txt", ("attachment-" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertEquals(futures.get(i).get().getCleanedBytes(), ("attachment-" + i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Scans over the byte budget wait for the bytes of the scans in flight, the server never sees them at once. */
+    @Test
+    public void testByteBudget() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setScanDelayMillis(20);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 4, logManager);
+            final IcapByteBudget budget = new IcapByteBudget(16, IcapByteBudget.Admission.WAIT, 0);
+            client.setByteBudget(budget);
+            final List<Future<IcapResult>> futures = new ArrayList<Future<IcapResult>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(client.scanFile(server.getUri(), "file" + i + ".txt", ("attachment-" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            Assert.assertEquals(budget.getWaitingCount(), 3);
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals(futures.get(i).get().getCleanedBytes(), ("attachment-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            Assert.assertEquals(server.getMaxActiveScans(), 1);
+            Assert.assertEquals(budget.getUsedBytes(), 0);
+        }
+    }
+
+    /** Pre-warmed sessions are connected and checked with OPTIONS before the first scan, which then reuses one of them. */
+    @Test
+    public void testPrewarm() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setOptionsTtl(3600);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 4, logManager);
+            client.prewarm(Collections.singletonMap(server.getUri(), 2));
+            final IcapRouteSpecificSessionPool pool = client.getSessionPool(server.getUri());
+            for (int i = 0; i < 100 && pool.getAvailableCount() < 2; i++) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(pool.getAvailableCount(), 2);
+            Assert.assertEquals(server.getConnectionCount(), 2);
+            Assert.assertEquals(server.getOptionsCount(), 2);
+
+            final byte[] payload = "small attachment".getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(client.scanFile(server.getUri(), "a.txt", payload).get().getDisposition(), Disposition.CLEAN);
+            Assert.assertEquals(server.getConnectionCount(), 2);
+            Assert.assertEquals(server.getOptionsCount(), 2);
+        }
+    }
+
+    /** A client that does not reuse sessions cannot keep any available, pre-warming it is refused and opens nothing. */
+    @Test
+    public void testPrewarmWithoutReuse() throws IOException, IcapException, InterruptedException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 0, logManager);
+            try {
+                client.prewarm(Collections.singletonMap(server.getUri(), 2));
+                Assert.fail("sessions are not reused");
+            } catch (IcapException e) {
+                Assert.assertEquals(e.getFailureType(), IcapException.FailureType.CONNECTION_REUSE_NOT_IMPLEMENTED);
+            }
+            // the housekeeping does not top the pool up either
+            Thread.sleep(1500);
+            Assert.assertEquals(server.getConnectionCount(), 0);
+        }
+    }
+
+    /** OPTIONS is sent once per route and again only after the server's Options-TTL expires or its ISTag changes. */
+    @Test
+    public void testOptionsCachedPerRoute() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setOptionsTtl(3600);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 2, logManager);
+            final byte[] payload = "small attachment".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(client.scanFile(server.getUri(), "a.txt", payload).get().getDisposition(), Disposition.CLEAN);
+            }
+            Assert.assertEquals(server.getOptionsCount(), 1);
+            Assert.assertEquals(server.getRespmodCount(), 5);
+
+            // a new service tag drops the cached options, the next scan asks again
+            server.setIstag("\"stub-2\"");
+            client.scanFile(server.getUri(), "a.txt", payload).get();
+            client.scanFile(server.getUri(), "a.txt", payload).get();
+            Assert.assertEquals(server.getOptionsCount(), 2);
+            client.scanFile(server.getUri(), "a.txt", payload).get();
+            Assert.assertEquals(server.getOptionsCount(), 2);
+        }
+    }
+
+    /** Expired options are refreshed on a new session while the scan that found them expired goes on with the stale ones. */
+    @Test
+    public void testOptionsRefreshedInBackground() throws IOException, IcapException, InterruptedException, ExecutionException {
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setOptionsTtl(1);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 2, logManager);
+            final byte[] payload = "small attachment".getBytes(StandardCharsets.UTF_8);
+            client.scanFile(server.getUri(), "a.txt", payload).get();
+            Assert.assertEquals(server.getOptionsCount(), 1);
+            Assert.assertEquals(server.getConnectionCount(), 1);
+
+            Thread.sleep(1100);
+            Assert.assertEquals(client.scanFile(server.getUri(), "a.txt", payload).get().getDisposition(), Disposition.CLEAN);
+            for (int i = 0; i < 100 && server.getOptionsCount() < 2; i++) {
+                Thread.sleep(20);
+            }
+            // the refresh went out on a second connection, the scan reused the first one
+            Assert.assertEquals(server.getOptionsCount(), 2);
+            Assert.assertEquals(server.getConnectionCount(), 2);
+            Assert.assertEquals(server.getRespmodCount(), 2);
+        }
+    }
+
+    /**
+     * Only the preview goes out when the server answers 204, a server that wants more gets the rest after 100 Continue.
+     */
+    @Test
+    public void testPreviewAndNoContent() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] payload = new byte[64 * 1024];
+        Arrays.fill(payload, (byte) 'x');
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setPreview(1024);
+            server.setRespond204(true);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 2, logManager);
+            for (int i = 0; i < 3; i++) {
+                final IcapResult result = client.scanFile(server.getUri(), "a.bin", payload).get();
+                Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+                Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+                // read the chunks as received, then joined into one array
+                final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                final byte[] buf = new byte[4096];
+                try (InputStream in = result.getCleanedStream()) {
+                    for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+                        streamed.write(buf, 0, n);
+                    }
+                }
+                Assert.assertEquals(streamed.toByteArray(), payload);
+                Assert.assertEquals(result.getCleanedBytes(), payload);
+            }
+            // the first scan learns the preview size from OPTIONS, then only previews are sent
+            Assert.assertEquals(server.getBodyBytesReceived(), 3 * 1024);
+        }
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setPreview(1024);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 2, logManager);
+            for (int i = 0; i < 3; i++) {
+                final IcapResult result = client.scanFile(server.getUri(), "a.bin", payload).get();
+                Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+                Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+                // read the chunks as received, then joined into one array
+                final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                final byte[] buf = new byte[4096];
+                try (InputStream in = result.getCleanedStream()) {
+                    for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+                        streamed.write(buf, 0, n);
+                    }
+                }
+                Assert.assertEquals(streamed.toByteArray(), payload);
+                Assert.assertEquals(result.getCleanedBytes(), payload);
+            }
+            Assert.assertEquals(server.getBodyBytesReceived(), 3 * payload.length);
+            // a payload that fits the preview is sent with ieof and answered right away
+            final byte[] small = "small attachment".getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(client.scanFile(server.getUri(), "a.txt", small).get().getCleanedBytes(), small);
+        }
+    }
+
+    /**
+     * A body echoed back in many chunks comes back whole, and the kept-alive connection stays usable.
+     */
+    @Test
+    public void testMultiChunkResponse() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] payload = new byte[256 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setResponseChunkSize(7000);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            for (int i = 0; i < 3; i++) {
+                final IcapResult result = client.scanFile(server.getUri(), "a.bin", payload).get();
+                Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+                Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+                // read the chunks as received, then joined into one array
+                final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                final byte[] buf = new byte[4096];
+                try (InputStream in = result.getCleanedStream()) {
+                    for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+                        streamed.write(buf, 0, n);
+                    }
+                }
+                Assert.assertEquals(streamed.toByteArray(), payload);
+                Assert.assertEquals(result.getCleanedBytes(), payload);
+                // the joined array is built once and handed out again
+                Assert.assertSame(result.getCleanedBytes(), result.getCleanedBytes());
+            }
+            Assert.assertEquals(server.getConnectionCount(), 1);
+        }
+    }
+
+    /**
+     * The cleaned payload is written to the caller's stream or file, the result carries the byte count only.
+     */
+    @Test
+    public void testScanToSink() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] payload = new byte[128 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        final Path file = Files.createTempFile("icap-sink", ".bin");
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setResponseChunkSize(5000);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IcapResult result = client.scanFile(server.getUri(), "a.bin", payload, out).get();
+            Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+            Assert.assertNull(result.getCleanedBytes());
+            Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+            Assert.assertEquals(out.toByteArray(), payload);
+
+            result = client.scanFile(server.getUri(), "a.bin", payload, file).get();
+            Assert.assertNull(result.getCleanedBytes());
+            Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+            Assert.assertEquals(Files.readAllBytes(file), payload);
+
+            // the same session goes back to collecting the payload
+            result = client.scanFile(server.getUri(), "a.bin", payload).get();
+            Assert.assertEquals(result.getCleanedBytes(), payload);
+            Assert.assertEquals(server.getConnectionCount(), 1);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * On 204 No Content the unmodified payload is written to the sink.
+     */
+    @Test
+    public void testNoContentToSink() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] payload = "unmodified attachment".getBytes(StandardCharsets.UTF_8);
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setRespond204(true);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            client.scanFile(server.getUri(), "a.txt", payload).get();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final IcapResult result = client.scanFile(server.getUri(), "a.txt", payload, out).get();
+            Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+            Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+            Assert.assertEquals(out.toByteArray(), payload);
+        }
+    }
+
+    /**
+     * A verdict-only scan skips the echoed body but keeps the connection in step for the next scan.
+     */
+    @Test
+    public void testVerdictOnly() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] payload = new byte[96 * 1024];
+        Arrays.fill(payload, (byte) 'v');
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setResponseChunkSize(3000);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            for (int i = 0; i < 2; i++) {
+                final IcapResult result = client.scanFileForVerdict(server.getUri(), "a.bin", payload).get();
+                Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+                Assert.assertNull(result.getCleanedBytes());
+                Assert.assertEquals(result.getCleanedByteCount(), payload.length);
+            }
+            Assert.assertEquals(client.scanFile(server.getUri(), "a.bin", payload).get().getCleanedBytes(), payload);
+            Assert.assertEquals(server.getConnectionCount(), 1);
+        }
+    }
+
+    /**
+     * A repeated payload is answered from the result cache without reaching the server.
+     */
+    @Test
+    public void testResultCache() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] logo = "company logo".getBytes(StandardCharsets.UTF_8);
+        final byte[] other = "another attachment".getBytes(StandardCharsets.UTF_8);
+        try (IcapStubServer server = new IcapStubServer()) {
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            final IcapResultCache cache = new IcapResultCache(100, 60000);
+            client.setResultCache(cache);
+            for (int i = 0; i < 5; i++) {
+                final IcapResult result = client.scanFile(server.getUri(), "logo.png", logo.clone()).get();
+                Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+                Assert.assertEquals(result.getCleanedBytes(), logo);
+            }
+            Assert.assertEquals(client.scanFileForVerdict(server.getUri(), "logo.png", logo).get().getDisposition(), Disposition.CLEAN);
+            client.scanFile(server.getUri(), "other.txt", other).get();
+            Assert.assertEquals(server.getRespmodCount(), 2);
+            Assert.assertEquals(cache.getHits(), 5);
+            Assert.assertEquals(cache.getMisses(), 2);
+        }
+    }
+
+    /**
+     * Cached verdicts are dropped once the route reports a new ISTag, for instance after a definitions update.
+     */
+    @Test
+    public void testResultCacheIstagChange() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] logo = "company logo".getBytes(StandardCharsets.UTF_8);
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setIstag("\"defs-1\"");
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+            final IcapResultCache cache = new IcapResultCache(100, 3600000);
+            client.setResultCache(cache);
+            Assert.assertEquals(client.scanFile(server.getUri(), "logo.png", logo).get().getIstag(), "\"defs-1\"");
+            Assert.assertEquals(client.scanFile(server.getUri(), "logo.png", logo).get().getIstag(), "\"defs-1\"");
+            Assert.assertEquals(server.getRespmodCount(), 1);
+
+            // the next response reveals the new definitions, the cached verdict is not used any more
+            server.setIstag("\"defs-2\"");
+            client.scanFile(server.getUri(), "other.txt", "other".getBytes(StandardCharsets.UTF_8)).get();
+            Assert.assertEquals(client.scanFile(server.getUri(), "logo.png", logo).get().getIstag(), "\"defs-2\"");
+            Assert.assertEquals(server.getRespmodCount(), 3);
+            Assert.assertEquals(cache.getInvalidations(), 1);
+            Assert.assertEquals(client.scanFile(server.getUri(), "logo.png", logo).get().getIstag(), "\"defs-2\"");
+            Assert.assertEquals(server.getRespmodCount(), 3);
+        }
+    }
+
+    /**
+     * The same payload sent to many recipients at once is scanned once.
+     */
+    @Test
+    public void testCoalesceIdenticalScans() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] payload = new byte[16 * 1024];
+        Arrays.fill(payload, (byte) 'm');
+        try (IcapStubServer server = new IcapStubServer()) {
+            server.setScanDelayMillis(200);
+            final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 4, logManager);
+            final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+            client.setScanCoalescer(coalescer);
+            final List<Future<IcapResult>> futures = new ArrayList<Future<IcapResult>>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(client.scanFile(server.getUri(), "newsletter.html", payload.clone()));
+            }
+            for (final Future<IcapResult> f : futures) {
+                Assert.assertEquals(f.get().getDisposition(), Disposition.CLEAN);
+                Assert.assertEquals(f.get().getCleanedBytes(), payload);
+            }
+            Assert.assertEquals(server.getRespmodCount(), 1);
+            Assert.assertEquals(coalescer.getCoalesced(), 19);
+        }
+    }
+
+    /**
+     * A client started on an existing verdict store answers known payloads without scanning them again.
+     */
+    @Test
+    public void testVerdictStoreAcrossRestart() throws IOException, IcapException, InterruptedException, ExecutionException {
+        final byte[] logo = "company logo".getBytes(StandardCharsets.UTF_8);
+        final Path file = Files.createTempFile("verdicts", ".bin");
+        try (IcapStubServer server = new IcapStubServer()) {
+            try (IcapVerdictStore store = new IcapVerdictStore(file, 1024, 3600000)) {
+                final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+                client.setVerdictStore(store);
+                Assert.assertEquals(client.scanFile(server.getUri(), "logo.png", logo).get().getCleanedBytes(), logo);
+            }
+            try (IcapVerdictStore store = new IcapVerdictStore(file, 1024, 3600000)) {
+                final IcapClient client = new IcapClient(2, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, 1, logManager);
+                client.setVerdictStore(store);
+                final IcapResult result = client.scanFile(server.getUri(), "logo.png", logo).get();
+                Assert.assertEquals(result.getDisposition(), Disposition.CLEAN);
+                Assert.assertEquals(result.getCleanedBytes(), logo);
+                Assert.assertEquals(store.getHits(), 1);
+            }
+            Assert.assertEquals(server.getRespmodCount(), 1);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
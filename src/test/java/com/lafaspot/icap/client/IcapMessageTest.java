@@ -113,6 +113,34 @@ public class IcapMessageTest {
         Assert.assertNull(msg.getCause());
     }
 
+    @Test
+    public void parse100Continue() {
+        final String msgStr = "ICAP/1.0 100 Continue\r\n\r\n";
+        final IcapMessage msg = new IcapMessage(logger);
+        IcapMessageDecoder messageDecoder = Mockito.mock(IcapMessageDecoder.class);
+        when(messageDecoder.getIcapResponseConsumer()).thenReturn(new DefaultIcapRespConsumer());
+        msg.parse(Unpooled.copiedBuffer(msgStr.getBytes(StandardCharsets.UTF_8)), messageDecoder);
+        Assert.assertNull(msg.getCause());
+        Assert.assertTrue(msg.parsingDone());
+        Assert.assertEquals(msg.getStatus(), 100);
+        Assert.assertNull(msg.getResult().getDisposition());
+    }
+
+    @Test
+    public void parse204NoContent() {
+        final String msgStr = "ICAP/1.0 204 No Content\r\n" + "ISTag: \"CE2CECDA7FA257776EC1E8B63060EB49\"\r\n"
+                + "Service-ID: SYMCSCANRESP-AV\r\n" + "\r\n";
+        final IcapMessage msg = new IcapMessage(logger);
+        IcapMessageDecoder messageDecoder = Mockito.mock(IcapMessageDecoder.class);
+        when(messageDecoder.getIcapResponseConsumer()).thenReturn(new DefaultIcapRespConsumer());
+        msg.parse(Unpooled.copiedBuffer(msgStr.getBytes(StandardCharsets.UTF_8)), messageDecoder);
+        Assert.assertNull(msg.getCause());
+        Assert.assertTrue(msg.parsingDone());
+        Assert.assertEquals(msg.getStatus(), 204);
+        Assert.assertEquals(msg.getResult().getDisposition(), IcapResult.Disposition.CLEAN);
+        Assert.assertNull(msg.getResult().getCleanedBytes());
+    }
+
     @Test(enabled = false)
     public void parseResWithoutVirus() {
         final String res = "ICAP/1.0 200 OK\r\n" + "ISTag: \"CE2CECDA7FA257776EC1E8B63060EB49\"\r\n"
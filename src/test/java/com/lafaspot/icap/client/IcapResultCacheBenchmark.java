@@ -0,0 +1,110 @@
+package com.lafaspot.icap.client;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.session.IcapResultCache;
+import com.lafaspot.logfast.logging.LogManager;
+import com.lafaspot.logfast.logging.Logger;
+
+/**
+ * Scans against the stub server with and without the result cache. The workload mimics mail traffic: a share of the scans, given by
+ * duplicatePercent, are drawn from a small set of popular attachments (logos, signatures, newsletters), the rest are unique payloads. The
+ * stub takes scanDelayMillis per RESPMOD, standing in for the AV engine. Not run by the unit tests, run it from the test classpath:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.lafaspot.icap.client.IcapResultCacheBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class IcapResultCacheBenchmark {
+
+    private static final int PAYLOAD_SIZE = 32 * 1024;
+    private static final int POPULAR_PAYLOADS = 50;
+
+    @Param({ "false", "true" })
+    private boolean cacheEnabled;
+
+    @Param({ "70" })
+    private int duplicatePercent;
+
+    @Param({ "5" })
+    private int scanDelayMillis;
+
+    private IcapStubServer server;
+    private IcapClient client;
+    private byte[][] popular;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, IcapException {
+        server = new IcapStubServer();
+        server.setScanDelayMillis(scanDelayMillis);
+        client = new IcapClient(4, 30000, 30000, 16, new LogManager(Logger.Level.INFO, 5));
+        if (cacheEnabled) {
+            client.setResultCache(new IcapResultCache(1000, TimeUnit.MINUTES.toMillis(10)));
+        }
+        final Random random = new Random(42);
+        popular = new byte[POPULAR_PAYLOADS][];
+        for (int i = 0; i < POPULAR_PAYLOADS; i++) {
+            popular[i] = new byte[PAYLOAD_SIZE];
+            random.nextBytes(popular[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Per thread payload source.
+     */
+    @State(Scope.Thread)
+    public static class Payloads {
+        private final Random random = new Random();
+        private final byte[] unique = new byte[PAYLOAD_SIZE];
+
+        byte[] next(final IcapResultCacheBenchmark bench) {
+            if (random.nextInt(100) < bench.duplicatePercent) {
+                return bench.popular[random.nextInt(POPULAR_PAYLOADS)];
+            }
+            random.nextBytes(unique);
+            return unique.clone();
+        }
+    }
+
+    @Benchmark
+    public IcapResult scan(final Payloads payloads) throws Exception {
+        return client.scanFile(server.getUri(), "attachment.bin", payloads.next(this)).get();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IcapResultCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,348 @@
+package com.lafaspot.icap.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal blocking ICAP server for tests. Answers OPTIONS and echoes the RESPMOD body back as a clean 200 response, keeping the
+ * connection open unless the client asks for "Connection: close". Optionally advertises a preview size and answers 204 No Content.
+ */
+public class IcapStubServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger optionsCount = new AtomicInteger();
+    private final AtomicInteger respmodCount = new AtomicInteger();
+    private final AtomicInteger bodyBytesReceived = new AtomicInteger();
+    private volatile boolean running = true;
+    private volatile String istag = "\"stub-1\"";
+    private volatile int optionsTtl = -1;
+    private volatile int preview = -1;
+    private volatile boolean respond204;
+    private volatile int responseChunkSize = Integer.MAX_VALUE;
+    private volatile int scanDelayMillis;
+    private volatile int delayPerActiveScanMillis;
+    private volatile int scanCapacity;
+    private final AtomicInteger activeScans = new AtomicInteger();
+    private final AtomicInteger maxActiveScans = new AtomicInteger();
+
+    /**
+     * Starts the server on an ephemeral local port.
+     *
+     * @throws IOException on failure
+     */
+    public IcapStubServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts the server on the given local port, to bring a route back up.
+     *
+     * @param port the port, 0 for an ephemeral one
+     * @throws IOException on failure
+     */
+    public IcapStubServer(final int port) throws IOException {
+        serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "icap-stub-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return the URI clients should connect to
+     */
+    public URI getUri() {
+        return URI.create("icap://127.0.0.1:" + serverSocket.getLocalPort());
+    }
+
+    /**
+     * @param istag ISTag header value sent with every response
+     */
+    public void setIstag(final String istag) {
+        this.istag = istag;
+    }
+
+    /**
+     * @param optionsTtl Options-TTL in seconds sent with the OPTIONS response, -1 to leave it out
+     */
+    public void setOptionsTtl(final int optionsTtl) {
+        this.optionsTtl = optionsTtl;
+    }
+
+    /**
+     * @param preview Preview size sent with the OPTIONS response, -1 to leave it out
+     */
+    public void setPreview(final int preview) {
+        this.preview = preview;
+    }
+
+    /**
+     * @param respond204 advertise "Allow: 204" and answer 204 No Content when the client allows it
+     */
+    public void setRespond204(final boolean respond204) {
+        this.respond204 = respond204;
+    }
+
+    /**
+     * @param responseChunkSize largest chunk used when echoing the body back
+     */
+    public void setResponseChunkSize(final int responseChunkSize) {
+        this.responseChunkSize = responseChunkSize;
+    }
+
+    /**
+     * @param scanDelayMillis time the server "scans" before answering a RESPMOD
+     */
+    public void setScanDelayMillis(final int scanDelayMillis) {
+        this.scanDelayMillis = scanDelayMillis;
+    }
+
+    /**
+     * @param delayPerActiveScanMillis extra scan time per RESPMOD being scanned at once over the capacity, to model a server that slows
+     *            down under load
+     */
+    public void setDelayPerActiveScanMillis(final int delayPerActiveScanMillis) {
+        this.delayPerActiveScanMillis = delayPerActiveScanMillis;
+    }
+
+    /**
+     * @param scanCapacity RESPMODs the server scans at once without slowing down, the knee of its latency curve
+     */
+    public void setScanCapacity(final int scanCapacity) {
+        this.scanCapacity = scanCapacity;
+    }
+
+    /**
+     * @return most RESPMODs scanned at once so far
+     */
+    public int getMaxActiveScans() {
+        return maxActiveScans.get();
+    }
+
+    /**
+     * @return number of RESPMOD body bytes read so far
+     */
+    public int getBodyBytesReceived() {
+        return bodyBytesReceived.get();
+    }
+
+    /**
+     * @return number of TCP connections accepted so far
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return number of OPTIONS requests served
+     */
+    public int getOptionsCount() {
+        return optionsCount.get();
+    }
+
+    /**
+     * @return number of RESPMOD requests served
+     */
+    public int getRespmodCount() {
+        return respmodCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (final Socket s : sockets) {
+            s.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            sockets.add(socket);
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "icap-stub-conn");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            for (;;) {
+                final String header = readUntil(in, "\r\n\r\n");
+                if (null == header) {
+                    break;
+                }
+                if (header.startsWith("OPTIONS")) {
+                    optionsCount.incrementAndGet();
+                    final StringBuilder options = new StringBuilder("ICAP/1.0 200 OK\r\nMethods: RESPMOD\r\nISTag: " + istag + "\r\n");
+                    if (optionsTtl >= 0) {
+                        options.append("Options-TTL: ").append(optionsTtl).append("\r\n");
+                    }
+                    if (preview >= 0) {
+                        options.append("Preview: ").append(preview).append("\r\n");
+                    }
+                    if (respond204) {
+                        options.append("Allow: 204\r\n");
+                    }
+                    options.append("Encapsulated: null-body=0\r\n\r\n");
+                    out.write(options.toString().getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    continue;
+                }
+                respmodCount.incrementAndGet();
+                final int resBody = encapsulatedOffset(header, "res-body");
+                readFully(in, resBody);
+                final boolean noContent = respond204 && header.contains("Allow: 204");
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                final boolean ieof = readChunkedBody(in, body);
+                if (header.contains("Preview:") && !ieof && !noContent) {
+                    out.write("ICAP/1.0 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    readChunkedBody(in, body);
+                }
+                final int active = activeScans.incrementAndGet();
+                int max = maxActiveScans.get();
+                while (active > max && !maxActiveScans.compareAndSet(max, active)) {
+                    max = maxActiveScans.get();
+                }
+                final int delay = scanDelayMillis + delayPerActiveScanMillis * Math.max(0, active - scanCapacity);
+                try {
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    activeScans.decrementAndGet();
+                }
+                if (noContent) {
+                    out.write(("ICAP/1.0 204 No Content\r\nISTag: " + istag + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    out.write(cleanResponse(body.toByteArray()));
+                }
+                out.flush();
+                if (header.contains("Connection: close")) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private byte[] cleanResponse(final byte[] body) throws IOException {
+        final String resHdr = "HTTP/1.1 200 OK\r\n\r\n";
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("ICAP/1.0 200 OK\r\nISTag: " + istag + "\r\nEncapsulated: res-hdr=0, res-body=" + resHdr.length() + "\r\n\r\n" + resHdr)
+                .getBytes(StandardCharsets.US_ASCII));
+        for (int off = 0; off < body.length; off += responseChunkSize) {
+            final int len = Math.min(responseChunkSize, body.length - off);
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body, off, len);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static int encapsulatedOffset(final String header, final String name) {
+        final int idx = header.indexOf(name + "=");
+        if (-1 == idx) {
+            return 0;
+        }
+        int end = idx + name.length() + 1;
+        while (end < header.length() && Character.isDigit(header.charAt(end))) {
+            end++;
+        }
+        return Integer.parseInt(header.substring(idx + name.length() + 1, end));
+    }
+
+    /**
+     * Reads chunks up to the zero chunk.
+     *
+     * @return true if the zero chunk carried the ieof extension
+     */
+    private boolean readChunkedBody(final InputStream in, final ByteArrayOutputStream body) throws IOException {
+        for (;;) {
+            final String sizeLine = readUntil(in, "\r\n");
+            if (null == sizeLine) {
+                throw new IOException("eof in chunk size");
+            }
+            final int semi = sizeLine.indexOf(';');
+            final int size = Integer.parseInt((-1 == semi ? sizeLine : sizeLine.substring(0, semi)).trim(), 16);
+            if (0 == size) {
+                readUntil(in, "\r\n");
+                return -1 != semi && sizeLine.substring(semi + 1).trim().equals("ieof");
+            }
+            bodyBytesReceived.addAndGet(size);
+            body.write(readFully(in, size));
+            readUntil(in, "\r\n");
+        }
+    }
+
+    private static byte[] readFully(final InputStream in, final int len) throws IOException {
+        final byte[] buf = new byte[len];
+        int off = 0;
+        while (off < len) {
+            final int n = in.read(buf, off, len - off);
+            if (n < 0) {
+                throw new IOException("eof");
+            }
+            off += n;
+        }
+        return buf;
+    }
+
+    private static String readUntil(final InputStream in, final String delim) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (;;) {
+            final int c = in.read();
+            if (c < 0) {
+                return null;
+            }
+            sb.append((char) c);
+            if (sb.length() >= delim.length() && sb.lastIndexOf(delim) == sb.length() - delim.length()) {
+                sb.setLength(sb.length() - delim.length());
+                return sb.toString();
+            }
+        }
+    }
+}
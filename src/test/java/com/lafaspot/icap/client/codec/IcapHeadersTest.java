@@ -0,0 +1,55 @@
+package com.lafaspot.icap.client.codec;
+
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.exception.IcapException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * UTs for IcapHeaders.
+ */
+public class IcapHeadersTest {
+
+    private static IcapHeaders headers(final String block) {
+        // surround the block with other bytes, the view must only read its own region
+        final ByteBuf buf = Unpooled.copiedBuffer("xx" + block + "\r\n\r\nyy", StandardCharsets.US_ASCII);
+        return new IcapHeaders(buf, 2, block.length());
+    }
+
+    @Test
+    public void testStatusAndLookup() throws IcapException {
+        final IcapHeaders h = headers("ICAP/1.0 201 Created\r\nISTag: \"tag-1\"  \r\nx-violations-found:\t3\r\nvirus.msg\r\n"
+                + "Encapsulated: res-hdr=0, res-body=83");
+        Assert.assertEquals(h.size(), 5);
+        Assert.assertEquals(h.getStatusCode(), 201);
+        Assert.assertTrue(h.lineStartsWith(0, "ICAP/1.0"));
+        Assert.assertEquals(h.get("istag"), "\"tag-1\"");
+        Assert.assertEquals(h.indexOf("X-Violations-Found"), 2);
+        Assert.assertEquals(h.getInt("X-Violations-Found", -1), 3);
+        Assert.assertEquals(h.getLine(3), "virus.msg");
+        Assert.assertNull(h.get("virus.msg"));
+        Assert.assertEquals(h.getInt("Preview", -1), -1);
+        Assert.assertEquals(h.getEncapsulatedOffset("res-hdr"), 0);
+        Assert.assertEquals(h.getEncapsulatedOffset("res-body"), 83);
+        Assert.assertEquals(h.getEncapsulatedOffset("null-body"), -1);
+        Assert.assertEquals(h.toArray()[4], "Encapsulated: res-hdr=0, res-body=83");
+    }
+
+    @Test
+    public void testMalformedValues() {
+        final IcapHeaders h = headers("ICAP/1.0 abc OK\r\nPreview: 12x\r\nEncapsulated: res-body=abc");
+        Assert.assertEquals(h.getStatusCode(), -1);
+        Assert.assertEquals(h.getInt("Preview", -1), -1);
+        try {
+            h.getEncapsulatedOffset("res-body");
+            Assert.fail("expected a parse error");
+        } catch (IcapException e) {
+            Assert.assertEquals(e.getMessage().startsWith(IcapException.FailureType.PARSE_ERROR.getMessage()), true);
+        }
+    }
+}
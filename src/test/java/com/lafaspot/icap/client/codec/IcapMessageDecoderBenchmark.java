@@ -0,0 +1,77 @@
+package com.lafaspot.icap.client.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.lafaspot.icap.client.impl.DefaultIcapRespConsumer;
+import com.lafaspot.logfast.logging.LogContext;
+import com.lafaspot.logfast.logging.LogManager;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Decodes an ICAP response delivered in 1 byte, 64 byte and MTU sized reads. Not run by the unit tests, run it from the test classpath:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.lafaspot.icap.client.codec.IcapMessageDecoderBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcapMessageDecoderBenchmark {
+
+    @Param({ "1", "64", "1460" })
+    private int fragmentSize;
+
+    private final byte[] response = IcapMessageDecoderTest.VIOLATION_RESPONSE.getBytes(StandardCharsets.US_ASCII);
+
+    private EmbeddedChannel channel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final LogManager logManager = new LogManager(com.lafaspot.logfast.logging.Logger.Level.INFO, 5);
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logManager.getLogger(new LogContext("bench") {
+        }));
+        decoder.setIcapResponseConsumer(new DefaultIcapRespConsumer());
+        channel = new EmbeddedChannel(decoder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public Object decodeFragmented() {
+        for (int off = 0; off < response.length; off += fragmentSize) {
+            channel.writeInbound(Unpooled.wrappedBuffer(response, off, Math.min(fragmentSize, response.length - off)));
+        }
+        return channel.readInbound();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IcapMessageDecoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
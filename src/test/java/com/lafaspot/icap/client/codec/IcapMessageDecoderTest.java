@@ -0,0 +1,192 @@
+package com.lafaspot.icap.client.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.IcapResponseConsumer;
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.impl.DefaultIcapRespConsumer;
+import com.lafaspot.logfast.logging.LogContext;
+import com.lafaspot.logfast.logging.LogManager;
+import com.lafaspot.logfast.logging.Logger;
+import com.lafaspot.logfast.logging.Logger.Level;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * UTs for IcapMessageDecoder.
+ */
+public class IcapMessageDecoderTest {
+
+    /** A virus found response, headers only. */
+    static final String VIOLATION_RESPONSE = "ICAP/1.0 201 Created\r\n" + "ISTag: \"CE2CECDA7FA257776EC1E8B63060EB49\"\r\n"
+            + "Date: Thu Oct 13 03:07:36 2016 GMT\r\n" + "Service: Symantec Scan Engine/5.2.11.131\r\n" + "Service-ID: SYMCSCANRESP-AV\r\n"
+            + "X-Violations-Found: 3\r\n" + "virus.msg\r\n" + "W32.Beagle.AO@mm\r\n" + "18411\r\n" + "2\r\n" + "virus.msg/price.html\r\n"
+            + "W32.Beagle.AO@mm\r\n" + "18411\r\n" + "2\r\n" + "virus.msg/price/price.exe\r\n" + "W32.Beagle.AO@mm\r\n" + "18411\r\n"
+            + "2\r\n" + "X-Outer-Container-Is-Mime: 0\r\n" + "Encapsulated: res-hdr=0, null-body=19\r\n" + "\r\n" + "HTTP/1.1 403 Forbidden\r\n"
+            + "\r\n";
+
+    private Logger logger;
+
+    @BeforeClass
+    public void init() {
+        final LogManager logManager = new LogManager(Level.DEBUG, 5);
+        logManager.setLegacy(true);
+        logger = logManager.getLogger(new LogContext(IcapMessageDecoderTest.class.getName()) {
+        });
+    }
+
+    @DataProvider(name = "fragmentSizes")
+    public Object[][] fragmentSizes() {
+        return new Object[][] { { 1 }, { 2 }, { 3 }, { 64 }, { 1500 } };
+    }
+
+    /**
+     * The same response split at any boundary, including inside the CRLFCRLF delimiter, decodes to exactly one message.
+     */
+    @Test(dataProvider = "fragmentSizes")
+    public void testFragmentedResponse(final int fragmentSize) {
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logger);
+        decoder.setIcapResponseConsumer(new DefaultIcapRespConsumer());
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+
+        // two responses back to back, as on a kept-alive connection
+        final byte[] bytes = ("ICAP/1.0 100 Continue\r\n\r\n" + VIOLATION_RESPONSE).getBytes(StandardCharsets.US_ASCII);
+        for (int off = 0; off < bytes.length; off += fragmentSize) {
+            channel.writeInbound(Unpooled.wrappedBuffer(bytes, off, Math.min(fragmentSize, bytes.length - off)));
+        }
+
+        final IcapMessage interim = (IcapMessage) channel.readInbound();
+        Assert.assertNotNull(interim);
+        Assert.assertNull(interim.getCause());
+        Assert.assertEquals(interim.getStatus(), 100);
+
+        final IcapMessage msg = (IcapMessage) channel.readInbound();
+        Assert.assertNotNull(msg);
+        Assert.assertNull(msg.getCause());
+        Assert.assertEquals(msg.getStatus(), 201);
+        Assert.assertEquals(msg.getResult().getDisposition(), IcapResult.Disposition.INFECTED_REPLACED);
+        Assert.assertEquals(msg.getResult().getNumViolations(), 3);
+        Assert.assertEquals(msg.getIcapHeader("ISTag"), "\"CE2CECDA7FA257776EC1E8B63060EB49\"");
+        Assert.assertNull(channel.readInbound());
+        channel.finish();
+    }
+
+    /**
+     * A body sent in several chunks, with chunk extensions and a trailer, is reassembled, and the response that follows on the same
+     * connection is decoded on its own.
+     */
+    @Test(dataProvider = "fragmentSizes")
+    public void testMultiChunkBody(final int fragmentSize) {
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logger);
+        decoder.setIcapResponseConsumer(new DefaultIcapRespConsumer());
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+
+        final String resHdr = "HTTP/1.1 200 OK\r\n\r\n";
+        final String response = "ICAP/1.0 200 OK\r\nISTag: \"t\"\r\nEncapsulated: res-hdr=0, res-body=" + resHdr.length() + "\r\n\r\n" + resHdr
+                + "5\r\nhello\r\n1;ext=1\r\n \r\na\r\nicap world\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        final byte[] bytes = (response + VIOLATION_RESPONSE).getBytes(StandardCharsets.US_ASCII);
+        for (int off = 0; off < bytes.length; off += fragmentSize) {
+            channel.writeInbound(Unpooled.wrappedBuffer(bytes, off, Math.min(fragmentSize, bytes.length - off)));
+        }
+
+        final IcapMessage msg = (IcapMessage) channel.readInbound();
+        Assert.assertNull(msg.getCause());
+        Assert.assertEquals(msg.getResult().getDisposition(), IcapResult.Disposition.CLEAN);
+        Assert.assertEquals(new String(msg.getResult().getCleanedBytes(), StandardCharsets.US_ASCII), "hello icap world");
+
+        final IcapMessage next = (IcapMessage) channel.readInbound();
+        Assert.assertNull(next.getCause());
+        Assert.assertEquals(next.getStatus(), 201);
+        Assert.assertNull(channel.readInbound());
+        channel.finish();
+    }
+
+    /**
+     * A consumer written before isVerdictOnly() existed still gets the cleaned payload.
+     */
+    @Test
+    public void testConsumerWithoutVerdictOnly() {
+        final IcapResponseConsumer delegate = new DefaultIcapRespConsumer();
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logger);
+        decoder.setIcapResponseConsumer(new IcapResponseConsumer() {
+            @Override
+            public IcapResult responseReceived(final int status, final IcapMessage icapMessage) throws IcapException {
+                return delegate.responseReceived(status, icapMessage);
+            }
+        });
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        channel.writeInbound(Unpooled.copiedBuffer("ICAP/1.0 200 OK\r\nEncapsulated: res-body=0\r\n\r\n5\r\nhello\r\n0\r\n\r\n",
+                StandardCharsets.US_ASCII));
+        final IcapMessage msg = (IcapMessage) channel.readInbound();
+        Assert.assertNull(msg.getCause());
+        Assert.assertEquals(new String(msg.getResult().getCleanedBytes(), StandardCharsets.US_ASCII), "hello");
+        channel.finish();
+    }
+
+    @Test
+    public void testBadChunkSize() {
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logger);
+        decoder.setIcapResponseConsumer(new DefaultIcapRespConsumer());
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        channel.writeInbound(Unpooled.copiedBuffer("ICAP/1.0 200 OK\r\nEncapsulated: res-body=0\r\n\r\n5\r\nhello\r\nzz\r\n",
+                StandardCharsets.US_ASCII));
+        final IcapMessage msg = (IcapMessage) channel.readInbound();
+        Assert.assertNotNull(msg.getCause());
+        channel.finish();
+    }
+
+    /**
+     * With a result sink the chunks are written out as they are decoded and only the count is kept.
+     */
+    @Test(dataProvider = "fragmentSizes")
+    public void testResultSink(final int fragmentSize) {
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logger);
+        decoder.setIcapResponseConsumer(new DefaultIcapRespConsumer());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decoder.setResultSink(Channels.newChannel(out));
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+
+        final byte[] bytes = ("ICAP/1.0 200 OK\r\nEncapsulated: res-body=0\r\n\r\n5\r\nhello\r\n6\r\n sink!\r\n0\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int off = 0; off < bytes.length; off += fragmentSize) {
+            channel.writeInbound(Unpooled.wrappedBuffer(bytes, off, Math.min(fragmentSize, bytes.length - off)));
+        }
+
+        final IcapMessage msg = (IcapMessage) channel.readInbound();
+        Assert.assertNull(msg.getCause());
+        Assert.assertNull(msg.getResult().getCleanedBytes());
+        Assert.assertEquals(msg.getResult().getCleanedByteCount(), 11);
+        Assert.assertEquals(new String(out.toByteArray(), StandardCharsets.US_ASCII), "hello sink!");
+        channel.finish();
+    }
+
+    @Test(dataProvider = "fragmentSizes")
+    public void testVerdictOnly(final int fragmentSize) {
+        final IcapMessageDecoder decoder = new IcapMessageDecoder(logger);
+        decoder.setIcapResponseConsumer(new DefaultIcapRespConsumer(true));
+        final EmbeddedChannel channel = new EmbeddedChannel(decoder);
+
+        final byte[] bytes = ("ICAP/1.0 200 OK\r\nEncapsulated: res-body=0\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n" + VIOLATION_RESPONSE)
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int off = 0; off < bytes.length; off += fragmentSize) {
+            channel.writeInbound(Unpooled.wrappedBuffer(bytes, off, Math.min(fragmentSize, bytes.length - off)));
+        }
+
+        final IcapMessage msg = (IcapMessage) channel.readInbound();
+        Assert.assertNull(msg.getCause());
+        Assert.assertEquals(msg.getResult().getDisposition(), IcapResult.Disposition.CLEAN);
+        Assert.assertNull(msg.getResult().getCleanedBytes());
+        Assert.assertEquals(msg.getResult().getCleanedByteCount(), 11);
+        Assert.assertEquals(((IcapMessage) channel.readInbound()).getStatus(), 201);
+        channel.finish();
+    }
+}
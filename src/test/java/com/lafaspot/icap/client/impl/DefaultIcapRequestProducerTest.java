@@ -1,10 +1,12 @@
 package com.lafaspot.icap.client.impl;
 
-import com.lafaspot.icap.client.AbstractIcapRequestProducer;
+import com.lafaspot.icap.client.IcapRequestProducer;
+import com.lafaspot.icap.client.codec.IcapOptions;
 import com.lafaspot.icap.client.codec.IcapRespmod;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 
 
 public class DefaultIcapRequestProducerTest {
@@ -24,13 +26,61 @@ public class DefaultIcapRequestProducerTest {
         IcapRespmod respmod = defaultIcapRequestProducer.generateRespMod(true);
         Assert.assertNotNull(respmod);
         Assert.assertNotEquals(respmod.getRespModString().length(), expected.length());
-        int startIndex = 0;
-        for(startIndex=0; startIndex < inBuffer.length; startIndex++) {
-            Assert.assertEquals(respmod.getInStream()[startIndex], inBuffer[startIndex]);
-        }
-        for(int i = 0; startIndex < respmod.getInStream().length; startIndex++) {
-            Assert.assertEquals(respmod.getInStream()[startIndex], AbstractIcapRequestProducer.TRAILER_BYTES[i++]);
-        }
+        // the payload is wrapped, not copied, and the frame ends with the chunk terminator
+        Assert.assertSame(respmod.getInStream(), inBuffer);
+        final String frame = respmod.toByteBuf().toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(frame.startsWith(respmod.getRespModString()));
+        Assert.assertTrue(frame.endsWith("f\r\n012456789abcdef\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void testRespModWithPreview() {
+        final byte[] inBuffer = { '0', '1', '2', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+        final URI uri = URI.create("icap://127.0.0.1:1344");
+
+        DefaultIcapRequestProducer defaultIcapRequestProducer = new DefaultIcapRequestProducer(uri, "virus.msg", inBuffer);
+        IcapRespmod respmod = defaultIcapRequestProducer.generateRespMod(true, 4, true);
+        Assert.assertTrue(respmod.isPreview());
+        Assert.assertFalse(respmod.isPreviewComplete());
+        Assert.assertTrue(respmod.getRespModString().contains("Preview: 4\r\nAllow: 204\r\n"));
+        Assert.assertTrue(respmod.getRespModString().endsWith("\r\n4\r\n"));
+        // the payload is not copied
+        Assert.assertSame(respmod.getInStream(), inBuffer);
+        Assert.assertEquals(respmod.getPreviewLength(), 4);
+        Assert.assertEquals(new String(respmod.getPreviewTrailer()), "\r\n0\r\n\r\n");
+        Assert.assertEquals(respmod.getRemainderChunkHeader(), "b\r\n");
+        Assert.assertTrue(respmod.toByteBuf().toString(StandardCharsets.UTF_8).endsWith("\r\n4\r\n0124\r\n0\r\n\r\n"));
+        Assert.assertEquals(respmod.remainderToByteBuf().toString(StandardCharsets.UTF_8), "b\r\n56789abcdef\r\n0\r\n\r\n");
+
+        respmod = defaultIcapRequestProducer.generateRespMod(true, 1024, false);
+        Assert.assertTrue(respmod.isPreviewComplete());
+        Assert.assertFalse(respmod.getRespModString().contains("Allow: 204"));
+        // the header states the preview bytes sent, not the server's max
+        Assert.assertTrue(respmod.getRespModString().contains("Preview: 15\r\n"));
+        Assert.assertTrue(respmod.getRespModString().endsWith("\r\nf\r\n"));
+        Assert.assertEquals(new String(respmod.getPreviewTrailer()), "\r\n0; ieof\r\n\r\n");
+    }
+
+    @Test
+    public void testProducerWithoutPreviewSupport() {
+        final byte[] inBuffer = { '0', '1', '2', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+        final URI uri = URI.create("icap://127.0.0.1:1344");
+        final DefaultIcapRequestProducer delegate = new DefaultIcapRequestProducer(uri, "virus.msg", inBuffer);
+        // written against the interface before preview support, it only implements the original methods
+        final IcapRequestProducer legacy = new IcapRequestProducer() {
+            @Override
+            public IcapOptions generateOptions() {
+                return delegate.generateOptions();
+            }
 
+            @Override
+            public IcapRespmod generateRespMod(final boolean keepAlive) {
+                return delegate.generateRespMod(keepAlive);
+            }
+        };
+        final IcapRespmod respmod = legacy.generateRespMod(true, 4, true);
+        Assert.assertFalse(respmod.isPreview());
+        Assert.assertFalse(respmod.getRespModString().contains("Preview:"));
+        Assert.assertTrue(respmod.toByteBuf().toString(StandardCharsets.UTF_8).endsWith("f\r\n012456789abcdef\r\n0\r\n\r\n"));
     }
-}
\ No newline at end of file
+}
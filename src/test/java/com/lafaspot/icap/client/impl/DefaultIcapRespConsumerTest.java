@@ -1,12 +1,16 @@
 package com.lafaspot.icap.client.impl;
 
 import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.codec.IcapHeaders;
 import com.lafaspot.icap.client.codec.IcapMessage;
 import com.lafaspot.icap.client.exception.IcapException;
+import io.netty.buffer.Unpooled;
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.mockito.Mockito.when;
 
 public class DefaultIcapRespConsumerTest {
@@ -15,14 +19,14 @@ public class DefaultIcapRespConsumerTest {
     public void test200Ok() throws IcapException {
         DefaultIcapRespConsumer defaultIcapRespConsumer = new DefaultIcapRespConsumer();
         IcapMessage icapMessage1 = Mockito.mock(IcapMessage.class);
-        when(icapMessage1.getIcapHeaders()).thenReturn(new String[] {"", "Encapsulated: req-hdr=0, req-body=23, res-hdr=33, res-body=57"});
+        when(icapMessage1.getHeaders()).thenReturn(headers("", "Encapsulated: req-hdr=0, req-body=23, res-hdr=33, res-body=57"));
         IcapResult result = defaultIcapRespConsumer.responseReceived(200,icapMessage1);
         Assert.assertEquals(result.getDisposition(), IcapResult.Disposition.CLEAN);
         Assert.assertEquals(result.getNumViolations(), 0);
 
         //Encapsulated: null-body=0
         IcapMessage icapMessage2 = Mockito.mock(IcapMessage.class);
-        when(icapMessage2.getIcapHeaders()).thenReturn(new String[] {"", "Encapsulated: null-body=0"});
+        when(icapMessage2.getHeaders()).thenReturn(headers("", "Encapsulated: null-body=0"));
         result = defaultIcapRespConsumer.responseReceived(200,icapMessage2);
         Assert.assertNull(result.getDisposition());
         Assert.assertEquals(result.getNumViolations(), 0);
@@ -32,7 +36,7 @@ public class DefaultIcapRespConsumerTest {
     public void test200OkWithNFException() throws IcapException {
         DefaultIcapRespConsumer defaultIcapRespConsumer = new DefaultIcapRespConsumer();
         IcapMessage icapMessage1 = Mockito.mock(IcapMessage.class);
-        when(icapMessage1.getIcapHeaders()).thenReturn(new String[] {"", "Encapsulated: req-hdr=0, req-body=23, res-hdr=33, res-body=abc"});
+        when(icapMessage1.getHeaders()).thenReturn(headers("", "Encapsulated: req-hdr=0, req-body=23, res-hdr=33, res-body=abc"));
         IcapResult result = defaultIcapRespConsumer.responseReceived(200, icapMessage1);
 
     }
@@ -42,8 +46,8 @@ public class DefaultIcapRespConsumerTest {
 
         DefaultIcapRespConsumer defaultIcapRespConsumer = new DefaultIcapRespConsumer();
         IcapMessage icapMessage1 = Mockito.mock(IcapMessage.class);
-        when(icapMessage1.getIcapHeaders()).thenReturn(new String[] {"","X-Violations-Found: 1","virus.msg","W32.Beagle.AO@mm","18411","0",
-                "Encapsulated: res-hdr=0, res-body=83"});
+        when(icapMessage1.getHeaders()).thenReturn(headers("","X-Violations-Found: 1","virus.msg","W32.Beagle.AO@mm","18411","0",
+                "Encapsulated: res-hdr=0, res-body=83"));
         IcapResult result = defaultIcapRespConsumer.responseReceived(201, icapMessage1);
         Assert.assertEquals(result.getDisposition(), IcapResult.Disposition.INFECTED_UNREPAIRED);
         Assert.assertEquals(result.getNumViolations(), 1);
@@ -57,7 +61,7 @@ public class DefaultIcapRespConsumerTest {
     public void test201OkException() throws IcapException {
     DefaultIcapRespConsumer defaultIcapRespConsumer = new DefaultIcapRespConsumer();
         IcapMessage icapMessage1 = Mockito.mock(IcapMessage.class);
-        when(icapMessage1.getIcapHeaders()).thenReturn(new String[] {"","X-Violations-Found: 1","virus.msg","W32.Beagle.AO@mm"});
+        when(icapMessage1.getHeaders()).thenReturn(headers("","X-Violations-Found: 1","virus.msg","W32.Beagle.AO@mm"));
         IcapResult result = defaultIcapRespConsumer.responseReceived(201, icapMessage1);
     }
 
@@ -65,9 +69,14 @@ public class DefaultIcapRespConsumerTest {
     public void test500() throws IcapException {
         DefaultIcapRespConsumer defaultIcapRespConsumer = new DefaultIcapRespConsumer();
         IcapMessage icapMessage1 = Mockito.mock(IcapMessage.class);
-        when(icapMessage1.getIcapHeaders()).thenReturn(new String[] {"","X-Violations-Found: 1","virus.msg","W32.Beagle.AO@mm"});
+        when(icapMessage1.getHeaders()).thenReturn(headers("","X-Violations-Found: 1","virus.msg","W32.Beagle.AO@mm"));
         IcapResult result = defaultIcapRespConsumer.responseReceived(500, icapMessage1);
         Assert.assertNull(result.getDisposition());
     }
 
-}
\ No newline at end of file
+
+    private static IcapHeaders headers(final String... lines) {
+        final byte[] bytes = String.join("\r\n", lines).getBytes(StandardCharsets.US_ASCII);
+        return new IcapHeaders(Unpooled.wrappedBuffer(bytes), 0, bytes.length);
+    }
+}
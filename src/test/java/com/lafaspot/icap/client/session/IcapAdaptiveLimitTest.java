@@ -0,0 +1,57 @@
+package com.lafaspot.icap.client.session;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * UTs for IcapAdaptiveLimit.
+ */
+public class IcapAdaptiveLimitTest {
+
+    /** Fast response times raise the limit by one over the limit while it is used, up to the max. */
+    @Test
+    public void testAdditiveIncrease() {
+        final IcapAdaptiveLimit limit = new IcapAdaptiveLimit(2, 5, 2.0);
+        Assert.assertEquals(limit.getLimit(), 2);
+        // 2.5, 2.9, then 3.24
+        limit.onSample(10, 2);
+        limit.onSample(10, 2);
+        Assert.assertEquals(limit.getLimit(), 2);
+        limit.onSample(10, 2);
+        Assert.assertEquals(limit.getLimit(), 3);
+        // an unused limit does not grow
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(10, 1);
+        }
+        Assert.assertEquals(limit.getLimit(), 3);
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(10, limit.getLimit());
+        }
+        Assert.assertEquals(limit.getLimit(), 5);
+    }
+
+    /** Slow response times and timeouts cut the limit, never below the min. A slow time cuts it once per round of requests. */
+    @Test
+    public void testMultiplicativeDecrease() {
+        final IcapAdaptiveLimit limit = new IcapAdaptiveLimit(2, 100, 2.0);
+        while (limit.getLimit() < 40) {
+            limit.onSample(10, limit.getLimit());
+        }
+        Assert.assertEquals(limit.getLimit(), 40);
+        limit.onSample(30, 40);
+        Assert.assertEquals(limit.getLimit(), 36);
+        // the other requests sent at a limit of 40 come back slow too, without cutting again
+        for (int i = 0; i < 40; i++) {
+            limit.onSample(30, 36);
+        }
+        Assert.assertEquals(limit.getLimit(), 36);
+        limit.onSample(30, 36);
+        Assert.assertEquals(limit.getLimit(), 32);
+        limit.onDrop();
+        Assert.assertEquals(limit.getLimit(), 29);
+        for (int i = 0; i < 100; i++) {
+            limit.onDrop();
+        }
+        Assert.assertEquals(limit.getLimit(), 2);
+    }
+}
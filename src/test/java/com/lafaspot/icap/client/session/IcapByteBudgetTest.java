@@ -0,0 +1,172 @@
+package com.lafaspot.icap.client.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.exception.IcapException;
+import com.lafaspot.icap.client.session.IcapByteBudget.Admission;
+
+/**
+ * UTs for IcapByteBudget.
+ */
+public class IcapByteBudgetTest {
+
+    /**
+     * Scan stub recording the futures it starts.
+     */
+    private static class StubScan implements IcapScanCoalescer.Scan {
+        /** Started scans. */
+        private final List<IcapFuture> started = new ArrayList<IcapFuture>();
+
+        @Override
+        public IcapFuture start() {
+            final IcapFuture future = new IcapFuture();
+            started.add(future);
+            return future;
+        }
+    }
+
+    /** A scan over the budget is rejected, the bytes come back once the scan in flight completes. */
+    @Test
+    public void testReject() throws IcapException {
+        final IcapByteBudget budget = new IcapByteBudget(100, Admission.REJECT, 0);
+        final StubScan scan = new StubScan();
+        budget.admit(60, scan);
+        Assert.assertEquals(budget.getUsedBytes(), 60);
+        try {
+            budget.admit(60, scan);
+            Assert.fail("over budget");
+        } catch (IcapException e) {
+            Assert.assertEquals(e.getMessage(), "Payload bytes in flight over budget.");
+        }
+        Assert.assertEquals(budget.getRejectedCount(), 1);
+        scan.started.get(0).done(new IcapResult());
+        Assert.assertEquals(budget.getUsedBytes(), 0);
+        budget.admit(60, scan);
+        Assert.assertEquals(scan.started.size(), 2);
+    }
+
+    /**
+     * Executor holding its tasks until run.
+     */
+    private static class QueueExecutor implements Executor {
+        /** Tasks not run yet. */
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(final Runnable task) {
+            tasks.add(task);
+        }
+
+        /** Run the queued tasks. */
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /** A waiting scan gets its future right away and starts on the executor once the bytes are back. */
+    @Test
+    public void testWait() throws IcapException, InterruptedException, ExecutionException {
+        final QueueExecutor executor = new QueueExecutor();
+        final IcapByteBudget budget = new IcapByteBudget(100, Admission.WAIT, 0, executor);
+        final StubScan scan = new StubScan();
+        budget.admit(60, scan);
+        final IcapFuture waiting = budget.admit(60, scan);
+        Assert.assertEquals(scan.started.size(), 1);
+        Assert.assertEquals(budget.getWaitingCount(), 1);
+
+        scan.started.get(0).done(new IcapResult());
+        // not started by the thread giving the bytes back
+        Assert.assertEquals(scan.started.size(), 1);
+        Assert.assertEquals(budget.getWaitingCount(), 0);
+        executor.runAll();
+        Assert.assertEquals(scan.started.size(), 2);
+        Assert.assertEquals(budget.getUsedBytes(), 60);
+        Assert.assertFalse(waiting.isDone());
+
+        final IcapResult result = new IcapResult();
+        scan.started.get(1).done(result);
+        Assert.assertSame(waiting.get(), result);
+        Assert.assertEquals(budget.getUsedBytes(), 0);
+    }
+
+    /** A scan cancelled while waiting never starts and takes no bytes. */
+    @Test
+    public void testCancelWhileWaiting() throws IcapException {
+        final QueueExecutor executor = new QueueExecutor();
+        final IcapByteBudget budget = new IcapByteBudget(100, Admission.WAIT, 0, executor);
+        final StubScan scan = new StubScan();
+        budget.admit(60, scan);
+        final IcapFuture waiting = budget.admit(60, scan);
+        Assert.assertTrue(waiting.cancel(false));
+        scan.started.get(0).done(new IcapResult());
+        executor.runAll();
+        Assert.assertEquals(scan.started.size(), 1);
+        Assert.assertEquals(budget.getUsedBytes(), 0);
+        Assert.assertEquals(budget.getWaitingCount(), 0);
+    }
+
+    /** A waiting scan that fails to start with a runtime exception fails its future and gives its bytes back. */
+    @Test
+    public void testWaitingStartFails() throws IcapException, InterruptedException {
+        final QueueExecutor executor = new QueueExecutor();
+        final IcapByteBudget budget = new IcapByteBudget(100, Admission.WAIT, 0, executor);
+        final StubScan scan = new StubScan();
+        budget.admit(60, scan);
+        final RejectedExecutionException rejected = new RejectedExecutionException("event loop shut down");
+        final IcapFuture waiting = budget.admit(60, new IcapScanCoalescer.Scan() {
+            @Override
+            public IcapFuture start() {
+                throw rejected;
+            }
+        });
+        scan.started.get(0).done(new IcapResult());
+        executor.runAll();
+        Assert.assertTrue(waiting.isDone());
+        try {
+            waiting.get();
+            Assert.fail("the scan could not start");
+        } catch (ExecutionException e) {
+            Assert.assertSame(e.getCause().getCause(), rejected);
+        }
+        Assert.assertEquals(budget.getUsedBytes(), 0);
+    }
+
+    /** A blocked caller gives up after the max wait. */
+    @Test
+    public void testBlockTimesOut() throws IcapException {
+        final IcapByteBudget budget = new IcapByteBudget(100, Admission.BLOCK, 50);
+        final StubScan scan = new StubScan();
+        budget.admit(60, scan);
+        try {
+            budget.admit(60, scan);
+            Assert.fail("over budget");
+        } catch (IcapException e) {
+            Assert.assertEquals(e.getMessage(), "Payload bytes in flight over budget.");
+        }
+        Assert.assertEquals(budget.getUsedBytes(), 60);
+        Assert.assertEquals(budget.getRejectedCount(), 1);
+        scan.started.get(0).done(new IcapResult());
+        Assert.assertEquals(budget.getUsedBytes(), 0);
+    }
+
+    /** A payload larger than the budget is admitted alone. */
+    @Test
+    public void testOversizedPayload() throws IcapException {
+        final IcapByteBudget budget = new IcapByteBudget(100, Admission.REJECT, 0);
+        final StubScan scan = new StubScan();
+        budget.admit(500, scan);
+        Assert.assertEquals(budget.getUsedBytes(), 100);
+        scan.started.get(0).done(new IcapResult());
+        Assert.assertEquals(budget.getUsedBytes(), 0);
+    }
+}
@@ -0,0 +1,58 @@
+package com.lafaspot.icap.client.session;
+
+import java.time.Clock;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.session.IcapCircuitBreaker.State;
+
+/**
+ * UTs for IcapCircuitBreaker.
+ */
+public class IcapCircuitBreakerTest {
+
+    /** The breaker opens after consecutive failures only, a success in between resets the count. */
+    @Test
+    public void testOpensOnConsecutiveFailures() {
+        final Clock clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.millis()).thenReturn(1000L);
+        final IcapCircuitBreaker breaker = new IcapCircuitBreaker(3, 500, clock);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertEquals(breaker.getState(), State.OPEN);
+        Assert.assertEquals(breaker.getOpenCount(), 1);
+    }
+
+    /** One probe is allowed once the open time is over, its outcome closes or reopens the breaker. */
+    @Test
+    public void testHalfOpenProbe() {
+        final Clock clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.millis()).thenReturn(1000L);
+        final IcapCircuitBreaker breaker = new IcapCircuitBreaker(1, 500, clock);
+        breaker.onFailure();
+        Assert.assertFalse(breaker.tryProbe());
+
+        Mockito.when(clock.millis()).thenReturn(1500L);
+        Assert.assertTrue(breaker.tryProbe());
+        Assert.assertFalse(breaker.tryProbe());
+        Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertEquals(breaker.getState(), State.OPEN);
+        Assert.assertFalse(breaker.tryProbe());
+
+        Mockito.when(clock.millis()).thenReturn(2000L);
+        Assert.assertTrue(breaker.tryProbe());
+        breaker.onSuccess();
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(breaker.getOpenCount(), 2);
+    }
+}
@@ -0,0 +1,174 @@
+package com.lafaspot.icap.client.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.IcapResult.Disposition;
+import com.lafaspot.icap.client.exception.IcapException;
+
+/**
+ * UTs for IcapFuture.
+ */
+public class IcapFutureTest {
+
+    /** Stages composed on the future run when the session completes it, listeners run first. */
+    @Test
+    public void testCompletesDependentStages() throws InterruptedException, ExecutionException {
+        final IcapFuture future = new IcapFuture(Mockito.mock(IcapSession.class));
+        final List<String> order = new ArrayList<String>();
+        final CompletableFuture<Disposition> disposition = future.thenApply(new Function<IcapResult, Disposition>() {
+            @Override
+            public Disposition apply(final IcapResult result) {
+                order.add("stage");
+                return result.getDisposition();
+            }
+        });
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                order.add("listener");
+            }
+        });
+        Assert.assertFalse(disposition.isDone());
+
+        final IcapResult result = new IcapResult();
+        result.setDisposition(Disposition.INFECTED_REPLACED);
+        future.done(result);
+        Assert.assertTrue(disposition.isDone());
+        Assert.assertEquals(disposition.get(), Disposition.INFECTED_REPLACED);
+        Assert.assertSame(future.get(), result);
+        Assert.assertEquals(order.size(), 2);
+        Assert.assertEquals(order.get(0), "listener");
+    }
+
+    /** A failure reaches get() and the dependent stages, later completions are ignored. */
+    @Test
+    public void testFailure() throws InterruptedException {
+        final IcapFuture future = new IcapFuture(Mockito.mock(IcapSession.class));
+        final CompletableFuture<IcapResult> dependent = future.thenApply(Function.<IcapResult>identity());
+        final IcapException cause = new IcapException(IcapException.FailureType.NOT_CONNECTED);
+        future.done(cause);
+        future.done(new IcapResult());
+        try {
+            future.get();
+            Assert.fail("the scan failed");
+        } catch (ExecutionException e) {
+            Assert.assertSame(e.getCause(), cause);
+        }
+        Assert.assertTrue(dependent.isCompletedExceptionally());
+    }
+
+    /** Cancelling abandons the scan on the session, a late response is ignored. */
+    @Test
+    public void testCancel() throws InterruptedException, ExecutionException {
+        final IcapSession session = Mockito.mock(IcapSession.class);
+        final IcapFuture future = new IcapFuture(session);
+        final List<Exception> causes = new ArrayList<Exception>();
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                causes.add(cause);
+            }
+        });
+        Assert.assertTrue(future.cancel(true));
+        Mockito.verify(session).cancel(future);
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(causes.size(), 1);
+        Assert.assertTrue(causes.get(0) instanceof CancellationException);
+
+        future.done(new IcapResult());
+        Assert.assertFalse(future.cancel(true));
+        try {
+            future.get();
+            Assert.fail("the scan was cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    /** A scan that is over cannot be cancelled. */
+    @Test
+    public void testCancelAfterDone() throws InterruptedException, ExecutionException {
+        final IcapSession session = Mockito.mock(IcapSession.class);
+        final IcapFuture future = new IcapFuture(session);
+        final IcapResult result = new IcapResult();
+        future.done(result);
+        Assert.assertFalse(future.cancel(true));
+        Assert.assertFalse(future.isCancelled());
+        Assert.assertSame(future.get(), result);
+        Mockito.verify(session, Mockito.never()).cancel(future);
+    }
+
+    /** Completing the future from outside runs the listeners and lets go of the session, like a cancel. */
+    @Test
+    public void testExternalCompletionEndsScan() throws InterruptedException, ExecutionException {
+        final IcapSession session = Mockito.mock(IcapSession.class);
+        final IcapFuture future = new IcapFuture(session);
+        final List<IcapResult> results = new ArrayList<IcapResult>();
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                results.add(result);
+            }
+        });
+        final IcapResult result = new IcapResult();
+        Assert.assertTrue(future.complete(result));
+        Mockito.verify(session).cancel(future);
+        Assert.assertEquals(results.size(), 1);
+        Assert.assertSame(results.get(0), result);
+        Assert.assertSame(future.get(), result);
+
+        // the session's own outcome and later external ones are ignored
+        future.done(new IcapResult());
+        Assert.assertFalse(future.completeExceptionally(new IcapException(IcapException.FailureType.TIMEOUT)));
+        Assert.assertSame(future.get(), result);
+        Assert.assertEquals(results.size(), 1);
+        try {
+            future.obtrudeValue(new IcapResult());
+            Assert.fail("the scan is over");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertSame(future.get(), result);
+    }
+
+    @Test
+    public void testExternalFailureEndsScan() throws InterruptedException {
+        final IcapSession session = Mockito.mock(IcapSession.class);
+        final IcapFuture future = new IcapFuture(session);
+        final List<Exception> causes = new ArrayList<Exception>();
+        future.addListener(new BiConsumer<IcapResult, Exception>() {
+            @Override
+            public void accept(final IcapResult result, final Exception cause) {
+                causes.add(cause);
+            }
+        });
+        final Error error = new AssertionError("boom");
+        future.obtrudeException(error);
+        Mockito.verify(session).cancel(future);
+        Assert.assertEquals(causes.size(), 1);
+        Assert.assertSame(causes.get(0).getCause(), error);
+        try {
+            future.get();
+            Assert.fail("the scan failed");
+        } catch (ExecutionException e) {
+            Assert.assertSame(e.getCause(), error);
+        }
+
+        // a scan still waiting for a session is not bound to one once completed
+        final IcapFuture waiting = new IcapFuture();
+        Assert.assertTrue(waiting.completeExceptionally(new IcapException(IcapException.FailureType.TIMEOUT)));
+        Assert.assertFalse(waiting.attach(session));
+    }
+}
@@ -0,0 +1,39 @@
+package com.lafaspot.icap.client.session;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * UTs for IcapLatencyTracker.
+ */
+public class IcapLatencyTrackerTest {
+
+    /** No percentile until enough scans are recorded, then nearest-rank percentiles. */
+    @Test
+    public void testPercentile() {
+        final IcapLatencyTracker tracker = new IcapLatencyTracker();
+        for (int i = 1; i < 20; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(tracker.getPercentile(95), -1);
+        for (int i = 20; i <= 100; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(tracker.getPercentile(95), 95);
+        Assert.assertEquals(tracker.getPercentile(50), 50);
+        Assert.assertEquals(tracker.getPercentile(100), 100);
+    }
+
+    /** Only the most recent samples are kept. */
+    @Test
+    public void testWindow() {
+        final IcapLatencyTracker tracker = new IcapLatencyTracker(20);
+        for (int i = 0; i < 20; i++) {
+            tracker.record(1000);
+        }
+        for (int i = 0; i < 20; i++) {
+            tracker.record(10);
+        }
+        Assert.assertEquals(tracker.getPercentile(100), 10);
+    }
+}
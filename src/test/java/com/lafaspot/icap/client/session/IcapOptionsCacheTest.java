@@ -0,0 +1,121 @@
+package com.lafaspot.icap.client.session;
+
+import java.net.URI;
+import java.time.Clock;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.codec.IcapMessage;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * UTs for IcapOptionsCache.
+ */
+public class IcapOptionsCacheTest {
+
+    private static final URI ROUTE = URI.create("icap://127.0.0.1:1344");
+
+    private static IcapMessage optionsResponse(final String istag, final String ttl) {
+        final IcapMessage msg = Mockito.mock(IcapMessage.class);
+        when(msg.getIcapHeader("ISTag")).thenReturn(istag);
+        when(msg.getIcapHeader("Options-TTL")).thenReturn(ttl);
+        return msg;
+    }
+
+    @Test
+    public void testColdRouteNeedsOptions() {
+        final IcapOptionsCache cache = new IcapOptionsCache();
+        Assert.assertTrue(cache.needsOptions(ROUTE));
+        Assert.assertTrue(cache.needsOptions(ROUTE));
+        Assert.assertFalse(cache.hasOptions(ROUTE));
+        Assert.assertNull(cache.getIstag(ROUTE));
+    }
+
+    @Test
+    public void testWarmRouteSkipsOptionsUntilTtl() {
+        final Clock clock = Mockito.mock(Clock.class);
+        when(clock.millis()).thenReturn(1000L);
+        final IcapOptionsCache cache = new IcapOptionsCache(clock);
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", "60"));
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+        Assert.assertEquals(cache.getIstag(ROUTE), "\"tag-1\"");
+
+        // expired: exactly one session refreshes, the others keep using the stale entry
+        when(clock.millis()).thenReturn(61000L);
+        Assert.assertTrue(cache.needsOptions(ROUTE));
+        Assert.assertTrue(cache.hasOptions(ROUTE));
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", "60"));
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+    }
+
+    @Test
+    public void testAbandonedRefreshIsRetried() {
+        final Clock clock = Mockito.mock(Clock.class);
+        when(clock.millis()).thenReturn(0L);
+        final IcapOptionsCache cache = new IcapOptionsCache(clock);
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", "1"));
+        when(clock.millis()).thenReturn(2000L);
+        Assert.assertTrue(cache.needsOptions(ROUTE));
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+        when(clock.millis()).thenReturn(40000L);
+        Assert.assertTrue(cache.needsOptions(ROUTE));
+    }
+
+    @Test
+    public void testNoTtlNeverExpires() {
+        final Clock clock = Mockito.mock(Clock.class);
+        when(clock.millis()).thenReturn(0L);
+        final IcapOptionsCache cache = new IcapOptionsCache(clock);
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", null));
+        when(clock.millis()).thenReturn(Long.MAX_VALUE - 1);
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+    }
+
+    @Test
+    public void testNewIstagInvalidates() {
+        final IcapOptionsCache cache = new IcapOptionsCache();
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", "3600"));
+        cache.onIstag(ROUTE, "\"tag-1\"");
+        cache.onIstag(ROUTE, null);
+        Assert.assertFalse(cache.needsOptions(ROUTE));
+        cache.onIstag(ROUTE, "\"tag-2\"");
+        Assert.assertTrue(cache.needsOptions(ROUTE));
+    }
+
+    @Test
+    public void testPreviewAndAllow204() {
+        final IcapOptionsCache cache = new IcapOptionsCache();
+        Assert.assertEquals(cache.getPreviewSize(ROUTE), -1);
+        Assert.assertFalse(cache.isAllow204(ROUTE));
+
+        final IcapMessage msg = optionsResponse("\"tag-1\"", null);
+        when(msg.getIcapHeader("Preview")).thenReturn("4096");
+        when(msg.getIcapHeader("Allow")).thenReturn("204");
+        cache.update(ROUTE, msg);
+        Assert.assertEquals(cache.getPreviewSize(ROUTE), 4096);
+        Assert.assertTrue(cache.isAllow204(ROUTE));
+
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", null));
+        Assert.assertEquals(cache.getPreviewSize(ROUTE), -1);
+        Assert.assertFalse(cache.isAllow204(ROUTE));
+    }
+
+    @Test
+    public void testLatestIstagSurvivesInvalidation() {
+        final IcapOptionsCache cache = new IcapOptionsCache();
+        Assert.assertNull(cache.getLatestIstag(ROUTE));
+        cache.update(ROUTE, optionsResponse("\"tag-1\"", "3600"));
+        Assert.assertEquals(cache.getLatestIstag(ROUTE), "\"tag-1\"");
+        cache.onIstag(ROUTE, "\"tag-2\"");
+        Assert.assertNull(cache.getIstag(ROUTE));
+        Assert.assertEquals(cache.getLatestIstag(ROUTE), "\"tag-2\"");
+        cache.onIstag(ROUTE, null);
+        Assert.assertEquals(cache.getLatestIstag(ROUTE), "\"tag-2\"");
+    }
+}
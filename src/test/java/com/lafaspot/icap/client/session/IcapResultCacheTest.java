@@ -0,0 +1,136 @@
+package com.lafaspot.icap.client.session;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Arrays;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.IcapResult.Disposition;
+import com.lafaspot.icap.client.exception.IcapException;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * UTs for IcapResultCache.
+ */
+public class IcapResultCacheTest {
+
+    private static final URI ROUTE = URI.create("icap://127.0.0.1:1344/SYMCScanResp-AV");
+
+    private static IcapResult clean(final byte[] cleanedBytes) {
+        final IcapResult result = new IcapResult();
+        result.setDisposition(Disposition.CLEAN);
+        result.setCleanedBytes(cleanedBytes);
+        return result;
+    }
+
+    @Test
+    public void testHitAndMiss() throws IcapException {
+        final IcapResultCache cache = new IcapResultCache(10, 60000);
+        final byte[] content = "newsletter".getBytes(StandardCharsets.UTF_8);
+        final byte[] digest = IcapResultCache.digest(content);
+        Assert.assertNull(cache.get(ROUTE, digest, content, false, null));
+
+        cache.put(ROUTE, digest, content, clean(content.clone()), false);
+        final IcapResult hit = cache.get(ROUTE, IcapResultCache.digest(content.clone()), content, false, null);
+        Assert.assertEquals(hit.getDisposition(), Disposition.CLEAN);
+        Assert.assertSame(hit.getCleanedBytes(), content);
+        Assert.assertEquals(cache.get(ROUTE, digest, content, true, null).getCleanedByteCount(), content.length);
+
+        // another service on the same server is a different key
+        Assert.assertNull(cache.get(URI.create("icap://127.0.0.1:1344/other"), digest, content, false, null));
+        Assert.assertEquals(cache.getHits(), 2);
+        Assert.assertEquals(cache.getMisses(), 2);
+    }
+
+    @Test
+    public void testModifiedPayloadOnlyAnswersVerdicts() throws IcapException {
+        final IcapResultCache cache = new IcapResultCache(10, 60000);
+        final byte[] content = "infected".getBytes(StandardCharsets.UTF_8);
+        final byte[] digest = IcapResultCache.digest(content);
+        final IcapResult repaired = clean("repaired".getBytes(StandardCharsets.UTF_8));
+        repaired.setDisposition(Disposition.INFECTED_REPAIRED);
+        repaired.setNumViolations(1);
+        cache.put(ROUTE, digest, content, repaired, false);
+        Assert.assertNull(cache.get(ROUTE, digest, content, false, null));
+        final IcapResult verdict = cache.get(ROUTE, digest, content, true, null);
+        Assert.assertEquals(verdict.getDisposition(), Disposition.INFECTED_REPAIRED);
+        Assert.assertEquals(verdict.getNumViolations(), 1);
+        Assert.assertNull(verdict.getCleanedBytes());
+
+        // results without a verdict are not cached
+        final byte[] other = "other".getBytes(StandardCharsets.UTF_8);
+        cache.put(ROUTE, IcapResultCache.digest(other), other, new IcapResult(), false);
+        Assert.assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testLruEviction() throws IcapException {
+        final IcapResultCache cache = new IcapResultCache(2, 60000);
+        final byte[] a = { 'a' };
+        final byte[] b = { 'b' };
+        final byte[] c = { 'c' };
+        cache.put(ROUTE, IcapResultCache.digest(a), a, clean(a), false);
+        cache.put(ROUTE, IcapResultCache.digest(b), b, clean(b), false);
+        Assert.assertNotNull(cache.get(ROUTE, IcapResultCache.digest(a), a, false, null));
+        cache.put(ROUTE, IcapResultCache.digest(c), c, clean(c), false);
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertEquals(cache.getEvictions(), 1);
+        Assert.assertNull(cache.get(ROUTE, IcapResultCache.digest(b), b, false, null));
+        Assert.assertNotNull(cache.get(ROUTE, IcapResultCache.digest(a), a, false, null));
+        Assert.assertNotNull(cache.get(ROUTE, IcapResultCache.digest(c), c, false, null));
+    }
+
+    @Test
+    public void testTtlExpiry() throws IcapException {
+        final Clock clock = Mockito.mock(Clock.class);
+        when(clock.millis()).thenReturn(1000L);
+        final IcapResultCache cache = new IcapResultCache(10, 5000, clock);
+        final byte[] a = { 'a' };
+        cache.put(ROUTE, IcapResultCache.digest(a), a, clean(a), false);
+        when(clock.millis()).thenReturn(5999L);
+        Assert.assertNotNull(cache.get(ROUTE, IcapResultCache.digest(a), a, false, null));
+        when(clock.millis()).thenReturn(6000L);
+        Assert.assertNull(cache.get(ROUTE, IcapResultCache.digest(a), a, false, null));
+        Assert.assertEquals(cache.getEvictions(), 1);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testNewIstagInvalidates() throws IcapException {
+        final IcapResultCache cache = new IcapResultCache(10, 60000);
+        final byte[] a = { 'a' };
+        final IcapResult result = clean(a);
+        result.setIstag("\"defs-1\"");
+        cache.put(ROUTE, IcapResultCache.digest(a), a, result, false);
+        Assert.assertEquals(cache.get(ROUTE, IcapResultCache.digest(a), a, false, null).getIstag(), "\"defs-1\"");
+        Assert.assertNotNull(cache.get(ROUTE, IcapResultCache.digest(a), a, false, "\"defs-1\""));
+        Assert.assertNull(cache.get(ROUTE, IcapResultCache.digest(a), a, false, "\"defs-2\""));
+        Assert.assertEquals(cache.getInvalidations(), 1);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testUnmodifiedFromByteCount() throws IcapException {
+        final IcapResultCache cache = new IcapResultCache(10, 60000);
+        final byte[] content = "two chunks".getBytes(StandardCharsets.UTF_8);
+        final byte[] digest = IcapResultCache.digest(content);
+        // a payload held in several chunks is recorded without joining them
+        final IcapResult chunked = new IcapResult();
+        chunked.setDisposition(Disposition.CLEAN);
+        chunked.setCleanedChunks(Arrays.asList(Arrays.copyOf(content, 4), Arrays.copyOfRange(content, 4, content.length)));
+        cache.put(ROUTE, digest, content, chunked, false);
+        Assert.assertSame(cache.get(ROUTE, digest, content, false, null).getCleanedBytes(), content);
+
+        // a clean verdict with another length only answers verdicts
+        final byte[] other = "trimmed by the server".getBytes(StandardCharsets.UTF_8);
+        cache.put(ROUTE, IcapResultCache.digest(other), other, clean(Arrays.copyOf(other, 7)), false);
+        Assert.assertNull(cache.get(ROUTE, IcapResultCache.digest(other), other, false, null));
+        Assert.assertNotNull(cache.get(ROUTE, IcapResultCache.digest(other), other, true, null));
+    }
+}
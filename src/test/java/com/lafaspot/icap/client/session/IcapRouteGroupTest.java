@@ -0,0 +1,87 @@
+package com.lafaspot.icap.client.session;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * UTs for IcapRouteGroup.
+ */
+public class IcapRouteGroupTest {
+
+    /** With two members the busier one is never picked. */
+    @Test
+    public void testPicksLessLoaded() {
+        final IcapRouteSpecificSessionPool busy = Mockito.mock(IcapRouteSpecificSessionPool.class);
+        final IcapRouteSpecificSessionPool idle = Mockito.mock(IcapRouteSpecificSessionPool.class);
+        Mockito.when(busy.getInFlightCount()).thenReturn(5);
+        Mockito.when(idle.getInFlightCount()).thenReturn(0);
+        final IcapRouteGroup group = new IcapRouteGroup("av", Arrays.asList(busy, idle));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertSame(group.select(), idle);
+        }
+    }
+
+    /** The most loaded of several members is never picked, every other member gets a share. */
+    @Test
+    public void testSpreadsAcrossMembers() {
+        final IcapRouteSpecificSessionPool[] pools = new IcapRouteSpecificSessionPool[4];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = Mockito.mock(IcapRouteSpecificSessionPool.class);
+            Mockito.when(pools[i].getInFlightCount()).thenReturn(i);
+        }
+        final IcapRouteGroup group = new IcapRouteGroup("av", Arrays.asList(pools));
+        final Set<IcapRouteSpecificSessionPool> picked = new HashSet<IcapRouteSpecificSessionPool>();
+        for (int i = 0; i < 1000; i++) {
+            picked.add(group.select());
+        }
+        Assert.assertFalse(picked.contains(pools[pools.length - 1]));
+        Assert.assertEquals(picked.size(), pools.length - 1);
+    }
+
+    /** Members with an open circuit are skipped while another member is healthy. */
+    @Test
+    public void testSkipsOpenCircuits() {
+        final IcapRouteSpecificSessionPool[] pools = new IcapRouteSpecificSessionPool[3];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = Mockito.mock(IcapRouteSpecificSessionPool.class);
+            Mockito.when(pools[i].isCircuitOpen()).thenReturn(i != 1);
+            Mockito.when(pools[i].getInFlightCount()).thenReturn(i == 1 ? 10 : 0);
+        }
+        final IcapRouteGroup group = new IcapRouteGroup("av", Arrays.asList(pools));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertSame(group.select(), pools[1]);
+        }
+    }
+
+    /** Hedges are capped at the budget share of the scans, and go to a member other than the busy one. */
+    @Test
+    public void testHedgeBudget() {
+        final IcapRouteSpecificSessionPool busy = Mockito.mock(IcapRouteSpecificSessionPool.class);
+        final IcapRouteSpecificSessionPool other = Mockito.mock(IcapRouteSpecificSessionPool.class);
+        Mockito.when(busy.getLatencyPercentile(95)).thenReturn(200L);
+        final IcapRouteGroup group = new IcapRouteGroup("av", Arrays.asList(busy, other));
+        Assert.assertEquals(group.getHedgeDelayMillis(busy), -1);
+        group.setHedging(95, 10);
+        Assert.assertEquals(group.getHedgeDelayMillis(busy), 200);
+        Assert.assertSame(group.selectOther(busy), other);
+
+        for (int i = 0; i < 10; i++) {
+            group.select();
+        }
+        Assert.assertTrue(group.tryHedge());
+        Assert.assertFalse(group.tryHedge());
+        Assert.assertEquals(group.getHedgeCount(), 1);
+    }
+
+    /** A group needs at least one member. */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmptyGroup() {
+        new IcapRouteGroup("av", Collections.<IcapRouteSpecificSessionPool>emptyList());
+    }
+}
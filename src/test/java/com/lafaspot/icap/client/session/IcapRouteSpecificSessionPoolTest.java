@@ -1,7 +1,5 @@
 package com.lafaspot.icap.client.session;
 
-import com.lafaspot.icap.client.IcapRequestProducer;
-import com.lafaspot.icap.client.IcapResponseConsumer;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -11,7 +9,15 @@ import io.netty.channel.socket.nio.NioSocketChannel;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -20,6 +26,8 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.lafaspot.icap.client.IcapClient;
+import com.lafaspot.icap.client.IcapRequestProducer;
+import com.lafaspot.icap.client.IcapResponseConsumer;
 import com.lafaspot.icap.client.exception.IcapException;
 import com.lafaspot.icap.client.exception.IcapException.FailureType;
 import com.lafaspot.logfast.logging.LogContext;
@@ -48,8 +56,6 @@ public class IcapRouteSpecificSessionPoolTest {
         final URI route = new URI("icap://127.0.0.1:1344");
         final Logger logger = Mockito.mock(Logger.class);
         final IcapSession createdSess1 = Mockito.mock(IcapSession.class);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
         Mockito.when(createdSess1.isAvailable()).thenReturn(false);
         Mockito.when(createdSess1.getCreateTime()).thenReturn(System.currentTimeMillis());
         Mockito.when(createdSess1.isDead()).thenReturn(false);
@@ -63,7 +69,7 @@ public class IcapRouteSpecificSessionPoolTest {
 
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, logger);
 
-        Mockito.when(client.connect(any(URI.class), any(IcapRequestProducer.class), any(IcapResponseConsumer.class))).thenAnswer(new Answer<IcapSession>() {
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenAnswer(new Answer<IcapSession>() {
             private int count = 0;
             @Override
             public IcapSession answer(final InvocationOnMock inv) {
@@ -76,17 +82,33 @@ public class IcapRouteSpecificSessionPoolTest {
 
         });
 
-        IcapSession sess1 = pool.lease(10, requestProducer, responseConsumer);
+        IcapSession sess1 = pool.lease(10);
         Assert.assertNotNull(sess1);
-        IcapSession sess2 = pool.lease(10, requestProducer, responseConsumer);
+        IcapSession sess2 = pool.lease(10);
         Assert.assertNotNull(sess2);
-        Mockito.verify(client, Mockito.times(2)).connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class));
+        Mockito.verify(client, Mockito.times(2)).connect(any(URI.class), any(IcapRouteSpecificSessionPool.class));
         Assert.assertEquals(pool.size(), 2);
         Assert.assertEquals(pool.availableSize(), 0);
         Assert.assertEquals(pool.leasedSize(), 2);
     }
 
+    /** The deprecated lease binds the producer and consumer to the session it hands out. */
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testDeprecatedLeaseBindsProducer() throws URISyntaxException, TimeoutException, IcapException {
+        final IcapClient client = Mockito.mock(IcapClient.class);
+        final URI route = new URI("icap://127.0.0.1:1344");
+        final IcapSession createdSess = Mockito.mock(IcapSession.class);
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(createdSess);
+        final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, Mockito.mock(Logger.class));
+        final IcapRequestProducer producer = Mockito.mock(IcapRequestProducer.class);
+        final IcapResponseConsumer consumer = Mockito.mock(IcapResponseConsumer.class);
+
+        Assert.assertSame(pool.lease(10, producer, consumer), createdSess);
+        Mockito.verify(createdSess).bind(producer, consumer);
+        Assert.assertEquals(pool.leasedSize(), 1);
+    }
+
     @Test
     public void testLease2SessionWithOneDead() throws URISyntaxException, TimeoutException, IcapException {
 
@@ -94,8 +116,6 @@ public class IcapRouteSpecificSessionPoolTest {
         final URI route = new URI("icap://127.0.0.1:1344");
         final Logger logger = Mockito.mock(Logger.class);
         final IcapSession createdSess1 = Mockito.mock(IcapSession.class);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
         Mockito.when(createdSess1.isAvailable()).thenReturn(true);
         Mockito.when(createdSess1.getCreateTime()).thenReturn(System.currentTimeMillis());
         Mockito.when(createdSess1.isDead()).thenReturn(true);
@@ -109,8 +129,7 @@ public class IcapRouteSpecificSessionPoolTest {
 
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, logger);
 
-        Mockito.when(client.connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class))).thenAnswer(new Answer<IcapSession>() {
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenAnswer(new Answer<IcapSession>() {
             private int count = 0;
             @Override
             public IcapSession answer(final InvocationOnMock inv) {
@@ -122,12 +141,12 @@ public class IcapRouteSpecificSessionPoolTest {
             }
         });
 
-        IcapSession sess1 = pool.lease(10, requestProducer, responseConsumer);
+        IcapSession sess1 = pool.lease(10);
         Assert.assertNotNull(sess1);
-        IcapSession sess2 = pool.lease(10, requestProducer, responseConsumer);
+        pool.release(sess1);
+        IcapSession sess2 = pool.lease(10);
         Assert.assertNotNull(sess2);
-        Mockito.verify(client, Mockito.times(2)).connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class));
+        Mockito.verify(client, Mockito.times(2)).connect(any(URI.class), any(IcapRouteSpecificSessionPool.class));
         Assert.assertEquals(pool.size(), 1);
         Assert.assertEquals(pool.availableSize(), 0);
         Assert.assertEquals(pool.leasedSize(), 1);
@@ -141,8 +160,6 @@ public class IcapRouteSpecificSessionPoolTest {
         final URI route = new URI("icap://127.0.0.1:1344");
         final Logger logger = Mockito.mock(Logger.class);
         final IcapSession createdSess1 = Mockito.mock(IcapSession.class);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
         Mockito.when(createdSess1.isAvailable()).thenReturn(true);
         final long createTime = 5 * 60 * 60 * 1000;
         Mockito.when(createdSess1.getCreateTime()).thenReturn(createTime);
@@ -157,8 +174,7 @@ public class IcapRouteSpecificSessionPoolTest {
 
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, logger);
 
-        Mockito.when(client.connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class))).thenAnswer(new Answer<IcapSession>() {
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenAnswer(new Answer<IcapSession>() {
             private int count = 0;
             @Override
             public IcapSession answer(final InvocationOnMock inv) {
@@ -170,12 +186,12 @@ public class IcapRouteSpecificSessionPoolTest {
             }
         });
 
-        IcapSession sess1 = pool.lease(10, requestProducer, responseConsumer);
+        IcapSession sess1 = pool.lease(10);
         Assert.assertNotNull(sess1);
-        IcapSession sess2 = pool.lease(10, requestProducer, responseConsumer);
+        pool.release(sess1);
+        IcapSession sess2 = pool.lease(10);
         Assert.assertNotNull(sess2);
-        Mockito.verify(client, Mockito.times(2)).connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class));
+        Mockito.verify(client, Mockito.times(2)).connect(any(URI.class), any(IcapRouteSpecificSessionPool.class));
         Assert.assertEquals(pool.size(), 1);
         Assert.assertEquals(pool.availableSize(), 0);
         Assert.assertEquals(pool.leasedSize(), 1);
@@ -189,23 +205,20 @@ public class IcapRouteSpecificSessionPoolTest {
         final URI route = new URI("icap://127.0.0.1:1344");
         final Logger logger = Mockito.mock(Logger.class);
         final IcapSession sess = Mockito.mock(IcapSession.class);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
         Mockito.when(sess.isAvailable()).thenReturn(true);
         Mockito.when(sess.getCreateTime()).thenReturn(System.currentTimeMillis());
         Mockito.when(sess.isDead()).thenReturn(false);
         Mockito.when(sess.getCount()).thenReturn(1L);
 
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, logger);
-        Mockito.when(client.connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class))).thenReturn(sess);
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(sess);
 
-        IcapSession sess1 = pool.lease(CONNECT_TIMEOUT, requestProducer, responseConsumer);
+        IcapSession sess1 = pool.lease(CONNECT_TIMEOUT);
         Assert.assertNotNull(sess1);
-        IcapSession sess2 = pool.lease(CONNECT_TIMEOUT, requestProducer, responseConsumer);
+        pool.release(sess1);
+        IcapSession sess2 = pool.lease(CONNECT_TIMEOUT);
         Assert.assertNotNull(sess2);
-        Mockito.verify(client, Mockito.times(1)).connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class));
+        Mockito.verify(client, Mockito.times(1)).connect(any(URI.class), any(IcapRouteSpecificSessionPool.class));
         Assert.assertEquals(pool.size(), 1);
         Assert.assertEquals(pool.availableSize(), 0);
         Assert.assertEquals(pool.leasedSize(), 1);
@@ -218,14 +231,11 @@ public class IcapRouteSpecificSessionPoolTest {
         final IcapClient client = Mockito.mock(IcapClient.class);
         final URI route = new URI("icap://127.0.0.1:1344");
         final Logger logger = Mockito.mock(Logger.class);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
 
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, logger);
-        Mockito.when(client.connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class))).thenThrow(new IcapException(FailureType.NOT_CONNECTED));
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenThrow(new IcapException(FailureType.NOT_CONNECTED));
 
-        IcapSession sess = pool.lease(10000, requestProducer, responseConsumer);
+        IcapSession sess = pool.lease(10000);
         Assert.assertNotNull(sess);
     }
 
@@ -244,19 +254,226 @@ public class IcapRouteSpecificSessionPoolTest {
 
         final int maxAllowedSessions = 1;
         final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, maxAllowedSessions, logger);
-        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
-        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
-        Mockito.when(client.connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class))).thenReturn(sess);
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(sess);
 
-        IcapSession sess1 = pool.lease(CONNECT_TIMEOUT, requestProducer, responseConsumer);
+        IcapSession sess1 = pool.lease(CONNECT_TIMEOUT);
         Assert.assertNotNull(sess1);
-        IcapSession sess2 = pool.lease(CONNECT_TIMEOUT, requestProducer, responseConsumer);
+        IcapSession sess2 = pool.lease(CONNECT_TIMEOUT);
         Assert.assertNotNull(sess2);
-        Mockito.verify(client, Mockito.times(1)).connect(any(URI.class), any(IcapRequestProducer.class),
-                any(IcapResponseConsumer.class));
+        Mockito.verify(client, Mockito.times(1)).connect(any(URI.class), any(IcapRouteSpecificSessionPool.class));
         Assert.assertEquals(pool.size(), 1);
         Assert.assertEquals(pool.availableSize(), 0);
         Assert.assertEquals(pool.leasedSize(), 1);
     }
+
+    /** A connect in progress does not hold up a lease of an available session, and counts against the max sessions. */
+    @Test
+    public void testLeaseDuringSlowConnect() throws Exception {
+
+        final IcapClient client = Mockito.mock(IcapClient.class);
+        final URI route = new URI("icap://127.0.0.1:1344");
+        final Logger logger = Mockito.mock(Logger.class);
+        final IcapSession freeSess = Mockito.mock(IcapSession.class);
+        Mockito.when(freeSess.isAvailable()).thenReturn(false);
+        Mockito.when(freeSess.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(freeSess.getCount()).thenReturn(1L);
+        final IcapSession slowSess = Mockito.mock(IcapSession.class);
+        Mockito.when(slowSess.getCreateTime()).thenReturn(System.currentTimeMillis());
+
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, 2, logger);
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenAnswer(new Answer<IcapSession>() {
+            private int count = 0;
+            @Override
+            public IcapSession answer(final InvocationOnMock inv) throws InterruptedException {
+                if (++count == 1) {
+                    return freeSess;
+                }
+                connecting.countDown();
+                connected.await();
+                return slowSess;
+            }
+        });
+
+        Assert.assertSame(pool.lease(CONNECT_TIMEOUT), freeSess);
+        final AtomicReference<IcapSession> slowLease = new AtomicReference<IcapSession>();
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    slowLease.set(pool.lease(CONNECT_TIMEOUT));
+                } catch (TimeoutException | IcapException e) {
+                    // asserted below
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(connecting.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the first session finishes its scan while the second one is still connecting
+        Mockito.when(freeSess.isAvailable()).thenReturn(true);
+        pool.release(freeSess);
+        Assert.assertSame(pool.lease(CONNECT_TIMEOUT), freeSess);
+        Mockito.when(freeSess.isAvailable()).thenReturn(false);
+        try {
+            pool.lease(CONNECT_TIMEOUT);
+            Assert.fail("the connect in progress should count against the max sessions");
+        } catch (IcapException e) {
+            Assert.assertEquals(e.getMessage(), "Ran out of connections");
+        }
+
+        connected.countDown();
+        t.join();
+        Assert.assertSame(slowLease.get(), slowSess);
+        Assert.assertEquals(pool.size(), 2);
+        Assert.assertEquals(pool.leasedSize(), 2);
+    }
+
+    /** With all sessions in use, a lease waits in the queue and gets the next session returned, or a new one when a slot frees up. */
+    @Test
+    public void testWaiterQueue() throws Exception {
+
+        final IcapClient client = Mockito.mock(IcapClient.class);
+        final URI route = new URI("icap://127.0.0.1:1344");
+        final Logger logger = Mockito.mock(Logger.class);
+        final IcapSession sess1 = Mockito.mock(IcapSession.class);
+        Mockito.when(sess1.getCreateTime()).thenReturn(System.currentTimeMillis());
+        final IcapSession sess2 = Mockito.mock(IcapSession.class);
+        Mockito.when(sess2.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(sess1, sess2);
+
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, 1, timer, logger);
+            Assert.assertSame(pool.leaseAsync(CONNECT_TIMEOUT).get(), sess1);
+            final CompletableFuture<IcapSession> first = pool.leaseAsync(INACTITIVY_TIMEOUT);
+            final CompletableFuture<IcapSession> second = pool.leaseAsync(INACTITIVY_TIMEOUT);
+            Assert.assertFalse(first.isDone());
+            Assert.assertEquals(pool.getQueueDepth(), 2);
+
+            // the scan on sess1 completes, the oldest waiter gets it
+            Mockito.when(sess1.isAvailable()).thenReturn(true);
+            pool.release(sess1);
+            Assert.assertSame(first.getNow(null), sess1);
+            Assert.assertFalse(second.isDone());
+
+            // sess1 is closed, its slot goes to the next waiter
+            Mockito.when(sess1.isDead()).thenReturn(true);
+            pool.discard(sess1);
+            Assert.assertSame(second.getNow(null), sess2);
+            Assert.assertEquals(pool.getQueueDepth(), 0);
+            Assert.assertEquals(pool.getWaitCount(), 2);
+            Assert.assertEquals(pool.size(), 1);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    /** A waiter still queued at its deadline fails, and leaves the queue. */
+    @Test
+    public void testWaiterTimeout() throws Exception {
+
+        final IcapClient client = Mockito.mock(IcapClient.class);
+        final URI route = new URI("icap://127.0.0.1:1344");
+        final Logger logger = Mockito.mock(Logger.class);
+        final IcapSession sess = Mockito.mock(IcapSession.class);
+        Mockito.when(sess.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(sess);
+
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, 1, timer, logger);
+            pool.leaseAsync(CONNECT_TIMEOUT);
+            final CompletableFuture<IcapSession> waiter = pool.leaseAsync(50);
+            try {
+                waiter.get();
+                Assert.fail("no session was returned");
+            } catch (ExecutionException e) {
+                Assert.assertEquals(e.getCause().getMessage(), "Ran out of connections");
+            }
+            Assert.assertEquals(pool.getQueueDepth(), 0);
+            Assert.assertEquals(pool.getWaitTimeouts(), 1);
+            Assert.assertEquals(pool.getWaitCount(), 0);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    /** The deadline task of a waiter goes away with the waiter, also when connecting for it fails. */
+    @Test
+    public void testWaiterDeadlineCancelled() throws Exception {
+
+        final IcapClient client = Mockito.mock(IcapClient.class);
+        final URI route = new URI("icap://127.0.0.1:1344");
+        final Logger logger = Mockito.mock(Logger.class);
+        final IcapSession sess = Mockito.mock(IcapSession.class);
+        Mockito.when(sess.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(sess)
+                .thenThrow(new IcapException(FailureType.NOT_CONNECTED));
+
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+        timer.setRemoveOnCancelPolicy(true);
+        try {
+            final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, 1, timer, logger);
+            pool.leaseAsync(CONNECT_TIMEOUT).get();
+            final int scheduled = timer.getQueue().size();
+            final CompletableFuture<IcapSession> waiter = pool.leaseAsync(INACTITIVY_TIMEOUT * 100);
+            Assert.assertEquals(timer.getQueue().size(), scheduled + 1);
+
+            // the leased session is closed, connecting a new one for the waiter fails
+            Mockito.when(sess.isDead()).thenReturn(true);
+            pool.discard(sess);
+            Assert.assertTrue(waiter.isCompletedExceptionally());
+            Assert.assertEquals(timer.getQueue().size(), scheduled);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    /** The background housekeeping closes idle sessions and drops those the server closed, leases never see them. */
+    @Test
+    public void testReaper() throws Exception {
+
+        final IcapClient client = Mockito.mock(IcapClient.class);
+        final URI route = new URI("icap://127.0.0.1:1344");
+        final Logger logger = Mockito.mock(Logger.class);
+        final IcapSession idle = Mockito.mock(IcapSession.class);
+        Mockito.when(idle.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(idle.getLastUsedTime()).thenReturn(System.currentTimeMillis() - INACTITIVY_TIMEOUT);
+        final IcapSession closed = Mockito.mock(IcapSession.class);
+        Mockito.when(closed.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(closed.getLastUsedTime()).thenReturn(System.currentTimeMillis());
+        final IcapSession busy = Mockito.mock(IcapSession.class);
+        Mockito.when(busy.getCreateTime()).thenReturn(System.currentTimeMillis());
+        Mockito.when(client.connect(any(URI.class), any(IcapRouteSpecificSessionPool.class))).thenReturn(idle, closed, busy);
+
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final IcapRouteSpecificSessionPool pool = new IcapRouteSpecificSessionPool(client, route, MAX_SESSIONS, timer, logger);
+            pool.setMaxIdleMillis(INACTITIVY_TIMEOUT / 2);
+            pool.lease(CONNECT_TIMEOUT);
+            pool.lease(CONNECT_TIMEOUT);
+            pool.lease(CONNECT_TIMEOUT);
+            Mockito.when(idle.isAvailable()).thenReturn(true);
+            Mockito.when(closed.isAvailable()).thenReturn(true);
+            pool.release(idle);
+            pool.release(closed);
+            Assert.assertEquals(pool.availableSize(), 2);
+
+            // the server closes one of the available sessions
+            Mockito.when(closed.isDead()).thenReturn(true);
+            final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT * 6;
+            while (pool.availableSize() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(pool.availableSize(), 0);
+            Mockito.verify(idle).close();
+            Mockito.verify(closed).close();
+            Assert.assertEquals(pool.leasedSize(), 1);
+            Mockito.verify(busy, Mockito.never()).close();
+        } finally {
+            timer.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package com.lafaspot.icap.client.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.IcapResult.Disposition;
+import com.lafaspot.icap.client.exception.IcapException;
+
+/**
+ * UTs for IcapScanCoalescer.
+ */
+public class IcapScanCoalescerTest {
+
+    private static final URI ROUTE = URI.create("icap://127.0.0.1:1344");
+
+    private static final byte[] DIGEST = { 1, 2, 3 };
+
+    /** Starts one scan per call and remembers the last one. */
+    private static class CountingScan implements IcapScanCoalescer.Scan {
+        private int started;
+        private IcapFuture future;
+
+        @Override
+        public IcapFuture start() {
+            started++;
+            future = new IcapFuture(Mockito.mock(IcapSession.class));
+            return future;
+        }
+    }
+
+    @Test
+    public void testIdenticalScansShareOneRequest() throws IcapException, InterruptedException, ExecutionException {
+        final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+        final CountingScan scan = new CountingScan();
+        final Future<IcapResult> first = coalescer.scan(ROUTE, DIGEST, false, scan);
+        final IcapFuture firstScan = scan.future;
+        final Future<IcapResult> second = coalescer.scan(ROUTE, DIGEST.clone(), false, scan);
+        final Future<IcapResult> verdict = coalescer.scan(ROUTE, DIGEST, true, scan);
+        Assert.assertEquals(scan.started, 2);
+        Assert.assertEquals(coalescer.getCoalesced(), 1);
+        Assert.assertFalse(second.isDone());
+
+        final IcapResult result = new IcapResult();
+        result.setDisposition(Disposition.CLEAN);
+        result.setCleanedBytes(new byte[] { 'x' });
+        firstScan.done(result);
+        Assert.assertSame(first.get(), result);
+        Assert.assertNotSame(second.get(), result);
+        Assert.assertEquals(second.get().getDisposition(), Disposition.CLEAN);
+        Assert.assertEquals(second.get().getCleanedBytes(), new byte[] { 'x' });
+        // the cleaned payload is shared, not copied
+        Assert.assertSame(second.get().getCleanedBytes(), result.getCleanedBytes());
+        Assert.assertFalse(verdict.isDone());
+
+        // the flight is over, the next scan goes out again
+        Assert.assertEquals(coalescer.getInflight(), 1);
+        coalescer.scan(ROUTE, DIGEST, false, scan);
+        Assert.assertEquals(scan.started, 3);
+    }
+
+    /** A payload held in chunks reaches every caller without a copy, and joining it for one caller leaves the others intact. */
+    @Test
+    public void testChunkedPayloadIsShared() throws IcapException, InterruptedException, ExecutionException, IOException {
+        final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+        final CountingScan scan = new CountingScan();
+        final Future<IcapResult> first = coalescer.scan(ROUTE, DIGEST, false, scan);
+        final Future<IcapResult> second = coalescer.scan(ROUTE, DIGEST, false, scan);
+        final IcapResult result = new IcapResult();
+        result.setDisposition(Disposition.CLEAN);
+        result.setCleanedChunks(Arrays.asList(new byte[] { 'a', 'b' }, new byte[] { 'c' }));
+        scan.future.done(result);
+
+        Assert.assertEquals(first.get().getCleanedBytes(), new byte[] { 'a', 'b', 'c' });
+        Assert.assertEquals(second.get().getCleanedByteCount(), 3);
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (InputStream in = second.get().getCleanedStream()) {
+            for (int b = in.read(); b != -1; b = in.read()) {
+                streamed.write(b);
+            }
+        }
+        Assert.assertEquals(streamed.toByteArray(), new byte[] { 'a', 'b', 'c' });
+        Assert.assertEquals(second.get().getCleanedBytes(), new byte[] { 'a', 'b', 'c' });
+    }
+
+    @Test
+    public void testFailureIsShared() throws IcapException, InterruptedException {
+        final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+        final CountingScan scan = new CountingScan();
+        coalescer.scan(ROUTE, DIGEST, false, scan);
+        final Future<IcapResult> joined = coalescer.scan(ROUTE, DIGEST, false, scan);
+        final IcapException cause = new IcapException(IcapException.FailureType.SERVER_ERROR);
+        scan.future.done(cause);
+        try {
+            joined.get();
+            Assert.fail("expected failure");
+        } catch (ExecutionException e) {
+            Assert.assertSame(e.getCause(), cause);
+        }
+        Assert.assertEquals(coalescer.getInflight(), 0);
+    }
+
+    /** The caller that started the scan cancelling does not fail the callers that joined it. */
+    @Test
+    public void testLeaderCancelKeepsScanForJoiners() throws IcapException, InterruptedException, ExecutionException {
+        final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+        final CountingScan scan = new CountingScan();
+        final Future<IcapResult> first = coalescer.scan(ROUTE, DIGEST, false, scan);
+        final Future<IcapResult> joined = coalescer.scan(ROUTE, DIGEST, false, scan);
+        first.cancel(true);
+        Assert.assertFalse(scan.future.isDone());
+
+        final IcapResult result = new IcapResult();
+        result.setDisposition(Disposition.CLEAN);
+        scan.future.done(result);
+        Assert.assertEquals(joined.get().getDisposition(), Disposition.CLEAN);
+        Assert.assertEquals(coalescer.getInflight(), 0);
+    }
+
+    /** The scan is cancelled once every caller waiting on it cancelled, and the next caller starts a new one. */
+    @Test
+    public void testLastCancelStopsScan() throws IcapException {
+        final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+        final CountingScan scan = new CountingScan();
+        final Future<IcapResult> first = coalescer.scan(ROUTE, DIGEST, false, scan);
+        final IcapFuture firstScan = scan.future;
+        final Future<IcapResult> joined = coalescer.scan(ROUTE, DIGEST, false, scan);
+        joined.cancel(true);
+        Assert.assertFalse(firstScan.isDone());
+        first.cancel(true);
+        Assert.assertTrue(firstScan.isCancelled());
+        Assert.assertEquals(coalescer.getInflight(), 0);
+
+        coalescer.scan(ROUTE, DIGEST, false, scan);
+        Assert.assertEquals(scan.started, 2);
+    }
+
+    @Test
+    public void testStartFailureClearsFlight() throws InterruptedException {
+        final IcapScanCoalescer coalescer = new IcapScanCoalescer();
+        try {
+            coalescer.scan(ROUTE, DIGEST, false, new IcapScanCoalescer.Scan() {
+                @Override
+                public IcapFuture start() throws IcapException {
+                    throw new IcapException(IcapException.FailureType.NOT_CONNECTED);
+                }
+            });
+            Assert.fail("expected failure");
+        } catch (IcapException e) {
+            Assert.assertEquals(coalescer.getInflight(), 0);
+        }
+    }
+}
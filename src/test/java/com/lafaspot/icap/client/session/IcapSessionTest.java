@@ -5,7 +5,10 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -15,6 +18,7 @@ import com.lafaspot.icap.client.IcapResponseConsumer;
 import com.lafaspot.icap.client.codec.IcapRespmod;
 import com.lafaspot.icap.client.impl.DefaultIcapRequestProducer;
 import com.lafaspot.icap.client.impl.DefaultIcapRespConsumer;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
@@ -31,11 +35,15 @@ import com.lafaspot.logfast.logging.Logger;
 import com.lafaspot.logfast.logging.Logger.Level;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.when;
 
 public class IcapSessionTest {
@@ -83,8 +91,8 @@ public class IcapSessionTest {
         final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
         final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
 
-        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, logManager,
-                requestProducer, responseConsumer);
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null, new IcapOptionsCache(),
+                logManager);
         client.connect();
     }
 
@@ -114,9 +122,9 @@ public class IcapSessionTest {
         final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
         final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
 
-        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, logManager,
-                requestProducer, responseConsumer);
-        client.scanFile(filename, copiedBuf);
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null, new IcapOptionsCache(),
+                logManager);
+        client.scanFile(filename, copiedBuf, requestProducer, responseConsumer);
     }
 
     /**
@@ -138,16 +146,17 @@ public class IcapSessionTest {
         when(mockChannelFuture.channel()).thenReturn(mockChannel);
         when(mockChannel.pipeline()).thenReturn(mockChannelPipeline);
         when(mockChannel.closeFuture()).thenReturn(mockChannelFuture);
+        when(mockChannel.newPromise()).thenReturn(Mockito.mock(ChannelPromise.class));
         final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
         final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
 
         final String filename = "emptyFile.jpg";
         byte buf[] = new byte[0];
 
-        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, logManager,
-                requestProducer, responseConsumer);
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null, new IcapOptionsCache(),
+                logManager);
         client.connect();
-        Future<IcapResult> future = client.scanFile(filename, buf);
+        Future<IcapResult> future = client.scanFile(filename, buf, requestProducer, responseConsumer);
         Assert.assertNotNull(future);
         Assert.assertTrue(future.isDone());
         final IcapResult r = future.get();
@@ -184,6 +193,7 @@ public class IcapSessionTest {
         when(mockChannelFuture.channel()).thenReturn(mockChannel);
         when(mockChannel.pipeline()).thenReturn(mockChannelPipeline);
         when(mockChannel.closeFuture()).thenReturn(mockChannelFuture);
+        when(mockChannel.newPromise()).thenReturn(Mockito.mock(ChannelPromise.class));
         when(mockChannel.writeAndFlush(new IcapOptions(uri, "SYMCScanResp-AV").getMessage())).thenReturn(mockChannelFuture);
         final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
         final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
@@ -202,12 +212,12 @@ public class IcapSessionTest {
             o += n;
         }
     	byte copiedBuf[] = Arrays.copyOfRange(buf, 0, o);
-        when(requestProducer.generateRespMod(false)).thenReturn(new IcapRespmod(uri,respMod,buf, TRAILER_BYTES));
+        when(requestProducer.generateRespMod(false, -1, false)).thenReturn(new IcapRespmod(uri,respMod,buf, TRAILER_BYTES));
 
-        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, logManager,
-                requestProducer, responseConsumer);
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null, new IcapOptionsCache(),
+                logManager);
         client.connect();
-        Future<IcapResult> future = client.scanFile(filename, copiedBuf);
+        Future<IcapResult> future = client.scanFile(filename, copiedBuf, requestProducer, responseConsumer);
         Assert.assertNotNull(future);
         Assert.assertFalse(future.isDone());
 
@@ -234,4 +244,192 @@ public class IcapSessionTest {
         Assert.assertEquals(r.getCleanedBytes().length, fileLen);
         Assert.assertEquals(r.getDisposition(), Disposition.CLEAN);
     }
-}
\ No newline at end of file
+
+    /**
+     * With the route's OPTIONS response cached, scanFile sends the RESPMOD right away and a single response completes the scan.
+     */
+    @Test
+    public void testScanFileWithCachedOptions() throws IcapException, InterruptedException, ExecutionException {
+        final ChannelFuture mockChannelFuture = Mockito.mock(ChannelFuture.class);
+        final Channel mockChannel = Mockito.mock(Channel.class);
+        final ChannelPipeline mockChannelPipeline = Mockito.mock(ChannelPipeline.class);
+        when(mockBootstrap.connect("localhost", 1344)).thenReturn(mockChannelFuture);
+        when(mockChannelFuture.isCancelled()).thenReturn(false);
+        when(mockChannelFuture.isSuccess()).thenReturn(true);
+        when(mockChannelFuture.channel()).thenReturn(mockChannel);
+        when(mockChannel.pipeline()).thenReturn(mockChannelPipeline);
+        when(mockChannel.closeFuture()).thenReturn(mockChannelFuture);
+        when(mockChannel.newPromise()).thenReturn(Mockito.mock(ChannelPromise.class));
+
+        final byte[] inBuffer = { '0', '1', '2', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+        final String respMod = "RESPMOD icap://localhost/SYMCScanResp-AV ICAP/1.0\r\n\r\nf\r\n";
+        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
+        final IcapResponseConsumer responseConsumer = Mockito.mock(IcapResponseConsumer.class);
+        when(requestProducer.generateRespMod(false, -1, false)).thenReturn(new IcapRespmod(uri, respMod, inBuffer, TRAILER_BYTES));
+
+        final IcapOptionsCache optionsCache = new IcapOptionsCache();
+        optionsCache.update(uri, Mockito.mock(IcapMessage.class));
+
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null, optionsCache,
+                logManager);
+        client.connect();
+        final Future<IcapResult> future = client.scanFile("f.txt", inBuffer, requestProducer, responseConsumer);
+        Mockito.verify(requestProducer, Mockito.never()).generateOptions();
+        // headers, payload and trailer go out as one frame
+        Assert.assertEquals(writtenFrames(mockChannel), Arrays.asList(respMod + "012456789abcdef\r\n0\r\n\r\n"));
+
+        final IcapMessage mockScanIcapMessage = Mockito.mock(IcapMessage.class);
+        final IcapResult scanResult = new IcapResult();
+        scanResult.setDisposition(Disposition.CLEAN);
+        when(mockScanIcapMessage.getResult()).thenReturn(scanResult);
+        client.processResponse(mockScanIcapMessage);
+
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(future.get().getDisposition(), Disposition.CLEAN);
+    }
+
+    /**
+     * A route advertising Preview gets only the first bytes, the rest is sent after 100 Continue.
+     */
+    @Test
+    public void testScanFileWithPreviewContinue() throws IcapException, InterruptedException, ExecutionException {
+        final Channel mockChannel = mockConnectedChannel();
+        final byte[] inBuffer = { '0', '1', '2', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+        final String respMod = "RESPMOD icap://localhost/SYMCScanResp-AV ICAP/1.0\r\nPreview: 4\r\nAllow: 204\r\n\r\n4\r\n";
+        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
+        when(requestProducer.generateRespMod(false, 4, true)).thenReturn(new IcapRespmod(uri, respMod, inBuffer, 4));
+
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null,
+                previewOptionsCache("4"), logManager);
+        client.connect();
+        final Future<IcapResult> future = client.scanFile("f.txt", inBuffer, requestProducer, Mockito.mock(IcapResponseConsumer.class));
+        Assert.assertEquals(writtenFrames(mockChannel), Arrays.asList(respMod + "0124\r\n0\r\n\r\n"));
+
+        client.processResponse(icapResponse(100, null));
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals(writtenFrames(mockChannel), Arrays.asList(respMod + "0124\r\n0\r\n\r\n", "b\r\n56789abcdef\r\n0\r\n\r\n"));
+
+        final IcapResult scanResult = new IcapResult();
+        scanResult.setDisposition(Disposition.CLEAN);
+        client.processResponse(icapResponse(200, scanResult));
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(future.get().getDisposition(), Disposition.CLEAN);
+    }
+
+    /**
+     * A 204 in answer to the preview completes the scan with the caller's payload, the rest is never sent.
+     */
+    @Test
+    public void testScanFileWithPreviewNoContent() throws IcapException, InterruptedException, ExecutionException {
+        final Channel mockChannel = mockConnectedChannel();
+        final byte[] inBuffer = { '0', '1', '2', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+        final String respMod = "RESPMOD icap://localhost/SYMCScanResp-AV ICAP/1.0\r\nPreview: 4\r\nAllow: 204\r\n\r\n4\r\n";
+        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
+        when(requestProducer.generateRespMod(false, 4, true)).thenReturn(new IcapRespmod(uri, respMod, inBuffer, 4));
+
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null,
+                previewOptionsCache("4"), logManager);
+        client.connect();
+        final Future<IcapResult> future = client.scanFile("f.txt", inBuffer, requestProducer, Mockito.mock(IcapResponseConsumer.class));
+
+        final IcapResult scanResult = new IcapResult();
+        scanResult.setDisposition(Disposition.CLEAN);
+        client.processResponse(icapResponse(204, scanResult));
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(future.get().getDisposition(), Disposition.CLEAN);
+        Assert.assertSame(future.get().getCleanedBytes(), inBuffer);
+        Assert.assertEquals(writtenFrames(mockChannel).size(), 1);
+    }
+
+    /**
+     * A cancel landing between binding the session and setting its future still stops the scan before anything is written.
+     */
+    @Test
+    public void testCancelWhileBinding() throws IcapException {
+        final Channel mockChannel = mockConnectedChannel();
+        final IcapOptionsCache optionsCache = new IcapOptionsCache();
+        optionsCache.update(uri, Mockito.mock(IcapMessage.class));
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null,
+                optionsCache, logManager);
+        client.connect();
+        final IcapFuture future = new IcapFuture() {
+            @Override
+            boolean attach(final IcapSession session) {
+                final boolean attached = super.attach(session);
+                cancel(false);
+                return attached;
+            }
+        };
+        final byte[] inBuffer = { '0', '1', '2' };
+        client.scanFile(future, "f.txt", inBuffer, Mockito.mock(IcapRequestProducer.class), Mockito.mock(IcapResponseConsumer.class), null,
+                false);
+        Assert.assertTrue(future.isCancelled());
+        Mockito.verify(mockChannel, Mockito.never()).writeAndFlush(any());
+        Mockito.verify(mockChannel, Mockito.never()).writeAndFlush(any(), any());
+        Assert.assertTrue(client.isAvailable());
+    }
+
+    /**
+     * A connection reset in the middle of a scan fails it as NOT_CONNECTED, which the circuit breaker counts.
+     */
+    @Test
+    public void testDisconnectDuringScan() throws IcapException, InterruptedException {
+        mockConnectedChannel();
+        final byte[] inBuffer = { '0', '1', '2' };
+        final IcapRequestProducer requestProducer = Mockito.mock(IcapRequestProducer.class);
+        when(requestProducer.generateRespMod(anyBoolean(), anyInt(), anyBoolean())).thenReturn(new IcapRespmod(uri, "RESPMOD\r\n\r\n", inBuffer, 0));
+        final IcapOptionsCache optionsCache = new IcapOptionsCache();
+        optionsCache.update(uri, Mockito.mock(IcapMessage.class));
+        client = new IcapSession(sessionId, mockBootstrap, uri, CONNECT_TIMEOUT_MILLIS, INACTIVITY_TIMEOUT_MILLIS, reuseSession, null,
+                optionsCache, logManager);
+        client.connect();
+        final Future<IcapResult> future = client.scanFile("f.txt", inBuffer, requestProducer, Mockito.mock(IcapResponseConsumer.class));
+        client.onDisconnect();
+        try {
+            future.get();
+            Assert.fail("the connection was reset");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(((IcapException) e.getCause()).getFailureType(), IcapException.FailureType.NOT_CONNECTED);
+        }
+    }
+
+    private Channel mockConnectedChannel() {
+        final ChannelFuture mockChannelFuture = Mockito.mock(ChannelFuture.class);
+        final Channel mockChannel = Mockito.mock(Channel.class);
+        final ChannelPipeline mockChannelPipeline = Mockito.mock(ChannelPipeline.class);
+        when(mockBootstrap.connect("localhost", 1344)).thenReturn(mockChannelFuture);
+        when(mockChannelFuture.isCancelled()).thenReturn(false);
+        when(mockChannelFuture.isSuccess()).thenReturn(true);
+        when(mockChannelFuture.channel()).thenReturn(mockChannel);
+        when(mockChannel.pipeline()).thenReturn(mockChannelPipeline);
+        when(mockChannel.closeFuture()).thenReturn(mockChannelFuture);
+        when(mockChannel.newPromise()).thenReturn(Mockito.mock(ChannelPromise.class));
+        return mockChannel;
+    }
+
+    private IcapOptionsCache previewOptionsCache(final String preview) {
+        final IcapMessage options = Mockito.mock(IcapMessage.class);
+        when(options.getIcapHeader("Preview")).thenReturn(preview);
+        when(options.getIcapHeader("Allow")).thenReturn("204");
+        final IcapOptionsCache optionsCache = new IcapOptionsCache();
+        optionsCache.update(uri, options);
+        return optionsCache;
+    }
+
+    private static List<String> writtenFrames(final Channel mockChannel) {
+        final ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(mockChannel, Mockito.atLeast(0)).writeAndFlush(captor.capture(), any());
+        final List<String> frames = new ArrayList<String>();
+        for (final Object frame : captor.getAllValues()) {
+            frames.add(((ByteBuf) frame).toString(StandardCharsets.UTF_8));
+        }
+        return frames;
+    }
+
+    private static IcapMessage icapResponse(final int status, final IcapResult result) {
+        final IcapMessage msg = Mockito.mock(IcapMessage.class);
+        when(msg.getStatus()).thenReturn(status);
+        when(msg.getResult()).thenReturn(result);
+        return msg;
+    }
+}
@@ -0,0 +1,206 @@
+package com.lafaspot.icap.client.session;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.lafaspot.icap.client.IcapResult;
+import com.lafaspot.icap.client.IcapResult.Disposition;
+import com.lafaspot.icap.client.exception.IcapException;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * UTs for IcapVerdictStore.
+ */
+public class IcapVerdictStoreTest {
+
+    private static final URI ROUTE = URI.create("icap://127.0.0.1:1344/SYMCScanResp-AV");
+
+    private Path file;
+
+    @BeforeMethod
+    public void createFile() throws IOException {
+        file = Files.createTempFile("verdicts", ".bin");
+    }
+
+    @AfterMethod
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] key(final byte[] content) throws IcapException {
+        return IcapVerdictStore.key(ROUTE, IcapResultCache.digest(content));
+    }
+
+    private static IcapResult infected() {
+        final IcapResult result = new IcapResult();
+        result.setDisposition(Disposition.INFECTED_UNREPAIRED);
+        result.setNumViolations(1);
+        result.setViolationId("18411");
+        result.setViolationName("W32.Beagle.AO@mm");
+        result.setIstag("\"defs-1\"");
+        result.setCleanedByteCount(42);
+        return result;
+    }
+
+    @Test
+    public void testSurvivesReopen() throws IcapException, IOException {
+        final byte[] content = "attachment".getBytes(StandardCharsets.UTF_8);
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 1024, 60000)) {
+            Assert.assertNull(store.get(key(content), content, true, null));
+            store.put(key(content), content, infected(), true);
+        }
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 1024, 60000)) {
+            final IcapResult result = store.get(key(content), content, true, "\"defs-1\"");
+            Assert.assertEquals(result.getDisposition(), Disposition.INFECTED_UNREPAIRED);
+            Assert.assertEquals(result.getNumViolations(), 1);
+            Assert.assertEquals(result.getViolationId(), "18411");
+            Assert.assertEquals(result.getViolationName(), "W32.Beagle.AO@mm");
+            Assert.assertEquals(result.getIstag(), "\"defs-1\"");
+            Assert.assertEquals(result.getCleanedByteCount(), 42);
+            Assert.assertNull(result.getCleanedBytes());
+            // nothing known about the cleaned payload
+            Assert.assertNull(store.get(key(content), content, false, null));
+            Assert.assertEquals(store.getHits(), 1);
+            Assert.assertEquals(store.getMisses(), 1);
+        }
+        // another table size starts empty
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 2048, 60000)) {
+            Assert.assertNull(store.get(key(content), content, true, null));
+        }
+    }
+
+    @Test
+    public void testUnmodifiedAnswersFullScans() throws IcapException, IOException {
+        final byte[] content = "clean".getBytes(StandardCharsets.UTF_8);
+        final IcapResult clean = new IcapResult();
+        clean.setDisposition(Disposition.CLEAN);
+        clean.setCleanedBytes(content.clone());
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 64, 60000)) {
+            store.put(key(content), content, clean, false);
+            // a verdict-only scan does not replace the more useful entry
+            final IcapResult verdict = new IcapResult();
+            verdict.setDisposition(Disposition.CLEAN);
+            store.put(key(content), content, verdict, true);
+            Assert.assertSame(store.get(key(content), content, false, null).getCleanedBytes(), content);
+            Assert.assertEquals(store.get(key(content), content, true, null).getCleanedByteCount(), content.length);
+        }
+    }
+
+    @Test
+    public void testIstagAndTtl() throws IcapException, IOException {
+        final Clock clock = Mockito.mock(Clock.class);
+        when(clock.millis()).thenReturn(1000L);
+        final byte[] content = { 'a' };
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 64, 5000, clock)) {
+            store.put(key(content), content, infected(), true);
+            Assert.assertNotNull(store.get(key(content), content, true, "\"defs-1\""));
+            Assert.assertNull(store.get(key(content), content, true, "\"defs-2\""));
+            when(clock.millis()).thenReturn(6000L);
+            Assert.assertNull(store.get(key(content), content, true, null));
+        }
+    }
+
+    @Test
+    public void testFullBucketReplacesOldest() throws IcapException, IOException {
+        final Clock clock = Mockito.mock(Clock.class);
+        try (IcapVerdictStore store = new IcapVerdictStore(file, IcapVerdictStore.SLOTS_PER_BUCKET, 60000, clock)) {
+            Assert.assertEquals(store.getSlots(), IcapVerdictStore.SLOTS_PER_BUCKET);
+            for (int i = 0; i <= IcapVerdictStore.SLOTS_PER_BUCKET; i++) {
+                when(clock.millis()).thenReturn(1000L + i);
+                final byte[] content = { (byte) i };
+                store.put(key(content), content, infected(), true);
+            }
+            Assert.assertEquals(store.getEvictions(), 1);
+            Assert.assertNull(store.get(key(new byte[] { 0 }), new byte[] { 0 }, true, null));
+            for (int i = 1; i <= IcapVerdictStore.SLOTS_PER_BUCKET; i++) {
+                Assert.assertNotNull(store.get(key(new byte[] { (byte) i }), new byte[] { (byte) i }, true, null));
+            }
+        }
+    }
+
+    @Test
+    public void testLongStringsAreTruncated() throws IcapException, IOException {
+        final byte[] content = { 'a' };
+        final IcapResult result = infected();
+        final char[] name = new char[1000];
+        Arrays.fill(name, 'n');
+        result.setViolationName(new String(name));
+        result.setViolationId(null);
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 64, 60000)) {
+            store.put(key(content), content, result, true);
+            final IcapResult stored = store.get(key(content), content, true, null);
+            Assert.assertTrue(result.getViolationName().startsWith(stored.getViolationName()));
+            Assert.assertTrue(stored.getViolationName().length() > 32);
+            Assert.assertNull(stored.getViolationId());
+        }
+    }
+
+    @Test
+    public void testTruncationKeepsWholeCharacters() throws IcapException, IOException {
+        final byte[] content = { 'a' };
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 64, 60000)) {
+            // shift the three byte characters so every cut position is tried
+            for (final String prefix : new String[] { "", "a", "ab" }) {
+                final IcapResult result = infected();
+                final char[] name = new char[500];
+                Arrays.fill(name, '\u20ac');
+                result.setViolationName(prefix + new String(name));
+                store.put(key(content), content, result, true);
+                final String stored = store.get(key(content), content, true, null).getViolationName();
+                Assert.assertTrue(result.getViolationName().startsWith(stored), stored);
+                Assert.assertTrue(stored.length() > prefix.length());
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        try (IcapVerdictStore store = new IcapVerdictStore(file, 4096, 60000)) {
+            final AtomicInteger errors = new AtomicInteger();
+            final List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int id = t;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 2000; i++) {
+                                final byte[] content = { (byte) (i % 128), (byte) id };
+                                final byte[] k = key(content);
+                                store.put(k, content, infected(), true);
+                                final IcapResult r = store.get(k, content, true, null);
+                                if (null != r && !"W32.Beagle.AO@mm".equals(r.getViolationName())) {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        } catch (IcapException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (final Thread t : threads) {
+                t.start();
+            }
+            for (final Thread t : threads) {
+                t.join();
+            }
+            Assert.assertEquals(errors.get(), 0);
+        }
+    }
+}